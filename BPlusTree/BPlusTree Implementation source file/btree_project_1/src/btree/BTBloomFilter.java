@@ -0,0 +1,176 @@
+package btree;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * BTBloomFilter.java A Bloom filter over the keys of a BTreeFile, so that a
+ * lookup of a key the file does not hold can mostly be answered without going
+ * down the tree. Every key inserted sets HASHES bits; a key some of whose bits
+ * are clear was never inserted. A key whose bits are all set may still be a
+ * miss, about once in a hundred times while the filter holds no more keys
+ * than it was sized for.
+ *
+ * Bits cannot be cleared, so deleted keys stay in the filter, and a filter
+ * that outgrew its size gives more and more false positives. The file builds
+ * the filter anew from its leaves when it is stale, see stale().
+ *
+ * The bits are set atomically, since in concurrent mode inserts run side by
+ * side.
+ */
+class BTBloomFilter {
+
+	/** Bits per key the filter is sized for: about 1% false positives. */
+	static final int BITS_PER_KEY = 10;
+
+	static final int HASHES = 7;
+
+	/** Keys a new filter has room for at least. */
+	private static final int MIN_KEYS = 1024;
+
+	/** Tells the first page of a stored filter from anything else. */
+	static final int MAGIC = 0x426c6f6d;
+
+	private final AtomicLongArray words;
+
+	private final long numBits;
+
+	/** Keys the filter was sized for. */
+	private final int capacity;
+
+	private final AtomicInteger added = new AtomicInteger();
+
+	private final AtomicInteger deleted = new AtomicInteger();
+
+	/**
+	 * Create an empty filter with room for the given number of keys.
+	 */
+	BTBloomFilter(int keys) {
+		capacity = Math.max(MIN_KEYS, keys);
+		numBits = ((long) capacity * BITS_PER_KEY + 63) & ~63L;
+		words = new AtomicLongArray((int) (numBits / 64));
+	}
+
+	/**
+	 * Add a key.
+	 */
+	void add(KeyClass key) {
+		long hash = hash(key);
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32) | 1;
+		for (int i = 0; i < HASHES; i++) {
+			long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % numBits;
+			int word = (int) (bit >>> 6);
+			long mask = 1L << bit;
+			long old;
+			do {
+				old = words.get(word);
+			} while ((old & mask) == 0
+					&& !words.compareAndSet(word, old, old | mask));
+		}
+		added.incrementAndGet();
+	}
+
+	/**
+	 * @return false if the key was certainly never added
+	 */
+	boolean mightContain(KeyClass key) {
+		long hash = hash(key);
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32) | 1;
+		for (int i = 0; i < HASHES; i++) {
+			long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % numBits;
+			if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Note that a key was deleted; its bits stay set.
+	 */
+	void deleted() {
+		deleted.incrementAndGet();
+	}
+
+	/**
+	 * @return true if the filter should be built anew: it holds more keys
+	 *         than it was sized for, or so many of its keys were deleted that
+	 *         it answers for many keys that are gone
+	 */
+	boolean stale() {
+		int keys = added.get();
+		return keys > capacity || deleted.get() > Math.max(MIN_KEYS, keys / 2);
+	}
+
+	/*
+	 * A 64 bit hash of the key, whose halves are used as two independent
+	 * hashes.
+	 */
+	private static long hash(KeyClass key) {
+		long h;
+		if (key instanceof IntegerKey) {
+			h = ((IntegerKey) key).getKey();
+		} else {
+			// FNV-1a over the characters
+			String s = ((StringKey) key).getKey();
+			h = 0xcbf29ce484222325L;
+			for (int i = 0; i < s.length(); i++) {
+				h ^= s.charAt(i);
+				h *= 0x100000001b3L;
+			}
+		}
+		// the finalizer of MurmurHash3, so that close keys spread out
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	/**
+	 * @return the filter as bytes, as fromBytes reads it: the magic number,
+	 *         the capacity, the keys added and deleted, and the bits
+	 */
+	byte[] toBytes() {
+		int count = words.length();
+		byte[] data = new byte[16 + 8 * count];
+		BTPageUtil.writeInt(data, 0, MAGIC);
+		BTPageUtil.writeInt(data, 4, capacity);
+		BTPageUtil.writeInt(data, 8, added.get());
+		BTPageUtil.writeInt(data, 12, deleted.get());
+		for (int i = 0; i < count; i++) {
+			long word = words.get(i);
+			BTPageUtil.writeInt(data, 16 + 8 * i, (int) (word >>> 32));
+			BTPageUtil.writeInt(data, 20 + 8 * i, (int) word);
+		}
+		return data;
+	}
+
+	/**
+	 * @return the number of bytes toBytes gives for the filter whose first
+	 *         bytes are given, -1 if they are not those of a filter
+	 */
+	static int length(byte[] data, int pos) {
+		if (BTPageUtil.readInt(data, pos) != MAGIC)
+			return -1;
+		int capacity = BTPageUtil.readInt(data, pos + 4);
+		if (capacity < MIN_KEYS)
+			return -1;
+		long numBits = ((long) capacity * BITS_PER_KEY + 63) & ~63L;
+		return 16 + 8 * (int) (numBits / 64);
+	}
+
+	/**
+	 * Read a filter written by toBytes.
+	 */
+	static BTBloomFilter fromBytes(byte[] data) {
+		BTBloomFilter filter = new BTBloomFilter(BTPageUtil.readInt(data, 4));
+		filter.added.set(BTPageUtil.readInt(data, 8));
+		filter.deleted.set(BTPageUtil.readInt(data, 12));
+		for (int i = 0; i < filter.words.length(); i++)
+			filter.words.set(i, ((long) BTPageUtil.readInt(data, 16 + 8 * i) << 32)
+					| (BTPageUtil.readInt(data, 20 + 8 * i) & 0xffffffffL));
+		return filter;
+	}
+}
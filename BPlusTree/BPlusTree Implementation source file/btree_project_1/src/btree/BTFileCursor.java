@@ -0,0 +1,140 @@
+package btree;
+
+import java.io.*;
+
+import diskmgr.*;
+import global.*;
+import heap.*;
+
+/**
+ * BTFileCursor.java A range scan over a BTreeFile that hands out the entries
+ * it stands on through one reused position instead of a new KeyDataEntry per
+ * record. advance() moves to the next entry and the current key and rid are
+ * read in place from the leaf, so a scan over integer keys allocates nothing
+ * per record. Each leaf is unpinned as soon as the cursor moves past it.
+ *
+ * A cursor needs the file to itself: it is not offered in concurrent mode,
+ * and the file must not be changed while a cursor is open.
+ */
+public class BTFileCursor implements GlobalConst {
+
+	/** The leaf the cursor stands on, pointed at the next one when it moves. */
+	private BTLeafPage leaf;
+
+	/** Page id of the leaf, reused for every pin and unpin. */
+	private PageId pageno;
+
+	private Page frame = new Page(BTPageUtil.NO_DATA);
+
+	private boolean open;
+
+	private int slot;
+
+	private KeyClass hiKey;
+
+	private boolean started;
+
+	BTFileCursor(BTLeafPage leaf, int slot, KeyClass hiKey) throws IOException {
+		this.leaf = leaf;
+		this.slot = slot;
+		this.hiKey = hiKey;
+		if (leaf != null) {
+			pageno = new PageId(leaf.getCurPage().pid);
+			open = true;
+		}
+	}
+
+	/**
+	 * Move to the next entry of the range, the first one on the first call.
+	 *
+	 * @return false if the range has no more entries; the cursor is closed
+	 *         then
+	 * @exception ScanIteratorException
+	 *                iterator error
+	 */
+	public boolean advance() throws ScanIteratorException {
+		if (!open)
+			return false;
+
+		try {
+			if (started)
+				slot++;
+			started = true;
+
+			while (slot == BTPageUtil.slotCount(leaf)) {
+				int nextpage = BTPageUtil.readInt(leaf.getpage(),
+						HFPage.NEXT_PAGE);
+				close();
+				if (nextpage == INVALID_PAGE)
+					return false;
+				pageno.pid = nextpage;
+				BTPageUtil.pin(pageno, frame);
+				leaf.setpage(frame.getpage());
+				open = true;
+				slot = 0;
+			}
+
+			if (hiKey != null && BTPageUtil.compareKey(leaf, slot, hiKey) > 0) {
+				// went past right end of scan
+				close();
+				return false;
+			}
+			return true;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ScanIteratorException(e, "advance failed");
+		}
+	}
+
+	/**
+	 * @return the key of the current entry of an integer key index
+	 */
+	public int currentIntKey() {
+		return BTPageUtil.readInt(leaf.getpage(), BTPageUtil.slotOffset(leaf
+				.getpage(), slot));
+	}
+
+	/**
+	 * @return the key of the current entry, as a new object
+	 * @exception IteratorException
+	 *                error when decoding the entry
+	 */
+	public KeyClass currentKey() throws IteratorException {
+		return BTPageUtil.getEntry(leaf, slot).key;
+	}
+
+	/**
+	 * Copy the rid of the current entry into the given one.
+	 *
+	 * @param reuse
+	 *            the rid to fill in. Output parameter.
+	 * @return reuse
+	 */
+	public RID currentRid(RID reuse) {
+		if (reuse.pageNo == null)
+			reuse.pageNo = new PageId();
+		BTPageUtil.getRid(leaf, slot, reuse);
+		return reuse;
+	}
+
+	/**
+	 * Unpin the leaf the cursor stands on and end the scan. The cursor may be
+	 * closed any time, and more than once.
+	 *
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception ScanIteratorException
+	 *                error when unpin the leaf
+	 */
+	public void close() throws IOException, ScanIteratorException {
+		if (!open)
+			return;
+		try {
+			BTPageUtil.unpin(pageno, false);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ScanIteratorException(e, "close failed");
+		}
+		open = false;
+	}
+}
@@ -0,0 +1,147 @@
+package btree;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+import global.*;
+
+/**
+ * BTLatches.java The latches that make a BTreeFile safe to use from several
+ * threads at once.
+ *
+ * The tree latch guards the shape of the tree. It is held shared while the
+ * index pages are read on the way down and while a single leaf is read or
+ * changed in place, and exclusive by any operation that splits, merges, frees
+ * or moves pages. Index pages only change under the exclusive tree latch, so
+ * they need no latch of their own. Leaf pages are latched on their own while
+ * the tree latch is held shared: shared to read them, exclusive to change
+ * them. Page latches are taken left to right only, and no latch is waited for
+ * while the buffer manager is locked, so latching cannot deadlock.
+ *
+ * Readers need not latch at all. The tree latch and every page latch carry a
+ * version that is bumped when they are taken exclusive and again when they
+ * are let go, so it is odd while a writer is at work. An optimistic reader
+ * notes the versions before it reads and checks them afterwards, and starts
+ * over if they changed. The check comes after an acquire fence, which keeps
+ * the plain reads of the page from being done after it. Optimistic readers
+ * still pin what they read, so a page freed while one of them holds it
+ * pinned is only freed later (see pendingFrees).
+ */
+class BTLatches {
+
+	/** Number of page latches, page ids are hashed onto them. */
+	private static final int STRIPES = 256;
+
+	/** Optimistic attempts before a reader falls back on the latches. */
+	static final int OPTIMISTIC_TRIES = 4;
+
+	private final ReentrantReadWriteLock tree = new ReentrantReadWriteLock();
+
+	private final ReentrantReadWriteLock[] pages = new ReentrantReadWriteLock[STRIPES];
+
+	private final AtomicLong treeVersion = new AtomicLong();
+
+	private final AtomicLongArray pageVersions = new AtomicLongArray(STRIPES);
+
+	/**
+	 * Pages that could not be freed yet because an optimistic reader held
+	 * them pinned. Only used with the tree latch held exclusive.
+	 */
+	final List<PageId> pendingFrees = new ArrayList<PageId>();
+
+	/** Leaf pages held pinned by open scans, with the number of scans. */
+	private final Map<Integer, Integer> scanPages = new HashMap<Integer, Integer>();
+
+	BTLatches() {
+		for (int i = 0; i < STRIPES; i++)
+			pages[i] = new ReentrantReadWriteLock();
+	}
+
+	void lockTreeShared() {
+		tree.readLock().lock();
+	}
+
+	void unlockTreeShared() {
+		tree.readLock().unlock();
+	}
+
+	void lockTreeExclusive() {
+		tree.writeLock().lock();
+		treeVersion.incrementAndGet();
+	}
+
+	void unlockTreeExclusive() {
+		treeVersion.incrementAndGet();
+		tree.writeLock().unlock();
+	}
+
+	void lockShared(PageId pageno) {
+		latch(pageno).readLock().lock();
+	}
+
+	void unlockShared(PageId pageno) {
+		latch(pageno).readLock().unlock();
+	}
+
+	void lockExclusive(PageId pageno) {
+		latch(pageno).writeLock().lock();
+		pageVersions.incrementAndGet(stripe(pageno));
+	}
+
+	void unlockExclusive(PageId pageno) {
+		pageVersions.incrementAndGet(stripe(pageno));
+		latch(pageno).writeLock().unlock();
+	}
+
+	private ReentrantReadWriteLock latch(PageId pageno) {
+		return pages[stripe(pageno)];
+	}
+
+	private static int stripe(PageId pageno) {
+		return (pageno.pid & 0x7fffffff) % STRIPES;
+	}
+
+	/**
+	 * @return the version of the tree latch, odd while it is held exclusive
+	 */
+	long treeVersion() {
+		return treeVersion.get();
+	}
+
+	/**
+	 * @return the version of the latch of the given page, odd while it is held
+	 *         exclusive
+	 */
+	long pageVersion(PageId pageno) {
+		return pageVersions.get(stripe(pageno));
+	}
+
+	/**
+	 * @return true if no writer held the latch when the version was read
+	 */
+	static boolean stable(long version) {
+		return (version & 1) == 0;
+	}
+
+	/**
+	 * Record that a scan now holds the given leaf pinned (or no longer does,
+	 * with a negative count).
+	 */
+	synchronized void scanPinned(PageId pageno, int count) {
+		Integer old = scanPages.get(pageno.pid);
+		int now = (old == null ? 0 : old) + count;
+		if (now > 0)
+			scanPages.put(pageno.pid, now);
+		else
+			scanPages.remove(pageno.pid);
+	}
+
+	/**
+	 * @return true if an open scan holds the given leaf pinned, so it must not
+	 *         be freed
+	 */
+	synchronized boolean inScan(PageId pageno) {
+		return scanPages.containsKey(pageno.pid);
+	}
+}
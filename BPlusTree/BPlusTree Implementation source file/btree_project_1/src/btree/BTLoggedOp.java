@@ -0,0 +1,57 @@
+package btree;
+
+import java.util.*;
+
+import diskmgr.*;
+import global.*;
+
+/**
+ * BTLoggedOp.java What one operation on a BTreeFile with a write-ahead log
+ * changed, to be logged as one record of page images when it is done.
+ *
+ * The pages the operation changes stay pinned until the record is on disk, so
+ * that the buffer manager cannot write any of them before; pages it frees are
+ * only freed once the record is logged, since until then the tree on disk may
+ * still point to them. Operations that only fill new pages, which nothing
+ * points to before the header page does, log each page as they let go of it
+ * instead and do not hold on to the pins, since they may fill more pages than
+ * the buffer pool has.
+ */
+class BTLoggedOp {
+
+	/** Whether the pages changed stay pinned until the record is on disk. */
+	final boolean holdPins;
+
+	/** The public operations entered, since they call each other. */
+	int depth = 1;
+
+	/** The log position after the record, 0 until it is logged. */
+	long lsn;
+
+	/** The pages pinned by the operation, by page id. */
+	final Map<Integer, Page> pages = new HashMap<Integer, Page>();
+
+	/** The pages changed and not logged yet, in the order they changed. */
+	final Set<Integer> changed = new LinkedHashSet<Integer>();
+
+	/** The pins held on to until the record is on disk. */
+	final List<PageId> held = new ArrayList<PageId>();
+
+	/** The pages of the space map changed by pages allocated. */
+	final Set<Integer> spaceMap = new TreeSet<Integer>();
+
+	/** The pages to free once the record is logged. */
+	final List<PageId> frees = new ArrayList<PageId>();
+
+	BTLoggedOp(boolean holdPins) {
+		this.holdPins = holdPins;
+	}
+
+	/**
+	 * Note a page allocated by the operation, pinned as the given page.
+	 */
+	void allocated(PageId pageno, Page page) {
+		pages.put(pageno.pid, page);
+		spaceMap.add(WriteAheadLog.spaceMapPage(pageno.pid));
+	}
+}
@@ -0,0 +1,565 @@
+package btree;
+
+import java.io.*;
+
+import bufmgr.*;
+import diskmgr.*;
+import global.*;
+import heap.*;
+
+/**
+ * BTPageUtil.java Helpers that work on the slot directory of a BTSortedPage
+ * directly. The slots of a sorted page are kept in key order, so slot i always
+ * holds the i-th smallest entry of the page and entries can be addressed by
+ * position instead of being found with getFirst/getNext.
+ *
+ * The records of a page with integer keys have a fixed width: a 4 byte key
+ * followed by a 4 byte child page id on index pages, or by an 8 byte rid on
+ * leaf pages. String keys are stored as by DataOutput.writeUTF. Searches
+ * compare the probe key with the keys in place in the page bytes, integer
+ * keys as ints and string keys char by char, so that only the entry finally
+ * asked for is ever decoded into objects.
+ */
+class BTPageUtil implements GlobalConst {
+
+	/**
+	 * Data for a Page that is about to be pinned; the buffer manager points
+	 * the page at its frame.
+	 */
+	static final byte[] NO_DATA = new byte[0];
+
+	/** Bytes an empty page can hold, slot directory included. */
+	static final int PAGE_CAPACITY = MAX_SPACE - HFPage.DPFIXED;
+
+	/*
+	 * The calls of the buffer manager. BufMgr is not thread safe, so every
+	 * call is made with it locked; a ConcurrentBufMgr is called as it is.
+	 */
+
+	static void pin(PageId pageno, Page page) throws ReplacerException,
+			HashOperationException, PageUnpinnedException,
+			InvalidFrameNumberException, PageNotReadException,
+			BufferPoolExceededException, PagePinnedException, BufMgrException,
+			IOException {
+		BufMgr bm = SystemDefs.JavabaseBM;
+		if (bm instanceof ConcurrentBufMgr) {
+			bm.pinPage(pageno, page, false/* Rdisk */);
+			return;
+		}
+		synchronized (bm) {
+			bm.pinPage(pageno, page, false/* Rdisk */);
+		}
+	}
+
+	static void unpin(PageId pageno, boolean dirty) throws ReplacerException,
+			PageUnpinnedException, HashEntryNotFoundException,
+			InvalidFrameNumberException {
+		BufMgr bm = SystemDefs.JavabaseBM;
+		if (bm instanceof ConcurrentBufMgr) {
+			bm.unpinPage(pageno, dirty);
+			return;
+		}
+		synchronized (bm) {
+			bm.unpinPage(pageno, dirty);
+		}
+	}
+
+	static PageId newPage(Page page) throws BufferPoolExceededException,
+			HashOperationException, ReplacerException,
+			HashEntryNotFoundException, InvalidFrameNumberException,
+			PagePinnedException, PageUnpinnedException, PageNotReadException,
+			BufMgrException, DiskMgrException, IOException {
+		BufMgr bm = SystemDefs.JavabaseBM;
+		if (bm instanceof ConcurrentBufMgr)
+			return bm.newPage(page, 1);
+		synchronized (bm) {
+			return bm.newPage(page, 1);
+		}
+	}
+
+	static void freePage(PageId pageno) throws InvalidBufferException,
+			ReplacerException, HashOperationException,
+			InvalidFrameNumberException, PageNotReadException,
+			BufferPoolExceededException, PagePinnedException,
+			PageUnpinnedException, HashEntryNotFoundException,
+			BufMgrException, DiskMgrException, IOException {
+		BufMgr bm = SystemDefs.JavabaseBM;
+		if (bm instanceof ConcurrentBufMgr) {
+			bm.freePage(pageno);
+			return;
+		}
+		synchronized (bm) {
+			bm.freePage(pageno);
+		}
+	}
+
+	/**
+	 * @return the given leaf, pinned
+	 */
+	static BTLeafPage pinLeaf(PageId pageno, int keyType) throws IOException,
+			ConstructPageException {
+		BufMgr bm = SystemDefs.JavabaseBM;
+		if (bm instanceof ConcurrentBufMgr)
+			return new BTLeafPage(pageno, keyType);
+		synchronized (bm) {
+			return new BTLeafPage(pageno, keyType);
+		}
+	}
+
+	/**
+	 * @return a new leaf, pinned
+	 */
+	static BTLeafPage newLeaf(int keyType) throws IOException,
+			ConstructPageException {
+		BufMgr bm = SystemDefs.JavabaseBM;
+		if (bm instanceof ConcurrentBufMgr)
+			return new BTLeafPage(keyType);
+		synchronized (bm) {
+			return new BTLeafPage(keyType);
+		}
+	}
+
+	/**
+	 * @return a new index page, pinned
+	 */
+	static BTIndexPage newIndex(int keyType) throws IOException,
+			ConstructPageException {
+		BufMgr bm = SystemDefs.JavabaseBM;
+		if (bm instanceof ConcurrentBufMgr)
+			return new BTIndexPage(keyType);
+		synchronized (bm) {
+			return new BTIndexPage(keyType);
+		}
+	}
+
+	/**
+	 * @return the given header page, pinned
+	 */
+	static BTreeHeaderPage pinHeader(PageId pageno)
+			throws ConstructPageException {
+		BufMgr bm = SystemDefs.JavabaseBM;
+		if (bm instanceof ConcurrentBufMgr)
+			return new BTreeHeaderPage(pageno);
+		synchronized (bm) {
+			return new BTreeHeaderPage(pageno);
+		}
+	}
+
+	/**
+	 * @return a new header page, pinned
+	 */
+	static BTreeHeaderPage newHeader() throws ConstructPageException {
+		BufMgr bm = SystemDefs.JavabaseBM;
+		if (bm instanceof ConcurrentBufMgr)
+			return new BTreeHeaderPage();
+		synchronized (bm) {
+			return new BTreeHeaderPage();
+		}
+	}
+
+	/**
+	 * @return the bytes taken by records and slots on the page
+	 */
+	static int usedSpace(HFPage page) throws IOException {
+		return PAGE_CAPACITY - (page.available_space() + HFPage.SIZE_OF_SLOT);
+	}
+
+	/**
+	 * @return true if the page is less than half full
+	 */
+	static boolean underflow(HFPage page) throws IOException {
+		return usedSpace(page) < PAGE_CAPACITY / 2;
+	}
+
+	/**
+	 * @return the bytes an index entry with the given key takes, slot included
+	 */
+	static int indexEntrySize(KeyClass key) throws KeyNotMatchException,
+			IOException {
+		try {
+			return BT.getKeyDataLength(key, NodeType.INDEX)
+					+ HFPage.SIZE_OF_SLOT;
+		} catch (NodeNotMatchException e) {
+			throw new KeyNotMatchException(e, "key types do not match");
+		}
+	}
+
+	/**
+	 * Decode the entry in the given slot of a leaf or index page.
+	 */
+	static KeyDataEntry getEntry(BTSortedPage page, int slot)
+			throws IteratorException {
+		try {
+			return BT.getEntryFromBytes(page.getpage(),
+					page.getSlotOffset(slot), page.getSlotLength(slot),
+					page.keyType, page.getType());
+		} catch (Exception e) {
+			throw new IteratorException(e, "Get entry failed");
+		}
+	}
+
+	/**
+	 * @return the child page id stored in the given slot of an index page; slot
+	 *         -1 stands for the left link of the page
+	 */
+	static PageId getChild(BTIndexPage page, int slot) throws IOException,
+			IteratorException {
+		byte[] data = page.getpage();
+		if (slot < 0)
+			return new PageId(readInt(data, HFPage.PREV_PAGE));
+		if (slot >= slotCount(page))
+			throw new IteratorException(null, "Get entry failed");
+		// the page id is the last field of an index record
+		return new PageId(readInt(data, slotOffset(data, slot)
+				+ slotLength(data, slot) - 4));
+	}
+
+	/**
+	 * Binary search for the first slot whose key is not less than key.
+	 *
+	 * @return the slot, or the number of slots if every key is less than key
+	 */
+	static int lowerBound(BTSortedPage page, KeyClass key)
+			throws IteratorException, KeyNotMatchException, IOException {
+		return search(page, key, false);
+	}
+
+	/**
+	 * Binary search for the first slot whose key is greater than key. This is
+	 * where an entry with the given key goes so that it ends up behind its
+	 * duplicates, and one less is the last slot whose key is not greater.
+	 *
+	 * @return the slot, or the number of slots if no key is greater than key
+	 */
+	static int upperBound(BTSortedPage page, KeyClass key)
+			throws IteratorException, KeyNotMatchException, IOException {
+		return search(page, key, true);
+	}
+
+	private static int search(BTSortedPage page, KeyClass key, boolean upper)
+			throws IteratorException, KeyNotMatchException, IOException {
+		int low = 0, high = slotCount(page);
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			int cmp = compareKey(page, mid, key);
+			if (cmp < 0 || (upper && cmp == 0))
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+
+	/**
+	 * Compare the key in the given slot with key in place, in the order of
+	 * BT.keyCompare.
+	 *
+	 * @return less than, equal to or greater than 0 as the key in the slot is
+	 *         less than, equal to or greater than key
+	 */
+	static int compareKey(BTSortedPage page, int slot, KeyClass key)
+			throws IteratorException, KeyNotMatchException {
+		byte[] data = page.getpage();
+		if (key instanceof IntegerKey && page.keyType == AttrType.attrInteger) {
+			int stored = readInt(data, slotOffset(data, slot));
+			int probe = ((IntegerKey) key).getKey().intValue();
+			return stored < probe ? -1 : (stored == probe ? 0 : 1);
+		}
+		if (key instanceof StringKey && page.keyType == AttrType.attrString)
+			return compareUTF(data, slotOffset(data, slot), ((StringKey) key)
+					.getKey());
+		return BT.keyCompare(getEntry(page, slot).key, key);
+	}
+
+	/*
+	 * Compare a string written by writeUTF at pos with key, decoding one char
+	 * at a time like String.compareTo compares them.
+	 */
+	private static int compareUTF(byte[] data, int pos, String key) {
+		int end = pos + 2 + (readShort(data, pos) & 0xffff);
+		int i = pos + 2;
+		int n = 0;
+		while (i < end && n < key.length()) {
+			int c = data[i++] & 0xff;
+			if (c >= 0xe0)
+				c = ((c & 0x0f) << 12) | ((data[i++] & 0x3f) << 6)
+						| (data[i++] & 0x3f);
+			else if (c >= 0x80)
+				c = ((c & 0x1f) << 6) | (data[i++] & 0x3f);
+			int d = key.charAt(n++);
+			if (c != d)
+				return c - d;
+		}
+		if (i < end)
+			return 1;
+		return n < key.length() ? -1 : 0;
+	}
+
+	/**
+	 * Copy the rid of the leaf entry in the given slot into rid.
+	 */
+	static void getRid(BTLeafPage page, int slot, RID rid) {
+		byte[] data = page.getpage();
+		int end = slotOffset(data, slot) + slotLength(data, slot);
+		rid.pageNo.pid = readInt(data, end - 4);
+		rid.slotNo = readInt(data, end - 8);
+	}
+
+	/**
+	 * @return true if the leaf entry in the given slot points to rid
+	 */
+	static boolean ridEquals(BTLeafPage page, int slot, RID rid) {
+		byte[] data = page.getpage();
+		int end = slotOffset(data, slot) + slotLength(data, slot);
+		return readInt(data, end - 4) == rid.pageNo.pid
+				&& readInt(data, end - 8) == rid.slotNo;
+	}
+
+	/*
+	 * Page header and slot directory fields read straight from the page bytes;
+	 * the HFPage getters go through Convert, which allocates a stream on every
+	 * call.
+	 */
+	static int slotCount(HFPage page) {
+		return readShort(page.getpage(), HFPage.SLOT_CNT);
+	}
+
+	/**
+	 * @return the node type of a sorted page, given its bytes
+	 */
+	static int pageType(byte[] data) {
+		return readShort(data, HFPage.TYPE);
+	}
+
+	private static int slotLength(byte[] data, int slot) {
+		return readShort(data, slotPosition(slot));
+	}
+
+	static int slotOffset(byte[] data, int slot) {
+		return readShort(data, slotPosition(slot) + 2);
+	}
+
+	private static int readShort(byte[] data, int pos) {
+		return (short) ((data[pos] << 8) | (data[pos + 1] & 0xff));
+	}
+
+	static int readInt(byte[] data, int pos) {
+		return (data[pos] << 24) | ((data[pos + 1] & 0xff) << 16)
+				| ((data[pos + 2] & 0xff) << 8) | (data[pos + 3] & 0xff);
+	}
+
+	static void writeInt(byte[] data, int pos, int value) {
+		data[pos] = (byte) (value >>> 24);
+		data[pos + 1] = (byte) (value >>> 16);
+		data[pos + 2] = (byte) (value >>> 8);
+		data[pos + 3] = (byte) value;
+	}
+
+	/**
+	 * The separator to put into the parent between two neighbouring pages,
+	 * given the last key of the left page and the first key of the right
+	 * one. For string keys this is the shortest prefix of the right key that
+	 * still sorts after the left key, so that index pages hold more entries;
+	 * it is greater than every key on the left page and not greater than any
+	 * key on the right page. Other keys, and keys that are equal, are
+	 * returned as they are.
+	 */
+	static KeyClass separator(KeyClass left, KeyClass right) {
+		if (!(left instanceof StringKey) || !(right instanceof StringKey))
+			return right;
+		String low = ((StringKey) left).getKey();
+		String high = ((StringKey) right).getKey();
+		if (low.compareTo(high) >= 0)
+			return right;
+
+		// the keys first differ right behind their common prefix
+		int common = 0;
+		while (common < low.length()
+				&& low.charAt(common) == high.charAt(common))
+			common++;
+		if (common + 1 >= high.length())
+			return right;
+		return new StringKey(high.substring(0, common + 1));
+	}
+
+	/**
+	 * Copy out the raw record of the given slot.
+	 */
+	static byte[] getRecord(HFPage page, int slot) throws IOException {
+		int length = page.getSlotLength(slot);
+		byte[] record = new byte[length];
+		System.arraycopy(page.getpage(), page.getSlotOffset(slot), record, 0,
+				length);
+		return record;
+	}
+
+	/**
+	 * Insert a record so that it ends up in the given slot, shifting the slots
+	 * behind it up by one.
+	 *
+	 * @return false if the page has no room for the record
+	 */
+	static boolean insertRecordAt(HFPage page, int slot, byte[] record)
+			throws IOException {
+		RID rid = page.insertRecord(record);
+		if (rid == null)
+			return false;
+
+		// move the slot directory entries in between over by one slot
+		int from = rid.slotNo;
+		int length = page.getSlotLength(from);
+		int offset = page.getSlotOffset(from);
+		byte[] data = page.getpage();
+		if (from > slot)
+			System.arraycopy(data, slotPosition(slot), data,
+					slotPosition(slot + 1), (from - slot) * HFPage.SIZE_OF_SLOT);
+		else if (from < slot)
+			System.arraycopy(data, slotPosition(from + 1), data,
+					slotPosition(from), (slot - from) * HFPage.SIZE_OF_SLOT);
+		page.setSlot(slot, length, offset);
+		return true;
+	}
+
+	/**
+	 * @return the record of a <key, rid> leaf entry
+	 */
+	static byte[] leafRecord(KeyClass key, RID rid)
+			throws KeyNotMatchException, NodeNotMatchException,
+			ConvertException {
+		if (!(key instanceof IntegerKey))
+			return BT.getBytesFromEntry(new KeyDataEntry(key, rid));
+		byte[] record = new byte[12];
+		writeInt(record, 0, ((IntegerKey) key).getKey().intValue());
+		writeInt(record, 4, rid.slotNo);
+		writeInt(record, 8, rid.pageNo.pid);
+		return record;
+	}
+
+	/**
+	 * @return the record of a <key, pageid> index entry
+	 */
+	static byte[] indexRecord(KeyClass key, PageId child)
+			throws KeyNotMatchException, NodeNotMatchException,
+			ConvertException {
+		if (!(key instanceof IntegerKey))
+			return BT.getBytesFromEntry(new KeyDataEntry(key, child));
+		byte[] record = new byte[8];
+		writeInt(record, 0, ((IntegerKey) key).getKey().intValue());
+		writeInt(record, 4, child.pid);
+		return record;
+	}
+
+	/**
+	 * Insert a <key, pageid> entry into the given slot of an index page.
+	 *
+	 * @return false if the page has no room for the entry
+	 */
+	static boolean insertKeyAt(BTIndexPage page, int slot, KeyClass key,
+			PageId child) throws IndexInsertRecException {
+		try {
+			return insertRecordAt(page, slot, indexRecord(key, child));
+		} catch (Exception e) {
+			throw new IndexInsertRecException(e, "Insert failed");
+		}
+	}
+
+	/**
+	 * @return the first slot of the upper half of the page by bytes, between 1
+	 *         and the number of slots
+	 */
+	static int splitSlot(HFPage page) throws IOException {
+		int count = page.getSlotCnt();
+		int half = usedSpace(page) / 2;
+		int used = 0, slot = 0;
+		while (slot < count - 1 && used < half) {
+			used += page.getSlotLength(slot) + HFPage.SIZE_OF_SLOT;
+			slot++;
+		}
+		return Math.max(slot, 1);
+	}
+
+	/**
+	 * Move the records in slots [slot, slotCnt) of one page behind the records
+	 * of another page in one pass, keeping their order. The records left on
+	 * the first page are packed again, so both pages stay valid HFPages.
+	 *
+	 * @param from
+	 *            the page giving up its upper slots
+	 * @param slot
+	 *            the first slot to move
+	 * @param to
+	 *            the page receiving them, which must have room for them
+	 */
+	static void moveRecords(HFPage from, int slot, HFPage to)
+			throws IOException {
+		copyRecords(from, slot, to);
+		truncate(from, slot);
+	}
+
+	/**
+	 * Append copies of the records in slots [slot, slotCnt) of one page to
+	 * another page, keeping their order.
+	 */
+	static void copyRecords(HFPage from, int slot, HFPage to)
+			throws IOException {
+		byte[] src = from.getpage();
+		byte[] dst = to.getpage();
+		int count = from.getSlotCnt();
+
+		int toCount = to.getSlotCnt();
+		int toUsed = Convert.getShortValue(HFPage.USED_PTR, dst);
+		int moved = 0;
+		for (int i = slot; i < count; i++) {
+			int length = from.getSlotLength(i);
+			toUsed -= length;
+			System.arraycopy(src, from.getSlotOffset(i), dst, toUsed, length);
+			to.setSlot(toCount++, length, toUsed);
+			moved += length + HFPage.SIZE_OF_SLOT;
+		}
+		setSpace(to, toCount, toUsed, to.available_space()
+				+ HFPage.SIZE_OF_SLOT - moved);
+	}
+
+	/**
+	 * Drop every slot from count on and pack the records that are left at the
+	 * end of the page.
+	 */
+	static void truncate(HFPage page, int count) throws IOException {
+		byte[] data = page.getpage();
+		byte[] old = data.clone();
+		int used = MAX_SPACE;
+		int kept = 0;
+		for (int i = 0; i < count; i++) {
+			int length = page.getSlotLength(i);
+			used -= length;
+			System.arraycopy(old, page.getSlotOffset(i), data, used, length);
+			page.setSlot(i, length, used);
+			kept += length + HFPage.SIZE_OF_SLOT;
+		}
+		setSpace(page, count, used, PAGE_CAPACITY - kept);
+	}
+
+	private static void setSpace(HFPage page, int slotCnt, int usedPtr,
+			int freeSpace) throws IOException {
+		byte[] data = page.getpage();
+		Convert.setShortValue((short) slotCnt, HFPage.SLOT_CNT, data);
+		Convert.setShortValue((short) usedPtr, HFPage.USED_PTR, data);
+		Convert.setShortValue((short) freeSpace, HFPage.FREE_SPACE, data);
+	}
+
+	/**
+	 * @return the offset of the given slot directory entry in the page
+	 */
+	private static int slotPosition(int slot) {
+		return HFPage.DPFIXED + slot * HFPage.SIZE_OF_SLOT;
+	}
+
+	/**
+	 * Remove the record in the given slot, keeping the slot directory dense.
+	 */
+	static void deleteRecordAt(BTSortedPage page, int slot)
+			throws DeleteRecException, IOException {
+		if (!page.deleteSortedRecord(new RID(page.getCurPage(), slot)))
+			throw new DeleteRecException(null, "Delete record failed");
+	}
+}
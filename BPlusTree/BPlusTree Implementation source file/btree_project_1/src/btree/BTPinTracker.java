@@ -0,0 +1,171 @@
+package btree;
+
+import java.util.*;
+
+import global.*;
+
+/**
+ * BTPinTracker.java Bookkeeping for the pin tracking mode of BTreeFile. Every
+ * pin a tracking file takes is remembered with the thread that took it and
+ * the stack it was taken from, until it is let go of again. An operation on
+ * the file must leave no pin of its thread behind, except the leaf it hands
+ * to a scan or cursor, which the scan lets go of by itself and which is no
+ * longer tracked once it is handed over.
+ *
+ * The pins of all tracking files are kept together, so the report shows who
+ * holds which frames of the buffer pool.
+ */
+class BTPinTracker {
+
+	/** Stack frames shown for each pin. */
+	private static final int FRAMES = 8;
+
+	/** The methods of BTreeFile that pin pages for the others. */
+	private static final Set<String> WRAPPERS = new HashSet<String>(Arrays
+			.asList("pinPage", "newLeafPage", "newIndexPage"));
+
+	private static class Pin {
+		final String file;
+
+		final Thread thread;
+
+		final Throwable site;
+
+		Pin(String file) {
+			this.file = file;
+			thread = Thread.currentThread();
+			site = new Throwable();
+		}
+
+		String owner() {
+			return thread.getName() + ", file " + file;
+		}
+	}
+
+	/** Pins held, by page id, the latest last. */
+	private static final Map<Integer, List<Pin>> pins = new HashMap<Integer, List<Pin>>();
+
+	/**
+	 * Remember a pin of the given page taken by the current thread.
+	 */
+	static synchronized void pinned(String file, PageId pageno) {
+		List<Pin> list = pins.get(pageno.pid);
+		if (list == null) {
+			list = new ArrayList<Pin>(1);
+			pins.put(pageno.pid, list);
+		}
+		list.add(new Pin(file));
+	}
+
+	/**
+	 * Forget the latest pin of the given page taken by the current thread, or
+	 * if it has none, the latest one taken by any thread. Pins that were never
+	 * tracked, like that of the header page, are let go of silently.
+	 */
+	static synchronized void unpinned(PageId pageno) {
+		List<Pin> list = pins.get(pageno.pid);
+		if (list == null)
+			return;
+		int i = list.size() - 1;
+		while (i >= 0 && list.get(i).thread != Thread.currentThread())
+			i--;
+		list.remove(i >= 0 ? i : list.size() - 1);
+		if (list.isEmpty())
+			pins.remove(pageno.pid);
+	}
+
+	/**
+	 * Forget every pin of a page that was freed.
+	 */
+	static synchronized void freed(PageId pageno) {
+		pins.remove(pageno.pid);
+	}
+
+	/**
+	 * Check that the current thread holds no pins of the given file, at the
+	 * end of an operation on it. The pins it left behind are forgotten, so
+	 * that they are reported only once. An operation that is throwing (ok is
+	 * false) has them printed to System.err instead, so that its own
+	 * exception is not replaced.
+	 *
+	 * @exception AssertionError
+	 *                the thread holds pins of the file, with where they were
+	 *                taken
+	 */
+	static synchronized void check(String file, String op, boolean ok) {
+		StringBuilder leaks = new StringBuilder();
+		int count = 0;
+		Iterator<Map.Entry<Integer, List<Pin>>> entries = pins.entrySet()
+				.iterator();
+		while (entries.hasNext()) {
+			Map.Entry<Integer, List<Pin>> entry = entries.next();
+			Iterator<Pin> list = entry.getValue().iterator();
+			while (list.hasNext()) {
+				Pin pin = list.next();
+				if (pin.thread == Thread.currentThread()
+						&& pin.file.equals(file)) {
+					describe(leaks, entry.getKey(), pin);
+					list.remove();
+					count++;
+				}
+			}
+			if (entry.getValue().isEmpty())
+				entries.remove();
+		}
+		if (count == 0)
+			return;
+		String message = op + " on " + file + " left " + count
+				+ " page(s) pinned:" + leaks;
+		if (!ok) {
+			System.err.println(message);
+			return;
+		}
+		throw new AssertionError(message);
+	}
+
+	/**
+	 * @param pinnedFrames
+	 *            the number of frames of the buffer pool that are pinned
+	 * @return the frames pinned by tracking files, by owner, with where each
+	 *         pin was taken
+	 */
+	static synchronized String report(int pinnedFrames) {
+		Map<String, StringBuilder> owners = new TreeMap<String, StringBuilder>();
+		Map<String, Set<Integer>> frames = new HashMap<String, Set<Integer>>();
+		for (Map.Entry<Integer, List<Pin>> entry : pins.entrySet()) {
+			for (Pin pin : entry.getValue()) {
+				String owner = pin.owner();
+				if (!owners.containsKey(owner)) {
+					owners.put(owner, new StringBuilder());
+					frames.put(owner, new HashSet<Integer>());
+				}
+				describe(owners.get(owner), entry.getKey(), pin);
+				frames.get(owner).add(entry.getKey());
+			}
+		}
+
+		StringBuilder report = new StringBuilder("pinned frames by owner:");
+		for (Map.Entry<String, StringBuilder> owner : owners.entrySet())
+			report.append("\n  " + owner.getKey() + ": "
+					+ frames.get(owner.getKey()).size() + " frame(s)"
+					+ owner.getValue());
+		report.append("\n  untracked (headers, open scans, other files): "
+				+ Math.max(0, pinnedFrames - pins.size()) + " frame(s)");
+		return report.toString();
+	}
+
+	private static void describe(StringBuilder out, int pid, Pin pin) {
+		out.append("\n    page " + pid + " pinned at");
+		StackTraceElement[] stack = pin.site.getStackTrace();
+		// skip the tracker and the wrappers BTreeFile pins pages through
+		int first = 0;
+		while (first < stack.length
+				&& (stack[first].getClassName().startsWith(
+						BTPinTracker.class.getName()) || stack[first]
+						.getClassName().equals(BTreeFile.class.getName())
+						&& WRAPPERS.contains(stack[first].getMethodName())))
+			first++;
+		for (int i = first; i < stack.length && i < first + FRAMES; i++)
+			out.append("\n      " + stack[i]);
+	}
+}
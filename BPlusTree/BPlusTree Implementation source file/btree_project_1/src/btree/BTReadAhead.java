@@ -0,0 +1,166 @@
+package btree;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import diskmgr.*;
+import global.*;
+import heap.*;
+
+/**
+ * BTReadAhead.java Reads the leaves ahead of a scan into the buffer pool in
+ * the background, so that a scan over pages that are not in the pool finds
+ * them there instead of waiting for one page read per leaf. The reader
+ * follows the nextPage chain from the leaf the scan stands on, pinning each
+ * leaf just long enough to read it in and find the next one.
+ *
+ * The window, the number of leaves read ahead, adapts to the scan: it doubles
+ * whenever the scan gets to a leaf before the reader did, and shrinks again
+ * while the reader stays a full window ahead. It never takes more than a
+ * quarter of the free buffers.
+ *
+ * All scans share one reader thread. It uses the buffer manager at the same
+ * time as the scanning threads, so it may only run where every use of the
+ * buffer manager holds its lock, as in concurrent mode.
+ */
+class BTReadAhead implements GlobalConst {
+
+	private static final int MIN_WINDOW = 2;
+
+	private static final int MAX_WINDOW = 64;
+
+	/** Hits in a row with the reader a full window ahead before it shrinks. */
+	private static final int SHRINK_AFTER = 8;
+
+	private static ExecutorService reader;
+
+	private int window = MIN_WINDOW;
+
+	private int aheadHits;
+
+	/** Leaves read in and not reached by the scan yet, in chain order. */
+	private final LinkedList<Integer> ahead = new LinkedList<Integer>();
+
+	/** The leaf the reader goes on from, the end of `ahead'. */
+	private int last = INVALID_PAGE;
+
+	private boolean reading;
+
+	private boolean closed;
+
+	private static synchronized ExecutorService reader() {
+		if (reader == null) {
+			reader = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "btree-read-ahead");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return reader;
+	}
+
+	/**
+	 * Tell the reader that the scan has entered the given leaf.
+	 */
+	synchronized void entered(int pageno) {
+		if (closed)
+			return;
+
+		if (ahead.contains(pageno)) {
+			while (ahead.removeFirst() != pageno)
+				;
+			if (ahead.size() >= window - 1) {
+				if (++aheadHits >= SHRINK_AFTER && window > MIN_WINDOW) {
+					window--;
+					aheadHits = 0;
+				}
+			} else {
+				aheadHits = 0;
+			}
+		} else {
+			// the scan caught up with the reader, or this is its first leaf;
+			// the reader goes on from here
+			if (last != INVALID_PAGE)
+				window = Math.max(MIN_WINDOW, Math.min(2 * window, Math.min(
+						MAX_WINDOW, SystemDefs.JavabaseBM
+								.getNumUnpinnedBuffers() / 4)));
+			aheadHits = 0;
+			ahead.clear();
+			last = pageno;
+		}
+
+		if (!reading && ahead.size() <= window / 2) {
+			reading = true;
+			final int count = window - ahead.size();
+			reader().execute(new Runnable() {
+				public void run() {
+					readAhead(count);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Stop reading ahead for a scan that is done.
+	 */
+	synchronized void close() {
+		closed = true;
+	}
+
+	/*
+	 * Read in up to count leaves following the end of `ahead' in the chain.
+	 */
+	private void readAhead(int count) {
+		try {
+			int from = INVALID_PAGE;
+			int next = INVALID_PAGE;
+			for (int i = 0; i < count; i++) {
+				int start;
+				synchronized (this) {
+					if (closed)
+						return;
+					start = last;
+				}
+				if (start != from) {
+					// the scan overtook the reader, go on from where it is
+					from = start;
+					next = nextPage(from);
+				}
+				if (next == INVALID_PAGE)
+					return;
+
+				int pageno = next;
+				next = nextPage(pageno);
+				synchronized (this) {
+					if (last != from)
+						continue;
+					ahead.addLast(pageno);
+					last = pageno;
+				}
+				from = pageno;
+			}
+		} catch (Exception e) {
+			// reading ahead is only a hint, the scan reads the page itself
+		} finally {
+			synchronized (this) {
+				reading = false;
+			}
+		}
+	}
+
+	/*
+	 * Pin a leaf, which reads it into the pool, and return its next page.
+	 */
+	private static int nextPage(int pageno) throws Exception {
+		PageId pid = new PageId(pageno);
+		Page page = new Page(BTPageUtil.NO_DATA);
+		BTPageUtil.pin(pid, page);
+		try {
+			return BTPageUtil.readInt(page.getpage(), HFPage.NEXT_PAGE);
+		} finally {
+			BTPageUtil.unpin(pid, false);
+		}
+	}
+}
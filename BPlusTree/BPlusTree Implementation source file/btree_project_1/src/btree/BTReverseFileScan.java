@@ -0,0 +1,107 @@
+package btree;
+
+import java.io.*;
+
+import bufmgr.*;
+import global.*;
+
+/**
+ * BTReverseFileScan.java The scan new_reverse_scan hands out. It starts at
+ * the right-most entry of the range and follows the prevPage links of the
+ * leaves to the left, so the first n entries cost n entries of work however
+ * long the range is. endkey holds the lower end of the range, where the scan
+ * stops.
+ */
+public class BTReverseFileScan extends BTFileScan {
+
+	/**
+	 * Iterate once (during a scan).
+	 *
+	 * @return null if done; otherwise next KeyDataEntry
+	 * @exception ScanIteratorException
+	 *                iterator error
+	 */
+	public KeyDataEntry get_next() throws ScanIteratorException {
+		if (leafPage == null)
+			return null;
+
+		try {
+			// curRid holds the entry returned last, or the one to return next
+			// before the first call and after delete_current
+			int slot = curRid.slotNo;
+			if (didfirst && !deletedcurrent)
+				slot--;
+
+			while (slot < 0) {
+				PageId prevpage = leafPage.getPrevPage();
+				release();
+				if (prevpage.pid == INVALID_PAGE)
+					return null;
+				leafPage = BTPageUtil.pinLeaf(prevpage, keyType);
+				slot = leafPage.getSlotCnt() - 1;
+			}
+
+			if (endkey != null && BTPageUtil.compareKey(leafPage, slot, endkey) < 0) {
+				// went past left end of scan
+				release();
+				return null;
+			}
+
+			curRid.pageNo = leafPage.getCurPage();
+			curRid.slotNo = slot;
+			didfirst = true;
+			deletedcurrent = false;
+			return BTPageUtil.getEntry(leafPage, slot);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ScanIteratorException(e, "get_next failed");
+		}
+	}
+
+	/**
+	 * Delete currently-being-scanned(i.e., just scanned) data entry. As with
+	 * BTFileScan, the scan then goes on from the right-most entry with the
+	 * same key, so duplicates of the key that were already returned come
+	 * again.
+	 *
+	 * @exception ScanDeleteException
+	 *                delete error when scan
+	 */
+	public void delete_current() throws ScanDeleteException {
+		if (leafPage == null)
+			throw new ScanDeleteException(null, "No Record to delete!");
+		if (deletedcurrent || !didfirst)
+			return;
+
+		try {
+			KeyDataEntry entry = BTPageUtil.getEntry(leafPage, curRid.slotNo);
+			release();
+			bfile.Delete(entry.key, ((LeafData) entry.data).getData());
+			leafPage = bfile.findRunEnd(entry.key, curRid);
+			deletedcurrent = true;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ScanDeleteException(e, "delete_current failed");
+		}
+	}
+
+	/*
+	 * Unpin the leaf the scan stands on and end the scan there.
+	 */
+	private void release() throws IOException, PageUnpinnedException,
+			InvalidFrameNumberException, HashEntryNotFoundException,
+			ReplacerException {
+		BTPageUtil.unpin(leafPage.getCurPage(), false);
+		leafPage = null;
+	}
+
+	/**
+	 * Destructor, unpins the leaf the scan stands on.
+	 */
+	public void DestroyBTreeFileScan() throws IOException,
+			InvalidFrameNumberException, ReplacerException,
+			PageUnpinnedException, HashEntryNotFoundException {
+		if (leafPage != null)
+			release();
+	}
+}
@@ -0,0 +1,271 @@
+package btree;
+
+import java.util.*;
+
+import diskmgr.*;
+import global.*;
+
+/**
+ * BTSnapshots.java The old versions of the leaves of a BTreeFile that its
+ * open snapshot scans still need, so that a snapshot reads the leaves as they
+ * were when it was opened while writers go on changing them.
+ *
+ * Every change to a leaf gets the next number of a clock, and a snapshot the
+ * number the clock stood at when it was opened; it sees the changes numbered
+ * up to its own. For every leaf the number of its last change is kept. When a
+ * leaf changes, the image it had before is kept as the version from that
+ * number up to the new one, but only if an open snapshot falls in between.
+ * The writers take that image when they pin a leaf (see pinned), so it costs
+ * a copy of every leaf they pin, and only while snapshots are open.
+ *
+ * A snapshot reads a leaf in the buffer pool if the leaf did not change after
+ * the snapshot was opened, and its kept version otherwise. Pages that are not
+ * leaves are not kept: a snapshot finds its first leaf when it is opened and
+ * goes on by the next page links of the leaves. A page that was freed keeps
+ * the version it had as a leaf; changes to a page after it was freed are
+ * not seen by any snapshot that could reach it, so they need not be numbered.
+ *
+ * Versions go when no snapshot needs them any more, and with the last
+ * snapshot closed everything is dropped, as every snapshot opened after that
+ * sees all changes made before.
+ */
+class BTSnapshots {
+
+	/** An image of a leaf and the clock numbers it was current for. */
+	private static class Version {
+		final byte[] image;
+
+		final long from;
+
+		final long to;
+
+		Version(byte[] image, long from, long to) {
+			this.image = image;
+			this.from = from;
+			this.to = to;
+		}
+	}
+
+	/** A leaf pinned by the current thread and its image before the pin. */
+	private static class Copy {
+		final Page page;
+
+		byte[] image;
+
+		int pins = 1;
+
+		Copy(Page page) {
+			this.page = page;
+			this.image = page.getpage().clone();
+		}
+	}
+
+	private long clock;
+
+	/** The open snapshots by clock number, with how many share a number. */
+	private final TreeMap<Long, Integer> open = new TreeMap<Long, Integer>();
+
+	/** Read without the lock to keep pins cheap while no snapshot is open. */
+	private volatile boolean active;
+
+	/** The number of the last change to each leaf, 0 if none is kept. */
+	private final Map<Integer, Long> lastChange = new HashMap<Integer, Long>();
+
+	private final Map<Integer, List<Version>> versions = new HashMap<Integer, List<Version>>();
+
+	private int kept;
+
+	private final ThreadLocal<Map<Integer, Copy>> copies = new ThreadLocal<Map<Integer, Copy>>() {
+		protected Map<Integer, Copy> initialValue() {
+			return new HashMap<Integer, Copy>();
+		}
+	};
+
+	/**
+	 * Open a snapshot of the changes made so far. In concurrent mode the
+	 * caller holds the tree latch exclusive, so that no change is half done.
+	 *
+	 * @return the clock number of the snapshot
+	 */
+	synchronized long open() {
+		Integer count = open.get(clock);
+		open.put(clock, count == null ? 1 : count + 1);
+		active = true;
+		return clock;
+	}
+
+	/**
+	 * Close a snapshot, dropping the versions no open snapshot needs.
+	 */
+	synchronized void close(long snapshot) {
+		Integer count = open.get(snapshot);
+		if (count == null)
+			return;
+		if (count > 1) {
+			open.put(snapshot, count - 1);
+			return;
+		}
+		open.remove(snapshot);
+		if (open.isEmpty()) {
+			active = false;
+			lastChange.clear();
+			versions.clear();
+			kept = 0;
+			return;
+		}
+		Iterator<List<Version>> lists = versions.values().iterator();
+		while (lists.hasNext()) {
+			List<Version> list = lists.next();
+			Iterator<Version> each = list.iterator();
+			while (each.hasNext()) {
+				Version version = each.next();
+				if (!needed(version.from, version.to)) {
+					each.remove();
+					kept--;
+				}
+			}
+			if (list.isEmpty())
+				lists.remove();
+		}
+	}
+
+	/*
+	 * Whether an open snapshot falls in [from, to).
+	 */
+	private boolean needed(long from, long to) {
+		Long snapshot = open.ceilingKey(from);
+		return snapshot != null && snapshot < to;
+	}
+
+	/**
+	 * Note that the current thread pinned the given page, taking its image if
+	 * it is a leaf and a snapshot is open.
+	 */
+	void pinned(PageId pageno, Page page) {
+		if (!active)
+			return;
+		Map<Integer, Copy> mine = copies.get();
+		Copy copy = mine.get(pageno.pid);
+		if (copy != null) {
+			copy.pins++;
+			return;
+		}
+		if (isLeaf(page.getpage()))
+			mine.put(pageno.pid, new Copy(page));
+	}
+
+	/**
+	 * Take the image of a leaf the current thread pinned again, now that it
+	 * holds the leaf latched exclusive and no other thread can have changed
+	 * it since.
+	 */
+	void latched(PageId pageno) {
+		Copy copy = copies.get().get(pageno.pid);
+		if (copy != null)
+			copy.image = copy.page.getpage().clone();
+	}
+
+	/**
+	 * Note that the current thread unpinned the given page, which it changed
+	 * if dirty is set.
+	 */
+	void unpinned(PageId pageno, boolean dirty) {
+		Map<Integer, Copy> mine = copies.get();
+		Copy copy = mine.get(pageno.pid);
+		if (dirty && (copy != null || active))
+			changed(pageno.pid, copy == null ? null : copy.image);
+		if (copy == null)
+			return;
+		if (--copy.pins == 0)
+			mine.remove(pageno.pid);
+		else if (dirty)
+			copy.image = copy.page.getpage().clone();
+	}
+
+	/**
+	 * Note that the current thread frees the given page, keeping its image if
+	 * it is a leaf a snapshot may still read. The image is taken from the
+	 * page in the pool unless the thread holds it pinned.
+	 */
+	void freed(PageId pageno) throws FreePageException {
+		Map<Integer, Copy> mine = copies.get();
+		Copy copy = mine.remove(pageno.pid);
+		if (copy == null && !active)
+			return;
+		byte[] image = copy == null ? null : copy.image;
+		if (copy == null) {
+			image = read(pageno);
+			if (!isLeaf(image))
+				image = null;
+		}
+		changed(pageno.pid, image);
+	}
+
+	/*
+	 * Number a change to a leaf, keeping the image it had before if an open
+	 * snapshot needs it. A page with no image was new, or not a leaf.
+	 */
+	private synchronized void changed(int pid, byte[] image) {
+		if (open.isEmpty())
+			return;
+		long now = ++clock;
+		Long last = lastChange.get(pid);
+		long from = last == null ? 0 : last;
+		if (image != null && needed(from, now)) {
+			List<Version> list = versions.get(pid);
+			if (list == null) {
+				list = new ArrayList<Version>(2);
+				versions.put(pid, list);
+			}
+			list.add(new Version(image, from, now));
+			kept++;
+		}
+		lastChange.put(pid, now);
+	}
+
+	/**
+	 * @return the image of the given leaf the given snapshot sees, or null if
+	 *         the leaf did not change since and is read in the pool
+	 * @exception IteratorException
+	 *                the leaf changed and no version was kept for the
+	 *                snapshot
+	 */
+	synchronized byte[] version(PageId pageno, long snapshot)
+			throws IteratorException {
+		Long last = lastChange.get(pageno.pid);
+		if (last == null || last <= snapshot)
+			return null;
+		List<Version> list = versions.get(pageno.pid);
+		if (list != null)
+			for (Version version : list)
+				if (version.from <= snapshot && snapshot < version.to)
+					return version.image;
+		throw new IteratorException(null, "no version of page " + pageno.pid
+				+ " for snapshot " + snapshot);
+	}
+
+	/**
+	 * @return the number of leaf versions kept for open snapshots
+	 */
+	synchronized int getVersionCount() {
+		return kept;
+	}
+
+	private static boolean isLeaf(byte[] data) {
+		return BTPageUtil.pageType(data) == NodeType.LEAF;
+	}
+
+	private static byte[] read(PageId pageno) throws FreePageException {
+		Page page = new Page(BTPageUtil.NO_DATA);
+		try {
+			BTPageUtil.pin(pageno, page);
+			try {
+				return page.getpage().clone();
+			} finally {
+				BTPageUtil.unpin(pageno, false);
+			}
+		} catch (Exception e) {
+			throw new FreePageException(e, "");
+		}
+	}
+}
@@ -0,0 +1,144 @@
+package btree;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * BTUpperLevels.java Decoded copies of the index pages on the upper levels of
+ * a tree: all levels but the lowest index level and the leaves. Every descent
+ * goes through these pages, and they change only when a page below them
+ * splits or merges, so a descent can go down them in memory, without pinning
+ * them or searching their records, and pins only the lowest index page and
+ * the leaf.
+ *
+ * A page is decoded the first time a descent passes it, and dropped when it
+ * is changed; the whole cache is dropped when the root changes, since the
+ * number of cached levels depends on the height of the tree.
+ */
+class BTUpperLevels {
+
+	/**
+	 * A decoded index page: its keys, in slot order, and its children, the
+	 * left link first and then the child of every slot.
+	 */
+	static class Node {
+		/** The keys of an integer key page, null for string keys. */
+		private final int[] intKeys;
+
+		private final KeyClass[] keys;
+
+		private final int[] children;
+
+		Node(BTIndexPage page) throws IteratorException, IOException {
+			int count = BTPageUtil.slotCount(page);
+			keys = new KeyClass[count];
+			children = new int[count + 1];
+			children[0] = page.getPrevPage().pid;
+			for (int slot = 0; slot < count; slot++) {
+				KeyDataEntry entry = BTPageUtil.getEntry(page, slot);
+				keys[slot] = entry.key;
+				children[slot + 1] = ((IndexData) entry.data).getData().pid;
+			}
+
+			if (count > 0 && keys[0] instanceof IntegerKey) {
+				intKeys = new int[count];
+				for (int slot = 0; slot < count; slot++)
+					intKeys[slot] = ((IntegerKey) keys[slot]).getKey();
+			} else {
+				intKeys = null;
+			}
+		}
+
+		/**
+		 * @return the child to go down to for the given key: the right-most
+		 *         child whose key is not greater than key if upper is set, the
+		 *         right-most child whose key is less than key otherwise; the
+		 *         right-most or the left-most child if key is null
+		 */
+		int child(KeyClass key, boolean upper) throws KeyNotMatchException {
+			if (key == null)
+				return children[upper ? keys.length : 0];
+			return children[search(key, upper)];
+		}
+
+		/*
+		 * Binary search for the first slot whose key is greater than key (if
+		 * upper is set) or not less than key, as BTPageUtil does on the page.
+		 */
+		private int search(KeyClass key, boolean upper)
+				throws KeyNotMatchException {
+			int low = 0, high = keys.length;
+			if (intKeys != null && key instanceof IntegerKey) {
+				int value = ((IntegerKey) key).getKey();
+				while (low < high) {
+					int mid = (low + high) >>> 1;
+					if (intKeys[mid] < value || (upper && intKeys[mid] == value))
+						low = mid + 1;
+					else
+						high = mid;
+				}
+				return low;
+			}
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				int cmp = BT.keyCompare(keys[mid], key);
+				if (cmp < 0 || (upper && cmp == 0))
+					low = mid + 1;
+				else
+					high = mid;
+			}
+			return low;
+		}
+	}
+
+	private final Map<Integer, Node> nodes = new HashMap<Integer, Node>();
+
+	/** The number of cached levels from the root down, -1 if not known. */
+	private int levels = -1;
+
+	/**
+	 * @return the number of levels from the root down that are cached, -1 if
+	 *         it is not known since the root changed
+	 */
+	int levels() {
+		return levels;
+	}
+
+	/**
+	 * Set the height of the tree, which decides how many levels are cached.
+	 */
+	void setHeight(int height) {
+		levels = Math.max(0, height - 2);
+	}
+
+	/**
+	 * @return the decoded page, null if it is not cached
+	 */
+	Node get(int pid) {
+		return nodes.get(pid);
+	}
+
+	/**
+	 * Decode the given pinned index page and cache it.
+	 */
+	Node put(BTIndexPage page) throws IteratorException, IOException {
+		Node node = new Node(page);
+		nodes.put(page.getCurPage().pid, node);
+		return node;
+	}
+
+	/**
+	 * Drop the given page, which is about to change.
+	 */
+	void invalidate(int pid) {
+		nodes.remove(pid);
+	}
+
+	/**
+	 * Drop every page, after the root changed.
+	 */
+	void clear() {
+		nodes.clear();
+		levels = -1;
+	}
+}
@@ -8,6 +8,9 @@
 package btree;
 
 import java.io.*;
+import java.lang.invoke.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
 
 import diskmgr.*;
 import bufmgr.*;
@@ -22,6 +25,16 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 
 	private final static int MAGIC0 = 1989;
 
+	// where the header page keeps the shape version of the tree, which is
+	// bumped whenever its index pages or right edge change: the slot after the
+	// three BTreeHeaderPage keeps its fields in
+	private final static int SHAPE = HFPage.DPFIXED + 4 * HFPage.SIZE_OF_SLOT;
+
+	// where the header page keeps the first page of the stored Bloom filter:
+	// the slot after SHAPE
+	private final static int FILTER_PAGE = HFPage.DPFIXED + 5
+			* HFPage.SIZE_OF_SLOT;
+
 	private final static String lineSep = System.getProperty("line.separator");
 
 	private static FileOutputStream fos;
@@ -62,6 +75,50 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	private PageId headerPageId;
 	private String dbname;
 
+	// latches for concurrent mode, null if the file is used by one thread
+	private BTLatches latches;
+
+	// whether scans in concurrent mode read the next leaves in ahead
+	private boolean readAhead;
+
+	// pages pinned by this file object since it was opened
+	private final AtomicLong pins = new AtomicLong();
+
+	// whether the pins of the file are tracked, see setPinTracking
+	private boolean pinTracking;
+
+	// decoded upper index levels, null if descents are to pin every level
+	private BTUpperLevels upperLevels = new BTUpperLevels();
+
+	// Bloom filter over the keys, null if the file has none, and whether it
+	// changed since it was stored
+	private volatile BTBloomFilter bloom;
+	private volatile boolean bloomChanged;
+
+	// the log changes are logged to, null if they are not, and what the
+	// operation of each thread changed so far
+	private WriteAheadLog log;
+	private final ThreadLocal<BTLoggedOp> ops = new ThreadLocal<BTLoggedOp>();
+
+	// the leaf versions kept for snapshot scans, null until the first one
+	private volatile BTSnapshots snapshots;
+
+	// page splits done by insert since the file was opened
+	private int leafSplits;
+	private int indexSplits;
+	private long splitNanos;
+
+	// the right-most leaf, the index pages above it from the root down and the
+	// separator key in front of it (null if there is none), for appends; null
+	// until looked up and whenever a split may have moved them
+	private PageId rightLeaf;
+	private List<PageId> rightPath;
+	private KeyClass rightFence;
+
+	// the shape version of the tree (see SHAPE) this handle last saw; another
+	// handle on the file may have moved the pages cached here if it changed
+	private int shape;
+
 	/**
 	 * Access method to data member.
 	 * 
@@ -72,6 +129,281 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 		return headerPage;
 	}
 
+	/**
+	 * Switch concurrent mode on or off. In concurrent mode insert, Delete,
+	 * new_scan and the scans it returns may be called from several threads at
+	 * once: inserts that fit into their leaf run side by side with each other
+	 * and with scans, while an insert that splits pages and every Delete have
+	 * the tree to themselves. Opening, closing, destroying and bulk loading the
+	 * file must still be done by one thread, and the mode may only be changed
+	 * while no other thread uses the file.
+	 * 
+	 * Scans read optimistically and only fall back on latches when a writer
+	 * keeps getting in their way, see BTLatches.
+	 * 
+	 * @param concurrent
+	 *            true to make the file thread safe. Input parameter.
+	 * @exception FreePageException
+	 *                error when free a page left over from concurrent mode
+	 */
+	public void setConcurrent(boolean concurrent) throws FreePageException {
+		if (latches != null) {
+			// no reader is left that could hold them
+			for (PageId pageno : latches.pendingFrees)
+				freePage(pageno);
+		}
+		latches = concurrent ? new BTLatches() : null;
+		if (upperLevels != null)
+			upperLevels.clear();
+	}
+
+	/**
+	 * @return true if the file is in concurrent mode
+	 */
+	public boolean isConcurrent() {
+		return latches != null;
+	}
+
+	/**
+	 * Switch read-ahead for scans on or off. With read-ahead on, a scan that
+	 * enters a leaf has a background thread read the next leaves of the chain
+	 * into the buffer pool, more of them the faster the scan catches up (see
+	 * BTReadAhead). The background thread uses the buffer manager while the
+	 * scan does, so read-ahead is only done by the scans new_scan returns in
+	 * concurrent mode; elsewhere the setting has no effect.
+	 * 
+	 * @param readAhead
+	 *            true to read ahead for scans opened from now on. Input
+	 *            parameter.
+	 */
+	public void setReadAhead(boolean readAhead) {
+		this.readAhead = readAhead;
+	}
+
+	/**
+	 * Switch the cache of the upper tree levels on or off. With the cache on,
+	 * the file keeps decoded copies of the index pages above the lowest index
+	 * level, so that lookups, scans and inserts go down them without pinning
+	 * them and only pin the lowest index page and the leaf (see
+	 * BTUpperLevels). The cache is on by default; it is not used in concurrent
+	 * mode.
+	 * 
+	 * @param cache
+	 *            true to cache the upper levels. Input parameter.
+	 */
+	public void setUpperLevelCache(boolean cache) {
+		upperLevels = cache ? new BTUpperLevels() : null;
+	}
+
+	/**
+	 * Give the file a Bloom filter over its keys, or take it away. With a
+	 * filter, lookup and lookupFirst answer most lookups of keys the file
+	 * does not hold without pinning a page of the tree (see BTBloomFilter).
+	 * The filter is built from the leaves, kept up to date by insert, and
+	 * built anew when it has grown past its size or many of its keys were
+	 * deleted. close stores it in pages of its own, which the header page
+	 * points to, and opening the file loads it again.
+	 * 
+	 * @param filter
+	 *            true to keep a Bloom filter. Input parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 * @exception FreePageException
+	 *                error when free the pages of a stored filter
+	 */
+	public void setBloomFilter(boolean filter) throws IOException,
+			IteratorException, KeyNotMatchException, ConstructPageException,
+			PinPageException, UnpinPageException, FreePageException {
+		boolean ok = false;
+		try {
+			if (filter && bloom == null) {
+				buildFilter();
+			} else if (!filter) {
+				bloom = null;
+				beginOp(true);
+				boolean freed = false;
+				try {
+					freeFilterPages();
+					freed = true;
+				} finally {
+					finishOp(freed);
+				}
+			}
+			ok = true;
+		} finally {
+			checkPins("setBloomFilter", ok);
+		}
+	}
+
+	/**
+	 * @return true if the file keeps a Bloom filter over its keys
+	 */
+	public boolean hasBloomFilter() {
+		return bloom != null;
+	}
+
+	/**
+	 * Log the changes to the file from now on, or stop logging them. With a
+	 * log, insert, Delete, bulkLoad, setBloomFilter and close log the pages
+	 * they changed, the header page and the pages of the space map among
+	 * them, as one record of page images, and return once the record is on
+	 * disk (see WriteAheadLog). Until then the pages stay pinned, so none of
+	 * them is written before its record; pages freed are freed once the record
+	 * is logged. Bulk loads and Bloom filters being stored fill new pages,
+	 * which are logged one by one as they are filled instead.
+	 * 
+	 * After a crash, WriteAheadLog.redo brings the pages back to their state
+	 * after the last operation whose record reached the disk; checkpoints of
+	 * the log keep the part of it redo reads short. Creating and destroying
+	 * the file are not logged; the file should be created and the buffer pool
+	 * flushed before logging starts. Several files may share a log, and in
+	 * concurrent mode the threads committing together share the writes of the
+	 * log. The log may only be changed while no other thread uses the file.
+	 * 
+	 * @param log
+	 *            the log, null to stop logging. Input parameter.
+	 */
+	public void setLog(WriteAheadLog log) {
+		this.log = log;
+	}
+
+	/**
+	 * Switch pin tracking on or off, for finding pin leaks. While it is on,
+	 * every pin the file takes is remembered with the stack it was taken from,
+	 * and every public operation on the file checks on its way out that it
+	 * left no page pinned, but for the leaf a scan or cursor starts on. An
+	 * operation that did fails with an AssertionError telling where the pages
+	 * were pinned. Tracking slows the file down and is meant for debugging.
+	 * 
+	 * @param pinTracking
+	 *            true to track the pins of the file from now on. Input
+	 *            parameter.
+	 * @see #pinReport()
+	 */
+	public void setPinTracking(boolean pinTracking) {
+		this.pinTracking = pinTracking;
+	}
+
+	/**
+	 * @return the frames of the buffer pool pinned by files with pin tracking
+	 *         on, by thread and file, with the stacks the pins were taken from,
+	 *         and the number of frames pinned otherwise
+	 */
+	public static String pinReport() {
+		BufMgr bm = SystemDefs.JavabaseBM;
+		return BTPinTracker.report(bm.getNumBuffers()
+				- bm.getNumUnpinnedBuffers());
+	}
+
+	/*
+	 * Check that the current thread left no page of the file pinned at the
+	 * end of the given public operation; ok is false if the operation is
+	 * throwing, and then pins left behind are only reported.
+	 */
+	private void checkPins(String op, boolean ok) {
+		if (pinTracking)
+			BTPinTracker.check(dbname, op, ok);
+	}
+
+	/*
+	 * Stop tracking the pin of a leaf that is handed to a scan or cursor,
+	 * which unpins it by itself.
+	 */
+	private BTLeafPage handOver(BTLeafPage leaf) throws IOException {
+		if (pinTracking && leaf != null)
+			BTPinTracker.unpinned(leaf.getCurPage());
+		if (snapshots != null && leaf != null)
+			snapshots.unpinned(leaf.getCurPage(), false);
+		return leaf;
+	}
+
+	/**
+	 * @return the number of times an existing page of the file was pinned
+	 *         since the file was opened
+	 */
+	public long getPinCount() {
+		return pins.get();
+	}
+
+	/**
+	 * @return the number of leaf pages split by insert since the file was
+	 *         opened
+	 */
+	public int getLeafSplits() {
+		return leafSplits;
+	}
+
+	/**
+	 * @return the number of index pages split by insert since the file was
+	 *         opened
+	 */
+	public int getIndexSplits() {
+		return indexSplits;
+	}
+
+	/**
+	 * @return the time spent splitting leaf and index pages since the file was
+	 *         opened, in nanoseconds
+	 */
+	public long getSplitNanos() {
+		return splitNanos;
+	}
+
+	/**
+	 * Count the levels of the tree by following the left-most path down from
+	 * the root.
+	 * 
+	 * @return the number of pages on a root to leaf path, 0 for an empty tree
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public int getHeight() throws PinPageException, UnpinPageException,
+			IOException {
+		if (latches != null)
+			latches.lockTreeShared();
+		boolean ok = false;
+		try {
+			int height = height();
+			ok = true;
+			return height;
+		} finally {
+			if (latches != null)
+				latches.unlockTreeShared();
+			checkPins("getHeight", ok);
+		}
+	}
+
+	private int height() throws PinPageException, UnpinPageException,
+			IOException {
+		int height = 0;
+		PageId pageno = headerPage.get_rootId();
+		while (pageno.pid != INVALID_PAGE) {
+			BTSortedPage sortPage = new BTSortedPage(pinPage(pageno),
+					headerPage.get_keyType());
+			height++;
+			PageId child = new PageId(INVALID_PAGE);
+			if (sortPage.getType() == NodeType.INDEX)
+				child = sortPage.getPrevPage();
+			unpinPage(pageno);
+			pageno = child;
+		}
+		return height;
+	}
+
 	private PageId get_file_entry(String filename) throws GetFileEntryException {
 		try {
 			return SystemDefs.JavabaseDB.get_file_entry(filename);
@@ -83,8 +415,15 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 
 	private Page pinPage(PageId pageno) throws PinPageException {
 		try {
-			Page page = new Page();
-			SystemDefs.JavabaseBM.pinPage(pageno, page, false/* Rdisk */);
+			Page page = new Page(BTPageUtil.NO_DATA);
+			BTPageUtil.pin(pageno, page);
+			pins.incrementAndGet();
+			if (pinTracking)
+				BTPinTracker.pinned(dbname, pageno);
+			if (log != null && ops.get() != null)
+				ops.get().pages.put(pageno.pid, page);
+			if (snapshots != null)
+				snapshots.pinned(pageno, page);
 			return page;
 		} catch (Exception e) {
 			e.printStackTrace();
@@ -103,8 +442,12 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	}
 
 	private void unpinPage(PageId pageno) throws UnpinPageException {
+		if (snapshots != null)
+			snapshots.unpinned(pageno, false);
 		try {
-			SystemDefs.JavabaseBM.unpinPage(pageno, false /* = not DIRTY */);
+			BTPageUtil.unpin(pageno, false /* = not DIRTY */);
+			if (pinTracking)
+				BTPinTracker.unpinned(pageno);
 		} catch (Exception e) {
 			e.printStackTrace();
 			throw new UnpinPageException(e, "");
@@ -112,8 +455,24 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	}
 
 	private void freePage(PageId pageno) throws FreePageException {
+		if (snapshots != null)
+			snapshots.freed(pageno);
+		BTLoggedOp op = log == null ? null : ops.get();
+		if (op != null) {
+			// the tree on disk may point to the page until the record is logged
+			op.frees.add(new PageId(pageno.pid));
+			if (pinTracking)
+				BTPinTracker.freed(pageno);
+			return;
+		}
 		try {
-			SystemDefs.JavabaseBM.freePage(pageno);
+			if (latches == null) {
+				BTPageUtil.freePage(pageno);
+			} else if (!tryFreePage(pageno)) {
+				latches.pendingFrees.add(new PageId(pageno.pid));
+			}
+			if (pinTracking)
+				BTPinTracker.freed(pageno);
 		} catch (Exception e) {
 			e.printStackTrace();
 			throw new FreePageException(e, "");
@@ -121,6 +480,42 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 
 	}
 
+	/*
+	 * Free a page unless an optimistic reader holds it pinned. The buffer
+	 * manager frees a page pinned once by unpinning it, which would take the
+	 * pin away from the reader, so the page is pinned here first and freePage
+	 * only goes ahead if that is the one pin left.
+	 */
+	private boolean tryFreePage(PageId pageno) throws Exception {
+		BTPageUtil.pin(pageno, new Page());
+		try {
+			BTPageUtil.freePage(pageno);
+			return true;
+		} catch (ReplacerException e) {
+			// freePage reports a page pinned more than once this way
+			if (!(e.prev instanceof PagePinnedException))
+				throw e;
+			BTPageUtil.unpin(pageno, false);
+			return false;
+		}
+	}
+
+	/*
+	 * Free the pages readers held on to when they were let go of, as far as
+	 * they are not held any more. Called with the tree latch held exclusive.
+	 */
+	private void freePending() throws FreePageException {
+		try {
+			Iterator<PageId> pending = latches.pendingFrees.iterator();
+			while (pending.hasNext())
+				if (tryFreePage(pending.next()))
+					pending.remove();
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new FreePageException(e, "");
+		}
+	}
+
 	private void delete_file_entry(String filename)
 			throws DeleteFileEntryException {
 		try {
@@ -133,14 +528,75 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 
 	private void unpinPage(PageId pageno, boolean dirty)
 			throws UnpinPageException {
+		// a snapshot may need the leaf as it was, which is kept before the
+		// change can be logged or the leaf let go of
+		if (snapshots != null)
+			snapshots.unpinned(pageno, dirty);
+		BTLoggedOp op = log == null || !dirty ? null : ops.get();
+		if (op != null && op.holdPins) {
+			op.changed.add(pageno.pid);
+			op.held.add(new PageId(pageno.pid));
+			if (pinTracking)
+				BTPinTracker.unpinned(pageno);
+			return;
+		}
+		if (op != null) {
+			// a new page, which nothing on disk points to yet
+			op.changed.remove(pageno.pid);
+			log.logPages(1, new int[] { pageno.pid },
+					new byte[][] { op.pages.get(pageno.pid).getpage() });
+		}
 		try {
-			SystemDefs.JavabaseBM.unpinPage(pageno, dirty);
+			BTPageUtil.unpin(pageno, dirty);
+			if (pinTracking)
+				BTPinTracker.unpinned(pageno);
 		} catch (Exception e) {
 			e.printStackTrace();
 			throw new UnpinPageException(e, "");
 		}
 	}
 
+	/*
+	 * Allocate a new leaf or index page, which comes back pinned. All buffer
+	 * manager calls of the file go through these wrappers, which take turns
+	 * on the buffer manager since it is not thread safe.
+	 */
+	private BTLeafPage newLeafPage() throws ConstructPageException,
+			IOException {
+		BTLeafPage page = BTPageUtil.newLeaf(headerPage.get_keyType());
+		if (pinTracking)
+			BTPinTracker.pinned(dbname, page.getCurPage());
+		if (log != null && ops.get() != null)
+			ops.get().allocated(page.getCurPage(), page);
+		return page;
+	}
+
+	private PageId newPage(Page page) throws ConstructPageException {
+		PageId pageno;
+		try {
+			pageno = BTPageUtil.newPage(page);
+		} catch (Exception e) {
+			throw new ConstructPageException(e, "new page failed");
+		}
+		if (pageno == null)
+			throw new ConstructPageException(null, "new page failed");
+		if (pinTracking)
+			BTPinTracker.pinned(dbname, pageno);
+		if (log != null && ops.get() != null)
+			ops.get().allocated(pageno, page);
+		return pageno;
+	}
+
+	private BTIndexPage newIndexPage() throws ConstructPageException,
+			IOException {
+		BTIndexPage page = BTPageUtil.newIndex(headerPage.get_keyType());
+		if (pinTracking)
+			BTPinTracker.pinned(dbname, page.getCurPage());
+		if (log != null && ops.get() != null)
+			ops.get().allocated(page.getCurPage(), page);
+		return page;
+	}
+
 	/**
 	 * BTreeFile class an index file with given filename should already exist;
 	 * this opens it.
@@ -155,12 +611,15 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	 *                BT page constructor failed
 	 */
 	public BTreeFile(String filename) throws GetFileEntryException,
-			PinPageException, ConstructPageException {
+			PinPageException, ConstructPageException, UnpinPageException,
+			IOException {
 
 		headerPageId = get_file_entry(filename);
 
-		headerPage = new BTreeHeaderPage(headerPageId);
+		headerPage = BTPageUtil.pinHeader(headerPageId);
 		dbname = new String(filename);
+		shape = Convert.getIntValue(SHAPE, headerPage.getpage());
+		loadFilter();
 		/*
 		 * 
 		 * - headerPageId is the PageId of this BTreeFile's header page; -
@@ -197,7 +656,7 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 		headerPageId = get_file_entry(filename);
 		if (headerPageId == null) // file not exist
 		{
-			headerPage = new BTreeHeaderPage();
+			headerPage = BTPageUtil.newHeader();
 			headerPageId = headerPage.getPageId();
 			add_file_entry(filename, headerPageId);
 			headerPage.set_magic0(MAGIC0);
@@ -206,12 +665,22 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			headerPage.set_maxKeySize(keysize);
 			headerPage.set_deleteFashion(delete_fashion);
 			headerPage.setType(NodeType.BTHEAD);
+			Convert.setIntValue(shape, SHAPE, headerPage.getpage());
+			BTPageUtil.writeInt(headerPage.getpage(), FILTER_PAGE, INVALID_PAGE);
+			dbname = new String(filename);
 		} else {
-			headerPage = new BTreeHeaderPage(headerPageId);
+			headerPage = BTPageUtil.pinHeader(headerPageId);
+			dbname = new String(filename);
+			shape = Convert.getIntValue(SHAPE, headerPage.getpage());
+			try {
+				loadFilter();
+			} catch (PinPageException e) {
+				throw new ConstructPageException(e, "");
+			} catch (UnpinPageException e) {
+				throw new ConstructPageException(e, "");
+			}
 		}
 
-		dbname = new String(filename);
-
 	}
 
 	/**
@@ -228,9 +697,20 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	 */
 	public void close() throws PageUnpinnedException,
 			InvalidFrameNumberException, HashEntryNotFoundException,
-			ReplacerException {
+			ReplacerException, IOException, ConstructPageException,
+			PinPageException, UnpinPageException, FreePageException {
 		if (headerPage != null) {
-			SystemDefs.JavabaseBM.unpinPage(headerPageId, true);
+			if (bloom != null && bloomChanged) {
+				beginOp(false);
+				boolean ok = false;
+				try {
+					storeFilter();
+					ok = true;
+				} finally {
+					finishOp(ok);
+				}
+			}
+			BTPageUtil.unpin(headerPageId, true);
 			headerPage = null;
 		}
 	}
@@ -257,13 +737,23 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			UnpinPageException, FreePageException, DeleteFileEntryException,
 			ConstructPageException, PinPageException {
 		if (headerPage != null) {
-			PageId pgId = headerPage.get_rootId();
-			if (pgId.pid != INVALID_PAGE)
-				_destroyFile(pgId);
-			unpinPage(headerPageId);
-			freePage(headerPageId);
-			delete_file_entry(dbname);
-			headerPage = null;
+			boolean ok = false;
+			try {
+				PageId pgId = headerPage.get_rootId();
+				if (pgId.pid != INVALID_PAGE)
+					_destroyFile(pgId);
+				bloom = null;
+				freeFilterPages();
+				unpinPage(headerPageId);
+				freePage(headerPageId);
+				delete_file_entry(dbname);
+				headerPage = null;
+				if (upperLevels != null)
+					upperLevels.clear();
+				ok = true;
+			} finally {
+				checkPins("destroyFile", ok);
+			}
 		}
 	}
 
@@ -281,17 +771,18 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			RID rid = new RID();
 			PageId childId;
 			KeyDataEntry entry;
+			// the left link is a child too
+			_destroyFile(indexPage.getPrevPage());
 			for (entry = indexPage.getFirst(rid); entry != null; entry = indexPage
 					.getNext(rid)) {
 				childId = ((IndexData) (entry.data)).getData();
 				_destroyFile(childId);
 			}
-		} else { // BTLeafPage
-
-			unpinPage(pageno);
-			freePage(pageno);
 		}
 
+		unpinPage(pageno);
+		freePage(pageno);
+
 	}
 
 	private void updateHeader(PageId newRoot) throws IOException,
@@ -302,6 +793,11 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 
 		header = new BTreeHeaderPage(pinPage(headerPageId));
 
+		// the height of the tree may have changed
+		if (upperLevels != null)
+			upperLevels.clear();
+		shapeChanged();
+
 		old_data = headerPage.get_rootId();
 		header.set_rootId(newRoot);
 
@@ -359,6 +855,63 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			IteratorException, LeafDeleteException, InsertException,
 			IOException
 
+	{
+		beginOp(true);
+		boolean ok = false;
+		try {
+			try {
+				if (latches == null) {
+					insertEntry(key, rid);
+					inserted(key, true);
+					ok = true;
+					return;
+				}
+
+				// most inserts change a single leaf, which other threads can go
+				// on reading and changing other leaves meanwhile
+				latches.lockTreeShared();
+				try {
+					if (insertIntoLeaf(key, rid)) {
+						// no filter is built without the tree exclusive
+						inserted(key, false);
+						ok = true;
+						return;
+					}
+				} finally {
+					latches.unlockTreeShared();
+				}
+
+				latches.lockTreeExclusive();
+				try {
+					insertEntry(key, rid);
+					inserted(key, true);
+					logOp();
+					ok = true;
+				} finally {
+					latches.unlockTreeExclusive();
+				}
+			} finally {
+				// the record is waited for with no latch held, so that other
+				// threads can log theirs meanwhile and commit together
+				try {
+					finishOp(ok);
+				} finally {
+					checkPins("insert", ok);
+				}
+			}
+		} catch (FreePageException e) {
+			// logging frees the pages an operation freed, and inserts free none
+			throw new InsertException(e, "");
+		}
+	}
+
+	private void insertEntry(KeyClass key, RID rid)
+			throws LeafInsertRecException, IndexInsertRecException,
+			ConstructPageException, UnpinPageException, PinPageException,
+			KeyNotMatchException, NodeNotMatchException, ConvertException,
+			DeleteRecException, IndexSearchException, IteratorException,
+			LeafDeleteException, InsertException, IOException
+
 	{
 	
 		//Checking id the header page exist or invalid
@@ -367,20 +920,17 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			BTLeafPage root;   
 			PageId rootID, emptyID = null;
 			//Creating root page
-			root = new BTLeafPage(headerPage.get_keyType());
+			root = newLeafPage();
 			//Getting the Page ID for root
 			rootID = root.getCurPage();   
 			//emptyID.pid = INVALID_PAGE;
-			
-			//pinnning the page
-			pinPage(rootID);
+			//(the new page comes back pinned from the constructor)
 			
 			//Set prev pointer and next pointer to null
 			root.setNextPage(new PageId(-1));
 			root.setPrevPage(new PageId(-1));  
 			
 			root.insertRecord(key, rid);      //Inserting the page into the index
-			System.out.println(key);
 			
 			//headerPage.set_rootId(rootID);     //Pointing the header page to the new root
 			updateHeader(rootID);
@@ -388,33 +938,240 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			//unpinning the page
 			unpinPage(rootID, true);
 			
-		}else{
+		}else if(!appendInsert(key, rid)){
 			//Root Page already present. Creating new Leaf or Index pages
 			
 			KeyDataEntry keyDataEntry = null;
+			int splits = leafSplits + indexSplits;
+			
+			//Go down the cached levels without pinning them
+			List<PageId> path = new ArrayList<PageId>();
+			PageId start = descendCached(key, true, path);
 			
 			try {
-				keyDataEntry = _insert(key,rid, headerPage.get_rootId());
+				keyDataEntry = _insert(key,rid, start);
 			} catch (InvalidSlotNumberException e) {
 				e.printStackTrace();
 			} 
+			
+			//A split below the cached levels moves up through them
+			for (int level = path.size() - 1; keyDataEntry != null && level >= 0; level--) {
+				BTIndexPage index = new BTIndexPage(pinPage(path.get(level)),
+						headerPage.get_keyType());
+				keyDataEntry = insertIndexEntry(index, keyDataEntry, false);
+			}
+			
 			//In Case Split has occured
 			if(keyDataEntry!=null){
 				
 				//The leaf nodes have been split. So it has to be updated in Index.
-				//Paased as <key,pageid>
-				BTIndexPage newIndexPage = new BTIndexPage(NodeType.INDEX); //Creating Index Page
-				//Insert Record in Index Page
-				IndexData idata = (IndexData) keyDataEntry.data;
-				newIndexPage.insertKey(keyDataEntry.key, idata.getData());
-				
-				//old root split and become left child of new root
-				newIndexPage.setPrevPage(headerPage.get_rootId());
-				//unpin page the new root using page id 
-				unpinPage(newIndexPage.getCurPage(), true);
-				//updating the new header to new root
-				updateHeader(newIndexPage.getCurPage());		
+				growRoot(keyDataEntry);
+			}
+			
+			//A split may have moved the pages on the right edge
+			if(leafSplits + indexSplits != splits)
+				rightLeaf = null;
+		}
+	}
+
+	/*
+	 * Insert <key, rid> into its leaf if it fits there, while the tree latch
+	 * is held shared, latching the leaf exclusive. Returns false if the tree is
+	 * empty or the leaf is full, so that the insert has to change the shape of
+	 * the tree.
+	 */
+	private boolean insertIntoLeaf(KeyClass key, RID rid)
+			throws LeafInsertRecException, ConstructPageException,
+			UnpinPageException, PinPageException, KeyNotMatchException,
+			NodeNotMatchException, ConvertException, IteratorException,
+			FreePageException, IOException {
+
+		PageId rootId = headerPage.get_rootId();
+		if (rootId.pid == INVALID_PAGE)
+			return false;
+
+		checkShape();
+		BTLeafPage leaf;
+		if (rightLeaf != null
+				&& (rightFence == null || BT.keyCompare(key, rightFence) >= 0))
+			leaf = new BTLeafPage(pinPage(rightLeaf), headerPage.get_keyType());
+		else
+			leaf = findLeaf(rootId, key);
+
+		PageId leafId = leaf.getCurPage();
+		latches.lockExclusive(leafId);
+		try {
+			if (snapshots != null)
+				snapshots.latched(leafId);
+			if (leaf.available_space() < BT.getKeyDataLength(key, NodeType.LEAF)) {
+				unpinPage(leafId);
+				return false;
 			}
+			if (!BTPageUtil.insertRecordAt(leaf, BTPageUtil.upperBound(leaf, key),
+					BTPageUtil.leafRecord(key, rid)))
+				throw new LeafInsertRecException(null, "Insert failed");
+			unpinPage(leafId, true);
+			// the image of the leaf is taken while no other thread changes it
+			logOp();
+			return true;
+		} finally {
+			latches.unlockExclusive(leafId);
+		}
+	}
+
+	/*
+	 * Go down from the given page to the leaf an entry with the given key is
+	 * inserted into, which is returned pinned: on every level the right-most
+	 * child whose key is not greater than key.
+	 */
+	private BTLeafPage findLeaf(PageId pageno, KeyClass key)
+			throws ConstructPageException, UnpinPageException,
+			PinPageException, KeyNotMatchException, IteratorException,
+			IOException {
+		Page page = pinPage(pageno);
+		BTSortedPage sortPage = new BTSortedPage(page, headerPage.get_keyType());
+		while (sortPage.getType() == NodeType.INDEX) {
+			BTIndexPage index = new BTIndexPage(page, headerPage.get_keyType());
+			PageId child = BTPageUtil.getChild(index,
+					BTPageUtil.upperBound(index, key) - 1);
+			unpinPage(pageno);
+
+			pageno = child;
+			page = pinPage(pageno);
+			sortPage = new BTSortedPage(page, headerPage.get_keyType());
+		}
+		return new BTLeafPage(page, headerPage.get_keyType());
+	}
+
+	/*
+	 * Put a new index page holding the single <key, pageid> entry on top of
+	 * the current root, which becomes its left link. Returns the new root.
+	 */
+	private PageId growRoot(KeyDataEntry keyDataEntry)
+			throws ConstructPageException, IndexInsertRecException,
+			UnpinPageException, PinPageException, IOException {
+		
+		//Paased as <key,pageid>
+		BTIndexPage newIndexPage = newIndexPage(); //Creating Index Page
+		PageId newRootID = newIndexPage.getCurPage();
+		//Insert Record in Index Page
+		IndexData idata = (IndexData) keyDataEntry.data;
+		newIndexPage.insertKey(keyDataEntry.key, idata.getData());
+		
+		//old root split and become left child of new root
+		newIndexPage.setPrevPage(headerPage.get_rootId());
+		//unpin page the new root using page id 
+		unpinPage(newRootID, true);
+		//updating the new header to new root
+		updateHeader(newRootID);
+		return newRootID;
+	}
+
+	/*
+	 * Fast path for keys that go into the right-most leaf, which is what
+	 * monotonically increasing keys always do. The right-most leaf, the index
+	 * pages above it and the smallest key it may hold are remembered, so such
+	 * a key is inserted without a descent from the root, pinning just the leaf
+	 * unless it splits. A key at or past the end of the full leaf starts a new
+	 * leaf on its own, and a full index page above it gives up only its last
+	 * entry, so pages left behind on the right edge stay (all but) full
+	 * instead of half full. Returns false if the key does not belong to the
+	 * right-most leaf.
+	 */
+	private boolean appendInsert(KeyClass key, RID rid)
+			throws LeafInsertRecException, IndexInsertRecException,
+			ConstructPageException, UnpinPageException, PinPageException,
+			KeyNotMatchException, NodeNotMatchException, ConvertException,
+			IteratorException, IOException {
+
+		checkShape();
+		if (rightLeaf == null)
+			findRightEdge();
+		if (rightFence != null && BT.keyCompare(key, rightFence) < 0)
+			return false;
+
+		BTLeafPage leaf = new BTLeafPage(pinPage(rightLeaf),
+				headerPage.get_keyType());
+		int slot = BTPageUtil.upperBound(leaf, key);
+		if (leaf.available_space() >= BT.getKeyDataLength(key, NodeType.LEAF)) {
+			if (!BTPageUtil.insertRecordAt(leaf, slot,
+					BTPageUtil.leafRecord(key, rid)))
+				throw new LeafInsertRecException(null, "Insert failed");
+			unpinPage(rightLeaf, true);
+			return true;
+		}
+
+		KeyDataEntry moveUp = splitLeaf(leaf, key, rid,
+				slot == leaf.getSlotCnt());
+		rightLeaf = ((IndexData) moveUp.data).getData();
+		rightFence = moveUp.key;
+
+		// the new pages are the right-most ones on their level
+		for (int level = rightPath.size() - 1; moveUp != null && level >= 0; level--) {
+			PageId pageno = rightPath.get(level);
+			BTIndexPage index = new BTIndexPage(pinPage(pageno),
+					headerPage.get_keyType());
+			moveUp = insertIndexEntry(index, moveUp, true);
+			if (moveUp != null)
+				rightPath.set(level, ((IndexData) moveUp.data).getData());
+		}
+		if (moveUp != null)
+			rightPath.add(0, growRoot(moveUp));
+		return true;
+	}
+
+	/*
+	 * Walk down the right edge of the tree to find the right-most leaf, the
+	 * index pages above it and the separator key in front of it.
+	 */
+	private void findRightEdge() throws PinPageException, UnpinPageException,
+			ConstructPageException, IteratorException, IOException {
+		rightPath = new ArrayList<PageId>();
+		rightFence = null;
+
+		PageId pageno = new PageId(headerPage.get_rootId().pid);
+		BTSortedPage sortPage = new BTSortedPage(pinPage(pageno),
+				headerPage.get_keyType());
+		while (sortPage.getType() == NodeType.INDEX) {
+			BTIndexPage index = new BTIndexPage(sortPage,
+					headerPage.get_keyType());
+			int last = index.getSlotCnt() - 1;
+			if (last >= 0)
+				rightFence = BTPageUtil.getEntry(index, last).key;
+			PageId child = new PageId(BTPageUtil.getChild(index, last).pid);
+			unpinPage(pageno);
+
+			rightPath.add(pageno);
+			pageno = child;
+			sortPage = new BTSortedPage(pinPage(pageno),
+					headerPage.get_keyType());
+		}
+		unpinPage(pageno);
+		rightLeaf = pageno;
+	}
+
+	/*
+	 * Bump the shape version in the header page, after a change to the index
+	 * pages or the right edge of the tree that other handles on the file may
+	 * have cached. This handle keeps its caches up to date itself.
+	 */
+	private void shapeChanged() throws IOException {
+		shape = Convert.getIntValue(SHAPE, headerPage.getpage()) + 1;
+		Convert.setIntValue(shape, SHAPE, headerPage.getpage());
+		headerChanged();
+	}
+
+	/*
+	 * Drop the cached right edge and upper index levels if another handle on
+	 * the file changed the shape of the tree since this one last looked.
+	 */
+	private void checkShape() throws IOException {
+		int now = Convert.getIntValue(SHAPE, headerPage.getpage());
+		if (now != shape) {
+			rightLeaf = null;
+			if (upperLevels != null)
+				upperLevels.clear();
+			shape = now;
 		}
 	}
 
@@ -429,18 +1186,22 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 		
 		// remove the return statement and start your code.
 		//Using Sorted page since it is base class for Leaf and Index Page
-		BTSortedPage newBasePage =  new BTSortedPage(currentPageId, headerPage.get_keyType());  
+		Page page = pinPage(currentPageId);
+		BTSortedPage newBasePage =  new BTSortedPage(page, headerPage.get_keyType());  
 		
 		if(newBasePage.getType() == NodeType.LEAF){
 			
-			BTLeafPage newLeaf = new BTLeafPage(currentPageId, headerPage.get_keyType());
+			BTLeafPage newLeaf = new BTLeafPage(page, headerPage.get_keyType());
 						
 			//checking available space in the current leaf page
 			if(newLeaf.available_space() >= BT.getKeyDataLength(key, newLeaf.getType())){
 				
 				// There is space to insert record into the leaf page.
 				
-				newLeaf.insertRecord(key,rid);
+				//Binary search for the slot, behind any duplicates of the key
+				if(!BTPageUtil.insertRecordAt(newLeaf, BTPageUtil.upperBound(newLeaf, key),
+						BTPageUtil.leafRecord(key, rid)))
+					throw new LeafInsertRecException(null, "Insert failed");
 				
 				unpinPage(newLeaf.getCurPage(), true); //Unpinning the Page after insert
 				//System.out.println(key +"  "+ newLeaf.available_space());
@@ -451,182 +1212,359 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 				// The current leaf node is full. 
 				// Now split the page into two new leaf nodes, 
 				// and move the first entry of new leaf into index
-				
-				BTLeafPage newSplitLeaf = new BTLeafPage(headerPage.get_keyType());
-				PageId newSplitLeafID = newSplitLeaf.getCurPage();
-				
-				newSplitLeaf.setNextPage(newLeaf.getNextPage());  //Nextpage points to the nextpage of old leaf
-				newLeaf.setNextPage(newSplitLeafID);             //Old leaf nextpage points to new leaf
-				newSplitLeaf.setPrevPage(newLeaf.getCurPage());  //Previous page of new leaf points to old leaf
-				
-				
-				KeyDataEntry temp = null, lastTemp = null;
-				RID delRid = new RID();
-				
-				System.out.println(newLeaf.getFirst(delRid).data);
-				
-                int ctr=0; //counter
-				
-				//Count the records in the leaf page
-				for(temp = newLeaf.getFirst(delRid); temp!=null; temp = newLeaf.getNext(delRid)){
-					//increment counter
-					ctr++;
-				}
-				System.out.println("No of records in old leaf = " + ctr);
-				
-				temp = newLeaf.getFirst(delRid); //Get first entry in the old leaf
-				
-				//Divide the counter into half and copy the second half of records into second Leaf Page
-				for(int i=1;i<=ctr;i++){
-										
-					if(i>ctr/2){	
-						//System.out.println(i);
-						LeafData lfData = (LeafData)temp.data;
-						System.out.println(lfData);
-						newSplitLeaf.insertRecord(temp.key, lfData.getData()); // Insert into the split page
-						newLeaf.deleteSortedRecord(delRid);  //Delete the copied page from old leaf page
-						//temp = newLeaf.getFirst(delRid);
-						temp = newLeaf.getCurrent(delRid); // Gets the next record to be moved
-						
-					}else{
-						lastTemp = temp;
-						temp = newLeaf.getNext(delRid);
-					}
-					
-										
-				}
-				
-				
-				//Positive Comparision sends the key to be inserted to new Split Leaf 
-				//else it goes to existing leaf
-				
-				if(BT.keyCompare(key, lastTemp.key)>0){
-					newSplitLeaf.insertRecord(key,rid);
-				}
-				else{
-					newLeaf.insertRecord(key, rid);
-				}
-				//unpin the current page
-				unpinPage(newLeaf.getCurPage(), true);
-				
-				KeyDataEntry copyUp;   
-				
-				temp = newSplitLeaf.getFirst(delRid);   
-				
-				//The first entry of the new split leaf needs to be copied into index
-				copyUp = new KeyDataEntry(temp.key, newSplitLeafID);
-				
-				unpinPage(newSplitLeafID, true);
-				
-				return copyUp;
-					
+				return splitLeaf(newLeaf, key, rid, false);
 			}
 			
 			
 		}else if(newBasePage.getType() == NodeType.INDEX){
 			
-			BTIndexPage newIndex = new BTIndexPage(currentPageId, headerPage.get_keyType());
+			BTIndexPage newIndex = new BTIndexPage(page, headerPage.get_keyType());
 			
-			PageId nextId = newIndex.getPageNoByKey(key);
+			//Right-most child whose key is not greater than the key
+			PageId nextId = BTPageUtil.getChild(newIndex, BTPageUtil.upperBound(newIndex, key) - 1);
 			
-			unpinPage(newIndex.getCurPage());
+			//Keep the index page pinned, a split below writes into it
 			
 			KeyDataEntry moveUp = null;
 			
 			moveUp = _insert(key, rid, nextId); //Get the key to be moved up into index of higher heirarchy
 			
 			if(moveUp==null){
+				unpinPage(currentPageId);
 				return null;
 			}else{
-				
-				//If space available in index insert record
-				if(newIndex.available_space()>BT.getKeyDataLength(moveUp.key, NodeType.INDEX)){
-					
-					IndexData idata = (IndexData) moveUp.data;
-					newIndex.insertKey(moveUp.key, idata.getData());
-					
-					unpinPage(newIndex.getCurPage(), true);
-					
-				}else{
-					
-					//If space is not available in the given index, it needs to be split.
-					
-					BTIndexPage newSplitIndex = new BTIndexPage(headerPage.get_keyType());
-					
-					//System.out.println("in split node with page" + newSplitIndex.getCurPage());
-					
-					KeyDataEntry temp = null, lastTemp = null;
-					RID delRid = new RID();
-										
-					//Moving all the data entry in old index to the second index
-					for(temp = newIndex.getFirst(delRid); temp!=null; temp = newIndex.getFirst(delRid)){
-						//inserting into the second index page
-						System.out.println(temp.key);
-						IndexData iData = (IndexData)temp.data;
-						newSplitIndex.insertKey(temp.key, iData.getData());
-						
-						newIndex.deleteSortedRecord(delRid);
-					}
-					
-					//now remove one by one from second and keep comparing the available space until new split index has less space than old index
-					for(temp = newSplitIndex.getFirst(delRid); newSplitIndex.available_space()< newIndex.available_space();
-							temp = newSplitIndex.getFirst(delRid)){
-						
-						//insert half the records back to first leaf					
-						IndexData iData = (IndexData)(temp.data);	
-						newIndex.insertKey(temp.key, iData.getData());
-						//remove from the second index
-						newSplitIndex.deleteSortedRecord(delRid);
-						lastTemp = temp;
-					
-					}
-					
-					temp = newSplitIndex.getFirst(delRid);
-					
-					//Decide in which index the moved up key has to be inserted
-					
-					if(BT.keyCompare(moveUp.key, temp.key) > 0){
-						IndexData iData = (IndexData)(moveUp.data);	
-						newSplitIndex.insertKey(moveUp.key, iData.getData());
-					}else{
-						IndexData iData = (IndexData)(moveUp.data);	
-						newIndex.insertKey(moveUp.key, iData.getData());
-						
-					}
-					
-					unpinPage(newIndex.getCurPage(), true);
-					
-										
-					moveUp = newSplitIndex.getFirst(delRid);
-					//moveUp = new KeyDataEntry(temp.key, newSplitIndex.getCurPage());
-					
-					//Set previous pointer of new index to the node pointed by first entry
-					newSplitIndex.setPrevPage(((IndexData)moveUp.data).getData());
-					
-					newSplitIndex.deleteSortedRecord(delRid); //Delete the move up record
-										
-					unpinPage(newSplitIndex.getCurPage(), true);
-					
-					//Set the pointer info of moveUp to the new Split Index.
-					((IndexData)moveUp.data).setData(newSplitIndex.getCurPage());
-					
-					//Return the moveUp entry to be created in upper heirarchy
-					return moveUp;
-				}
-				
-				
+				//Return the entry to be created in upper heirarchy if this index splits too
+				return insertIndexEntry(newIndex, moveUp, false);
 			}
 			
 		}else{
 			throw new InsertException(null,"");
 		}
+	}
+
+	/*
+	 * Split the full leaf page `newLeaf' into itself and a new leaf right of
+	 * it, and insert <key, rid> into the half it sorts into. Normally the
+	 * records are split half and half by bytes; with `append' the key sorts
+	 * behind every record and the new leaf starts out with it alone. Both
+	 * pages are unpinned. Returns the entry to copy up into the parent.
+	 */
+	private KeyDataEntry splitLeaf(BTLeafPage newLeaf, KeyClass key, RID rid,
+			boolean append) throws ConstructPageException, IOException,
+			LeafInsertRecException, KeyNotMatchException,
+			NodeNotMatchException, ConvertException, IteratorException,
+			UnpinPageException, PinPageException {
+		
+		long splitStart = System.nanoTime();
+		
+		BTLeafPage newSplitLeaf = newLeafPage();
+		PageId newSplitLeafID = newSplitLeaf.getCurPage();
+		
+		PageId nextId = new PageId(newLeaf.getNextPage().pid);
+		newSplitLeaf.setNextPage(nextId);                //Nextpage points to the nextpage of old leaf
+		newLeaf.setNextPage(newSplitLeafID);             //Old leaf nextpage points to new leaf
+		newSplitLeaf.setPrevPage(newLeaf.getCurPage());  //Previous page of new leaf points to old leaf
+		if (nextId.pid != INVALID_PAGE) {
+			//Previous page of the old next page points to new leaf
+			BTLeafPage next = new BTLeafPage(pinPage(nextId), headerPage.get_keyType());
+			next.setPrevPage(newSplitLeafID);
+			unpinPage(nextId, true);
+		}
+		
+		//Slot of the new entry in the old leaf, behind any duplicates
+		int slot = BTPageUtil.upperBound(newLeaf, key);
+		
+		//Copy the upper half of the old leaf by bytes into the split leaf in one pass
+		int split = append ? newLeaf.getSlotCnt() : BTPageUtil.splitSlot(newLeaf);
+		BTPageUtil.moveRecords(newLeaf, split, newSplitLeaf);
+		
+		//The new entry goes to the split leaf if it sorts behind the records moved there
+		byte[] record = BTPageUtil.leafRecord(key, rid);
+		boolean inserted;
+		if(append || slot > split){
+			inserted = BTPageUtil.insertRecordAt(newSplitLeaf, slot - split, record);
+		}
+		else{
+			inserted = BTPageUtil.insertRecordAt(newLeaf, slot, record);
+		}
+		if(!inserted)
+			throw new LeafInsertRecException(null, "Insert failed");
+		
+		//unpin the current page
+		unpinPage(newLeaf.getCurPage(), true);
 		
-		return null;
+		//The shortest key telling the two leaves apart is copied into index
+		KeyDataEntry copyUp = new KeyDataEntry(BTPageUtil.separator(
+				BTPageUtil.getEntry(newLeaf, newLeaf.getSlotCnt() - 1).key,
+				BTPageUtil.getEntry(newSplitLeaf, 0).key), newSplitLeafID);
+		
+		unpinPage(newSplitLeafID, true);
+		
+		leafSplits++;
+		splitNanos += System.nanoTime() - splitStart;
+		shapeChanged();
+		
+		return copyUp;
 	}
 
-	
+	/*
+	 * Insert the <key, pageid> entry moved up from a split child into the
+	 * pinned index page `newIndex', splitting it if it is full, and unpin it.
+	 * With `rightEdge' set an entry that sorts behind every entry of a full
+	 * page goes to the new page with just the last entry of the old one in
+	 * front of it, leaving the old page all but full. Returns the entry to
+	 * insert into the parent if the page was split, null otherwise.
+	 */
+	private KeyDataEntry insertIndexEntry(BTIndexPage newIndex,
+			KeyDataEntry moveUp, boolean rightEdge)
+			throws IndexInsertRecException, ConstructPageException,
+			KeyNotMatchException, NodeNotMatchException, IteratorException,
+			UnpinPageException, IOException {
+		
+		IndexData iData = (IndexData) moveUp.data;
+		
+		if (upperLevels != null)
+			upperLevels.invalidate(newIndex.getCurPage().pid);
+		
+		//Slot of the new entry in the index, behind any duplicates
+		int slot = BTPageUtil.upperBound(newIndex, moveUp.key);
+		
+		//If space available in index insert record
+		if(newIndex.available_space()>BT.getKeyDataLength(moveUp.key, NodeType.INDEX)){
+			
+			if(!BTPageUtil.insertKeyAt(newIndex, slot, moveUp.key, iData.getData()))
+				throw new IndexInsertRecException(null, "Insert failed");
+			
+			unpinPage(newIndex.getCurPage(), true);
+			return null;
+		}
+		
+		//If space is not available in the given index, it needs to be split.
+		
+		long splitStart = System.nanoTime();
+		
+		BTIndexPage newSplitIndex = newIndexPage();
+		PageId newSplitIndexID = newSplitIndex.getCurPage();
+		
+		//The byte midpoint of the page, or its last entry for an append on the
+		//right edge, so that the new page is not left without a key
+		int split = (rightEdge && slot == newIndex.getSlotCnt()) ? slot - 1
+				: BTPageUtil.splitSlot(newIndex);
+		
+		KeyDataEntry middle;
+		boolean inserted = true;
+		if(slot == split){
+			//The new entry is the middle one, it moves up as it is
+			BTPageUtil.moveRecords(newIndex, split, newSplitIndex);
+			middle = moveUp;
+		}else if(slot < split){
+			//The new entry stays in the old index, the last entry left there moves up
+			middle = BTPageUtil.getEntry(newIndex, split - 1);
+			BTPageUtil.copyRecords(newIndex, split, newSplitIndex);
+			BTPageUtil.truncate(newIndex, split - 1);
+			inserted = BTPageUtil.insertKeyAt(newIndex, slot, moveUp.key, iData.getData());
+		}else{
+			//The new entry goes to the split index behind the middle entry
+			middle = BTPageUtil.getEntry(newIndex, split);
+			BTPageUtil.copyRecords(newIndex, split + 1, newSplitIndex);
+			BTPageUtil.truncate(newIndex, split);
+			inserted = BTPageUtil.insertKeyAt(newSplitIndex, slot - split - 1,
+					moveUp.key, iData.getData());
+		}
+		if(!inserted)
+			throw new IndexInsertRecException(null, "Insert failed");
+		
+		unpinPage(newIndex.getCurPage(), true);
+		
+		//Set previous pointer of new index to the node pointed by the middle entry
+		newSplitIndex.setPrevPage(((IndexData)middle.data).getData());
+		
+		unpinPage(newSplitIndexID, true);
+		
+		indexSplits++;
+		splitNanos += System.nanoTime() - splitStart;
+		
+		//Return the middle key pointing to the new Split Index, to be created in upper heirarchy
+		return new KeyDataEntry(middle.key, newSplitIndexID);
+	}
+
+	/**
+	 * Build the B+ tree bottom-up from entries that are already sorted by key.
+	 * Leaf pages are filled left to right and chained together, then every
+	 * index level is built from the first keys of the level below until a
+	 * single root page remains. This is much cheaper than calling insert once
+	 * per key since no page is visited twice and nothing is ever split.
+	 *
+	 * @param entries
+	 *            the <key, rid> pairs in ascending key order. Input parameter.
+	 * @param fillFactor
+	 *            how full to make each page, between 0 and 1. Input parameter.
+	 * @exception InsertException
+	 *                the tree is not empty or the entries are not sorted
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception NodeNotMatchException
+	 *                an entry does not carry a rid
+	 * @exception ConvertException
+	 *                error when convert between record and byte array
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception FreePageException
+	 *                error when free a page
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public void bulkLoad(Iterator<KeyDataEntry> entries, float fillFactor)
+			throws InsertException, KeyNotMatchException,
+			NodeNotMatchException, ConvertException, ConstructPageException,
+			UnpinPageException, PinPageException, FreePageException,
+			IOException {
+		beginOp(false);
+		boolean ok = false;
+		try {
+			loadEntries(entries, fillFactor);
+			ok = true;
+		} finally {
+			try {
+				finishOp(ok);
+			} finally {
+				checkPins("bulkLoad", ok);
+			}
+		}
+	}
+
+	private void loadEntries(Iterator<KeyDataEntry> entries, float fillFactor)
+			throws InsertException, KeyNotMatchException,
+			NodeNotMatchException, ConvertException, ConstructPageException,
+			UnpinPageException, PinPageException, FreePageException,
+			IOException {
+
+		if (headerPage.get_rootId().pid != INVALID_PAGE)
+			throw new InsertException(null, "bulk load into a non-empty tree");
+		if (fillFactor <= 0 || fillFactor > 1)
+			throw new InsertException(null, "fill factor out of range");
+
+		// space left free on every page to honour the fill factor
+		int reserve = (int) ((1 - fillFactor) * (MAX_SPACE - HFPage.DPFIXED));
+
+		// <separator, page id> of every page on the level being built
+		List<KeyDataEntry> level = new ArrayList<KeyDataEntry>();
+		BTLeafPage leaf = null;
+		KeyClass lastKey = null;
+
+		while (entries.hasNext()) {
+			KeyDataEntry entry = entries.next();
+			if (!(entry.data instanceof LeafData)) {
+				bulkLoadAbort(leaf, level);
+				throw new NodeNotMatchException(null, "bulk load entry has no rid");
+			}
+			if (lastKey != null && BT.keyCompare(entry.key, lastKey) < 0) {
+				bulkLoadAbort(leaf, level);
+				throw new InsertException(null, "bulk load input is not sorted");
+			}
+
+			byte[] record = BT.getBytesFromEntry(entry);
+			if (leaf == null
+					|| (leaf.getSlotCnt() > 0 && leaf.available_space()
+							- record.length < reserve)) {
+				BTLeafPage next = newLeafPage();
+				if (leaf != null) {
+					next.setPrevPage(leaf.getCurPage());
+					leaf.setNextPage(next.getCurPage());
+					unpinPage(leaf.getCurPage(), true);
+				}
+				leaf = next;
+				level.add(new KeyDataEntry(lastKey == null ? entry.key
+						: BTPageUtil.separator(lastKey, entry.key), leaf
+						.getCurPage()));
+			}
+			// input is sorted, so appending keeps the slot directory in order
+			leaf.insertRecord(record);
+			lastKey = entry.key;
+		}
+
+		if (leaf == null)
+			return; // nothing to load
+		unpinPage(leaf.getCurPage(), true);
+
+		while (level.size() > 1)
+			level = bulkLoadIndexLevel(level, reserve);
+
+		updateHeader(((IndexData) level.get(0).data).getData());
+		rightLeaf = null;
+		if (bloom != null) {
+			try {
+				buildFilter();
+			} catch (IteratorException e) {
+				throw new InsertException(e, "");
+			}
+		}
+	}
+
+	/**
+	 * Bulk load entries that are already sorted by key, filling every page.
+	 *
+	 * @see #bulkLoad(Iterator, float)
+	 */
+	public void bulkLoad(Iterator<KeyDataEntry> entries)
+			throws InsertException, KeyNotMatchException,
+			NodeNotMatchException, ConvertException, ConstructPageException,
+			UnpinPageException, PinPageException, FreePageException,
+			IOException {
+		bulkLoad(entries, 1.0f);
+	}
 
+	/*
+	 * Build one index level on top of the given children. The first child of
+	 * every new index page becomes its left link and its key is pushed up, so
+	 * it is returned as the <key, pageid> entry for the next level.
+	 */
+	private List<KeyDataEntry> bulkLoadIndexLevel(List<KeyDataEntry> children,
+			int reserve) throws IOException, ConstructPageException,
+			UnpinPageException, KeyNotMatchException, NodeNotMatchException,
+			ConvertException {
+
+		List<KeyDataEntry> parents = new ArrayList<KeyDataEntry>();
+		BTIndexPage index = null;
+
+		for (int i = 0; i < children.size(); i++) {
+			KeyDataEntry child = children.get(i);
+			byte[] record = BT.getBytesFromEntry(child);
+			boolean last = i == children.size() - 1;
+
+			// the last child stays on the current page whenever it still fits,
+			// so that no index page is left with a single child
+			if (index == null
+					|| (index.getSlotCnt() > 0
+							&& index.available_space() - record.length < reserve && !(last && index
+							.available_space() >= record.length))) {
+				if (index != null)
+					unpinPage(index.getCurPage(), true);
+				index = newIndexPage();
+				index.setPrevPage(((IndexData) child.data).getData());
+				parents.add(new KeyDataEntry(child.key, index.getCurPage()));
+			} else {
+				index.insertRecord(record);
+			}
+		}
+		unpinPage(index.getCurPage(), true);
+		return parents;
+	}
 
+	/*
+	 * Give back the leaf pages of a bulk load that had to be abandoned.
+	 */
+	private void bulkLoadAbort(BTLeafPage leaf, List<KeyDataEntry> leaves)
+			throws IOException, UnpinPageException, FreePageException {
+		if (leaf != null)
+			unpinPage(leaf.getCurPage());
+		for (KeyDataEntry entry : leaves)
+			freePage(((IndexData) entry.data).getData());
+	}
 
 	/**
 	 * delete leaf entry given its <key, rid> pair. `rid' is IN the data entry;
@@ -681,8 +1619,51 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			IndexFullDeleteException, LeafDeleteException, IteratorException,
 			ConstructPageException, DeleteRecException, IndexSearchException,
 			IOException {
+		beginOp(true);
+		boolean ok = false;
+		try {
+			if (latches == null) {
+				boolean deleted = deleteEntry(key, rid);
+				if (deleted)
+					deletedKey();
+				ok = true;
+				return deleted;
+			}
+
+			latches.lockTreeExclusive();
+			try {
+				freePending();
+				boolean deleted = deleteEntry(key, rid);
+				if (deleted)
+					deletedKey();
+				logOp();
+				ok = true;
+				return deleted;
+			} finally {
+				latches.unlockTreeExclusive();
+			}
+		} finally {
+			try {
+				finishOp(ok);
+			} finally {
+				checkPins("Delete", ok);
+			}
+		}
+	}
+
+	private boolean deleteEntry(KeyClass key, RID rid)
+			throws DeleteFashionException, LeafRedistributeException,
+			RedistributeException, KeyNotMatchException, UnpinPageException,
+			IndexInsertRecException, FreePageException, PinPageException,
+			LeafDeleteException, IteratorException, ConstructPageException,
+			DeleteRecException, IndexSearchException, IOException {
 		if (headerPage.get_deleteFashion() == DeleteFashion.NAIVE_DELETE)
 			return NaiveDelete(key, rid);
+		else if (headerPage.get_deleteFashion() == DeleteFashion.FULL_DELETE) {
+			// merges may free the pages remembered for appends
+			rightLeaf = null;
+			return FullDelete(key, rid);
+		}
 		else
 			throw new DeleteFashionException(null, "");
 	}
@@ -712,46 +1693,89 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			IteratorException, KeyNotMatchException, ConstructPageException,
 			PinPageException, UnpinPageException {
 		BTLeafPage pageLeaf;
-		BTIndexPage pageIndex;
-		Page page;
-		BTSortedPage sortPage;
 		PageId pageno;
-		PageId curpageno = null; // iterator
-		PageId prevpageno;
 		PageId nextpageno;
-		RID curRid;
-		KeyDataEntry curEntry;
+		int slot;
+
+		pageLeaf = findLeftLeaf(lo_key);
+		if (pageLeaf == null) // no pages in the BTREE
+			return null; // should be handled by the caller
+		pageno = pageLeaf.getCurPage();
 
-		pageno = headerPage.get_rootId();
+		// in concurrent mode the leaves are latched while they are read, and
+		// the next one is latched before the current one is let go
+		latchShared(pageno);
+		try {
+			slot = (lo_key == null) ? 0 : BTPageUtil.lowerBound(pageLeaf,
+					lo_key);
+			while (slot == pageLeaf.getSlotCnt()) {
+				// nothing >= lo_key on this page (or it is empty), so go right
+				nextpageno = pageLeaf.getNextPage();
+				unpinPage(pageno);
+				if (nextpageno.pid == INVALID_PAGE) {
+					// oops, no more records, so set this scan to indicate this.
+					return null;
+				}
+
+				latchShared(nextpageno);
+				unlatchShared(pageno);
+				pageno = nextpageno;
+				pageLeaf = new BTLeafPage(pinPage(pageno),
+						headerPage.get_keyType());
+				slot = (lo_key == null) ? 0 : BTPageUtil.lowerBound(pageLeaf,
+						lo_key);
+			}
+
+			// ASSERTIONS:
+			// - startrid: the first record >= lo_key
+			// - pageLeaf, pageno valid and pinned
+			// note that pageno/pageLeaf is still pinned;
+			// scan will unpin it when done
 
-		if (pageno.pid == INVALID_PAGE) { // no pages in the BTREE
-			pageLeaf = null; // should be handled by
-			// startrid =INVALID_PAGEID ; // the caller
+			startrid.pageNo = pageLeaf.getCurPage();
+			startrid.slotNo = slot;
 			return pageLeaf;
+		} finally {
+			unlatchShared(pageno);
 		}
+	}
+
+	/*
+	 * Go down to the left-most leaf that may hold lo_key, or the left-most
+	 * leaf of all if lo_key is null: on every level the right-most child whose
+	 * key is less than lo_key. Returns the leaf pinned, null if the tree is
+	 * empty.
+	 */
+	private BTLeafPage findLeftLeaf(KeyClass lo_key) throws IOException,
+			IteratorException, KeyNotMatchException, ConstructPageException,
+			PinPageException, UnpinPageException {
+		BTIndexPage pageIndex;
+		Page page;
+		BTSortedPage sortPage;
+		PageId pageno;
+		PageId prevpageno;
+
+		if (headerPage.get_rootId().pid == INVALID_PAGE)
+			return null;
 
+		pageno = descendCached(lo_key, false, null);
 		page = pinPage(pageno);
 		sortPage = new BTSortedPage(page, headerPage.get_keyType());
 
-		if (trace != null) {
-			trace.writeBytes("VISIT node " + pageno + lineSep);
-			trace.flush();
-		}
+		traceVisit(pageno);
 
 		// ASSERTION
-		// - pageno and sortPage is the root of the btree
+		// - pageno and sortPage is the first page below the cached levels
 		// - pageno and sortPage valid and pinned
 
 		while (sortPage.getType() == NodeType.INDEX) {
 			pageIndex = new BTIndexPage(page, headerPage.get_keyType());
-			prevpageno = pageIndex.getPrevPage();
-			curEntry = pageIndex.getFirst(startrid);
-			while (curEntry != null && lo_key != null
-					&& BT.keyCompare(curEntry.key, lo_key) < 0) {
-
-				prevpageno = ((IndexData) curEntry.data).getData();
-				curEntry = pageIndex.getNext(startrid);
-			}
+			// go down the right-most child whose key is less than lo_key
+			if (lo_key == null)
+				prevpageno = pageIndex.getPrevPage();
+			else
+				prevpageno = BTPageUtil.getChild(pageIndex,
+						BTPageUtil.lowerBound(pageIndex, lo_key) - 1);
 
 			unpinPage(pageno);
 
@@ -759,83 +1783,440 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			page = pinPage(pageno);
 			sortPage = new BTSortedPage(page, headerPage.get_keyType());
 
-			if (trace != null) {
-				trace.writeBytes("VISIT node " + pageno + lineSep);
-				trace.flush();
-			}
+			traceVisit(pageno);
 
 		}
 
-		pageLeaf = new BTLeafPage(page, headerPage.get_keyType());
+		return new BTLeafPage(page, headerPage.get_keyType());
+	}
+
+	/*
+	 * The mirror image of findRunStart: find the right-most entry whose key is
+	 * not greater than hi_key, going all the way right if hi_key is null. The
+	 * descent takes the right-most child whose key is not greater than
+	 * hi_key, so no duplicate of hi_key is right of the leaf it reaches, and
+	 * goes left from there while the leaf has nothing <= hi_key.
+	 *
+	 * Returns the leaf of the entry, pinned, with its rid in startrid, or
+	 * null if every key is greater than hi_key.
+	 */
+	BTLeafPage findRunEnd(KeyClass hi_key, RID startrid) throws IOException,
+			IteratorException, KeyNotMatchException, ConstructPageException,
+			PinPageException, UnpinPageException {
+		PageId pageno = headerPage.get_rootId();
+		if (pageno.pid == INVALID_PAGE)
+			return null;
+
+		pageno = descendCached(hi_key, true, null);
+		BTSortedPage sortPage = new BTSortedPage(pinPage(pageno), headerPage
+				.get_keyType());
+		traceVisit(pageno);
 
-		curEntry = pageLeaf.getFirst(startrid);
-		while (curEntry == null) {
-			// skip empty leaf pages off to left
-			nextpageno = pageLeaf.getNextPage();
+		while (sortPage.getType() == NodeType.INDEX) {
+			BTIndexPage pageIndex = new BTIndexPage(sortPage, headerPage
+					.get_keyType());
+			PageId childpageno = BTPageUtil.getChild(pageIndex,
+					(hi_key == null) ? BTPageUtil.slotCount(pageIndex) - 1
+							: BTPageUtil.upperBound(pageIndex, hi_key) - 1);
 			unpinPage(pageno);
-			if (nextpageno.pid == INVALID_PAGE) {
-				// oops, no more records, so set this scan to indicate this.
-				return null;
-			}
 
-			pageno = nextpageno;
-			pageLeaf = new BTLeafPage(pinPage(pageno), headerPage.get_keyType());
-			curEntry = pageLeaf.getFirst(startrid);
+			pageno = childpageno;
+			sortPage = new BTSortedPage(pinPage(pageno), headerPage
+					.get_keyType());
+			traceVisit(pageno);
 		}
 
-		// ASSERTIONS:
-		// - curkey, curRid: contain the first record on the
-		// current leaf page (curkey its key, cur
-		// - pageLeaf, pageno valid and pinned
+		BTLeafPage pageLeaf = new BTLeafPage(sortPage, headerPage
+				.get_keyType());
+		int slot = ((hi_key == null) ? pageLeaf.getSlotCnt() : BTPageUtil
+				.upperBound(pageLeaf, hi_key)) - 1;
+		while (slot < 0) {
+			// nothing <= hi_key on this page (or it is empty), so go left
+			PageId prevpageno = pageLeaf.getPrevPage();
+			unpinPage(pageno);
+			if (prevpageno.pid == INVALID_PAGE)
+				return null;
 
-		if (lo_key == null) {
-			return pageLeaf;
-			// note that pageno/pageLeaf is still pinned;
-			// scan will unpin it when done
+			pageno = prevpageno;
+			pageLeaf = new BTLeafPage(pinPage(pageno), headerPage
+					.get_keyType());
+			slot = pageLeaf.getSlotCnt() - 1;
 		}
 
-		while (BT.keyCompare(curEntry.key, lo_key) < 0) {
-			curEntry = pageLeaf.getNext(startrid);
-			while (curEntry == null) { // have to go right
-				nextpageno = pageLeaf.getNextPage();
+		startrid.pageNo = pageLeaf.getCurPage();
+		startrid.slotNo = slot;
+		return pageLeaf;
+	}
+
+	/*
+	 * Go down the cached upper levels from the root of a non-empty tree, each
+	 * time to the child findRunEnd (with upper set) or findRunStart would take
+	 * for the given key, decoding the pages that are not cached yet. Returns
+	 * the first page below the cached levels, which is the root if nothing is
+	 * cached, and adds the cached pages passed to path unless it is null.
+	 */
+	private PageId descendCached(KeyClass key, boolean upper, List<PageId> path)
+			throws PinPageException, UnpinPageException, KeyNotMatchException,
+			IteratorException, ConstructPageException, IOException {
+		PageId pageno = headerPage.get_rootId();
+		if (upperLevels == null || latches != null)
+			return pageno;
+		checkShape();
+		if (upperLevels.levels() < 0)
+			upperLevels.setHeight(height());
+
+		for (int level = 0; level < upperLevels.levels(); level++) {
+			BTUpperLevels.Node node = upperLevels.get(pageno.pid);
+			if (node == null) {
+				node = upperLevels.put(new BTIndexPage(pinPage(pageno),
+						headerPage.get_keyType()));
 				unpinPage(pageno);
+			}
+			traceVisit(pageno);
+			if (path != null)
+				path.add(pageno);
+			pageno = new PageId(node.child(key, upper));
+		}
+		return pageno;
+	}
 
-				if (nextpageno.pid == INVALID_PAGE) {
-					return null;
-				}
+	/*
+	 * Start an operation that is logged as one record if the file has a log,
+	 * or enter one more public operation within the operation of the thread.
+	 * See BTLoggedOp for holdPins.
+	 */
+	private void beginOp(boolean holdPins) {
+		if (log == null)
+			return;
+		BTLoggedOp op = ops.get();
+		if (op != null)
+			op.depth++;
+		else
+			ops.set(new BTLoggedOp(holdPins));
+	}
 
-				pageno = nextpageno;
-				pageLeaf = new BTLeafPage(pinPage(pageno),
-						headerPage.get_keyType());
+	/*
+	 * Note that the operation changed the header page, which stays pinned
+	 * while the file is open.
+	 */
+	private void headerChanged() {
+		BTLoggedOp op = log == null ? null : ops.get();
+		if (op != null) {
+			op.pages.put(headerPageId.pid, headerPage);
+			op.changed.add(headerPageId.pid);
+		}
+	}
 
-				curEntry = pageLeaf.getFirst(startrid);
+	/*
+	 * Log the pages the operation of the thread changed and the pages of the
+	 * space map its allocations changed as one record, and then free the pages
+	 * it freed. The space map pages those frees change are held on to with the
+	 * rest, so the frees do not reach the disk before the record. Done once,
+	 * at the end of the outermost operation, while the pages changed are
+	 * latched against other threads.
+	 */
+	private void logOp() throws PinPageException, UnpinPageException,
+			FreePageException {
+		BTLoggedOp op = log == null ? null : ops.get();
+		if (op == null || op.depth > 1 || op.lsn != 0)
+			return;
+
+		List<PageId> maps = new ArrayList<PageId>();
+		for (int pid : op.spaceMap)
+			maps.add(new PageId(pid));
+		Page[] mapPages = pinRaw(maps);
+		try {
+			int count = op.changed.size() + maps.size();
+			int[] pids = new int[count];
+			byte[][] images = new byte[count][];
+			int i = 0;
+			for (int pid : op.changed) {
+				pids[i] = pid;
+				images[i++] = op.pages.get(pid).getpage();
+			}
+			for (int m = 0; m < maps.size(); m++) {
+				pids[i] = maps.get(m).pid;
+				images[i++] = mapPages[m].getpage();
 			}
+			if (count > 0)
+				op.lsn = log.logPages(count, pids, images);
+		} finally {
+			unpinRaw(maps, false);
 		}
 
-		return pageLeaf;
+		if (op.frees.isEmpty())
+			return;
+		List<PageId> freeMaps = new ArrayList<PageId>();
+		for (PageId pageno : op.frees) {
+			// pins of a freed page only kept it from being written
+			Iterator<PageId> held = op.held.iterator();
+			while (held.hasNext())
+				if (held.next().pid == pageno.pid) {
+					unpinRaw(Collections.singletonList(pageno), true);
+					held.remove();
+				}
+			freeMaps.add(new PageId(WriteAheadLog.spaceMapPage(pageno.pid)));
+		}
+		pinRaw(freeMaps);
+		op.held.addAll(freeMaps);
+		List<PageId> frees = new ArrayList<PageId>(op.frees);
+		op.frees.clear();
+		ops.remove();
+		try {
+			for (PageId pageno : frees)
+				freePage(pageno);
+		} finally {
+			ops.set(op);
+		}
 	}
 
 	/*
-	 * Status BTreeFile::NaiveDelete (const void *key, const RID rid)
-	 * 
-	 * Remove specified data entry (<key, rid>) from an index.
-	 * 
-	 * We don't do merging or redistribution, but do allow duplicates.
-	 * 
-	 * Page containing first occurrence of key `key' is found for us by
-	 * findRunStart. We then iterate for (just a few) pages, if necesary, to
-	 * find the one containing <key,rid>, which we then delete via
-	 * BTLeafPage::delUserRid.
+	 * End a public operation. At the end of the outermost one, wait for its
+	 * record to be on disk, logging it first if that was not done under the
+	 * latches, and let go of the pins held on to. An operation that failed is
+	 * not logged, and its pages are let go of and freed as if there were no
+	 * log.
+	 */
+	private void finishOp(boolean ok) throws IOException, PinPageException,
+			UnpinPageException, FreePageException {
+		BTLoggedOp op = log == null ? null : ops.get();
+		if (op == null || --op.depth > 0)
+			return;
+		try {
+			op.depth = 1;
+			if (ok) {
+				logOp();
+				if (op.lsn != 0)
+					log.commit(op.lsn);
+			}
+		} finally {
+			ops.remove();
+			unpinRaw(op.held, true);
+			for (PageId pageno : op.frees)
+				freePage(pageno);
+		}
+	}
+
+	/*
+	 * Pin pages for the log, without counting the pins as pins of the file.
+	 */
+	private Page[] pinRaw(List<PageId> pagenos) throws PinPageException {
+		Page[] pages = new Page[pagenos.size()];
+		try {
+			for (int i = 0; i < pages.length; i++) {
+				pages[i] = new Page(BTPageUtil.NO_DATA);
+				BTPageUtil.pin(pagenos.get(i), pages[i]);
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new PinPageException(e, "");
+		}
+		return pages;
+	}
+
+	private void unpinRaw(List<PageId> pagenos, boolean dirty)
+			throws UnpinPageException {
+		try {
+			for (PageId pageno : pagenos)
+				BTPageUtil.unpin(pageno, dirty);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new UnpinPageException(e, "");
+		}
+	}
+
+	/*
+	 * Add a key that was inserted to the Bloom filter, and build the filter
+	 * anew if it is stale and rebuild is set, which it may only be while no
+	 * other thread uses the tree.
+	 */
+	private void inserted(KeyClass key, boolean rebuild) throws IOException,
+			IteratorException, KeyNotMatchException, ConstructPageException,
+			PinPageException, UnpinPageException {
+		BTBloomFilter filter = bloom;
+		if (filter == null)
+			return;
+		filter.add(key);
+		bloomChanged = true;
+		if (rebuild && filter.stale())
+			buildFilter();
+	}
+
+	/*
+	 * Count a deleted key against the Bloom filter, and build the filter anew
+	 * if too many of its keys are gone.
+	 */
+	private void deletedKey() throws IOException, IteratorException,
+			KeyNotMatchException, ConstructPageException, PinPageException,
+			UnpinPageException {
+		BTBloomFilter filter = bloom;
+		if (filter == null)
+			return;
+		filter.deleted();
+		bloomChanged = true;
+		if (filter.stale())
+			buildFilter();
+	}
+
+	/*
+	 * Build the Bloom filter from the keys on the leaves, with room for twice
+	 * as many keys: the leaves are read once to count the entries and once to
+	 * add their keys.
+	 */
+	private void buildFilter() throws IOException, IteratorException,
+			KeyNotMatchException, ConstructPageException, PinPageException,
+			UnpinPageException {
+		int entries = 0;
+		for (int pass = 0; pass < 2; pass++) {
+			BTBloomFilter filter = new BTBloomFilter(2 * entries);
+			BTLeafPage leaf = findLeftLeaf(null);
+			while (leaf != null) {
+				int count = BTPageUtil.slotCount(leaf);
+				if (pass == 0)
+					entries += count;
+				else
+					for (int slot = 0; slot < count; slot++)
+						filter.add(BTPageUtil.getEntry(leaf, slot).key);
+				PageId next = leaf.getNextPage();
+				unpinPage(leaf.getCurPage());
+				leaf = next.pid == INVALID_PAGE ? null : new BTLeafPage(
+						pinPage(next), headerPage.get_keyType());
+			}
+			if (pass == 1)
+				bloom = filter;
+		}
+		bloomChanged = true;
+	}
+
+	/*
+	 * Load the Bloom filter stored in the pages the header page points to, if
+	 * there is one. The pages hold the bytes of the filter one after the other,
+	 * each behind the id of the next page.
+	 */
+	private void loadFilter() throws PinPageException, UnpinPageException,
+			IOException {
+		PageId pageno = new PageId(BTPageUtil.readInt(headerPage.getpage(),
+				FILTER_PAGE));
+		// files made before filters were kept may have anything there
+		if (pageno.pid <= 0 || pageno.pid >= SystemDefs.JavabaseDB.db_num_pages())
+			return;
+
+		byte[] data = pinPage(pageno).getpage();
+		int length = BTBloomFilter.length(data, 4);
+		if (length < 0) {
+			unpinPage(pageno);
+			return;
+		}
+		byte[] bytes = new byte[length];
+		for (int pos = 0; pos < length; pos += MAX_SPACE - 4) {
+			if (pos > 0)
+				data = pinPage(pageno).getpage();
+			System.arraycopy(data, 4, bytes, pos, Math.min(MAX_SPACE - 4,
+					length - pos));
+			PageId next = new PageId(BTPageUtil.readInt(data, 0));
+			unpinPage(pageno);
+			pageno = next;
+		}
+		bloom = BTBloomFilter.fromBytes(bytes);
+		bloomChanged = false;
+	}
+
+	/*
+	 * Store the Bloom filter in new pages, giving back those it was stored in
+	 * before, and point the header page to them.
+	 */
+	private void storeFilter() throws IOException, ConstructPageException,
+			PinPageException, UnpinPageException, FreePageException {
+		freeFilterPages();
+		byte[] bytes = bloom.toBytes();
+		PageId first = null;
+		PageId prev = null;
+		byte[] prevData = null;
+		for (int pos = 0; pos < bytes.length; pos += MAX_SPACE - 4) {
+			Page page = new Page();
+			PageId pageno = newPage(page);
+			byte[] data = page.getpage();
+			BTPageUtil.writeInt(data, 0, INVALID_PAGE);
+			System.arraycopy(bytes, pos, data, 4, Math.min(MAX_SPACE - 4,
+					bytes.length - pos));
+			if (prev == null) {
+				first = pageno;
+			} else {
+				BTPageUtil.writeInt(prevData, 0, pageno.pid);
+				unpinPage(prev, true);
+			}
+			prev = pageno;
+			prevData = data;
+		}
+		unpinPage(prev, true);
+		BTPageUtil.writeInt(headerPage.getpage(), FILTER_PAGE, first.pid);
+		headerChanged();
+		bloomChanged = false;
+	}
+
+	/*
+	 * Give back the pages the Bloom filter is stored in, if any.
+	 */
+	private void freeFilterPages() throws IOException, PinPageException,
+			UnpinPageException, FreePageException {
+		PageId pageno = new PageId(BTPageUtil.readInt(headerPage.getpage(),
+				FILTER_PAGE));
+		if (pageno.pid <= 0 || pageno.pid >= SystemDefs.JavabaseDB.db_num_pages())
+			return;
+		byte[] data = pinPage(pageno).getpage();
+		boolean stored = BTBloomFilter.length(data, 4) >= 0;
+		unpinPage(pageno);
+		while (stored && pageno.pid != INVALID_PAGE) {
+			PageId next = new PageId(BTPageUtil.readInt(
+					pinPage(pageno).getpage(), 0));
+			unpinPage(pageno);
+			freePage(pageno);
+			pageno = next;
+		}
+		BTPageUtil.writeInt(headerPage.getpage(), FILTER_PAGE, INVALID_PAGE);
+		headerChanged();
+	}
+
+	private void latchShared(PageId pageno) {
+		if (latches != null)
+			latches.lockShared(pageno);
+	}
+
+	private void unlatchShared(PageId pageno) {
+		if (latches != null)
+			latches.unlockShared(pageno);
+	}
+
+	private static synchronized void traceVisit(PageId pageno)
+			throws IOException {
+		if (trace != null) {
+			trace.writeBytes("VISIT node " + pageno + lineSep);
+			trace.flush();
+		}
+	}
+
+	/*
+	 * Status BTreeFile::NaiveDelete (const void *key, const RID rid)
+	 * 
+	 * Remove specified data entry (<key, rid>) from an index.
+	 * 
+	 * We don't do merging or redistribution, but do allow duplicates.
+	 * 
+	 * Page containing first occurrence of key `key' is found for us by
+	 * findRunStart. We then iterate for (just a few) pages, if necesary, to
+	 * find the one containing <key,rid>, which we then delete by its slot.
 	 */
 
 	private boolean NaiveDelete(KeyClass key, RID rid)
 			throws LeafDeleteException, KeyNotMatchException, PinPageException,
 			ConstructPageException, IOException, UnpinPageException,
-			PinPageException, IndexSearchException, IteratorException {
+			PinPageException, IndexSearchException, IteratorException,
+			DeleteRecException {
 				
 		        BTLeafPage leafPage;
 				RID iterRid = new RID();
-				KeyDataEntry keyDataEntry;
+				boolean deleted = false; //If any records were deleted
+				boolean dirty = false;   //If the current leaf page changed
 
 				// find the first page and rid of the given key
 				leafPage = findRunStart(key, iterRid);
@@ -843,53 +2224,722 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 				if (leafPage == null)
 					return false;
 
-				keyDataEntry = leafPage.getCurrent(iterRid);
-				RID firstRID = new RID();//first rid of the leaf page
-				int deleted=0; //Flag to indicate if any deletions happened in the leaf node
+				int slot = iterRid.slotNo;
 
 				while (true) {
 					
 					//Check if the iterator is at the end of a leaf node. If true move to next leaf node.
-					while (keyDataEntry == null)     
+					if (slot == leafPage.getSlotCnt())
 					{
-						// creating nextPage
 						PageId nextpage = leafPage.getNextPage();
 						// unpin previous page
-						unpinPage(leafPage.getCurPage());
+						unpinPage(leafPage.getCurPage(), dirty);
 						if (nextpage.pid == INVALID_PAGE)
-							return false;
+							return deleted;
 						//Initialize leaf page as the next page
-						Page nextPage = pinPage(nextpage);
-						leafPage = new BTLeafPage(nextPage, headerPage.get_keyType());
-						keyDataEntry = leafPage.getFirst(firstRID);
+						leafPage = new BTLeafPage(pinPage(nextpage), headerPage.get_keyType());
+						slot = 0;
+						dirty = false;
+						continue;
 					}
 
-					if (BT.keyCompare(key, keyDataEntry.key) > 0) //Checking if the iterator exceeded the key value. If true exit.
+					if (BTPageUtil.compareKey(leafPage, slot, key) > 0) //Checking if the iterator exceeded the key value. If true exit.
 						break;
 
-					while(leafPage.delEntry(new KeyDataEntry(key, rid)) == true) {
-						// key successfully found and deleted.
-						keyDataEntry = leafPage.getCurrent(iterRid); //Move right to check next record
-						deleted = 1; //Flag as deleted
+					if (BTPageUtil.ridEquals(leafPage, slot, rid)) {
+						// key successfully found, the next record moves into this slot
+						BTPageUtil.deleteRecordAt(leafPage, slot);
+						deleted = dirty = true;
+					} else {
+						slot++; //Move right to check next record
 					}
-					
-					if(keyDataEntry == null)  //If the next entry is null then page is over. Move over to next leaf page
-					{   
-						continue;
-					}else                     //If next entry is not key value then stop deletion and exit
-					{
-						break;
-					}
-					
 				}
 				//Unpin page
-				unpinPage(leafPage.getCurPage());
+				unpinPage(leafPage.getCurPage(), dirty);
 				
-				if(deleted==1){
-					return true; //If any records were deleted
-				}else
-				return false; //If no records were deleted
+				return deleted;
+	}
+
+	/*
+	 * Remove specified data entry (<key, rid>) from an index and keep every
+	 * non-root page at least half full.
+	 *
+	 * A page that drops below half full borrows entries from an adjacent
+	 * sibling under the same parent, or is merged into it when the entries of
+	 * both fit on one page. Merging removes the separator from the parent,
+	 * which may in turn underflow, so the fix-up runs on the way back up. An
+	 * index root left with a single child is replaced by that child, and an
+	 * empty leaf root empties the tree.
+	 */
+	private boolean FullDelete(KeyClass key, RID rid)
+			throws LeafRedistributeException, RedistributeException,
+			KeyNotMatchException, UnpinPageException, IndexInsertRecException,
+			FreePageException, PinPageException, LeafDeleteException,
+			IteratorException, DeleteRecException, ConstructPageException,
+			IOException {
+
+		PageId rootId = headerPage.get_rootId();
+		if (rootId.pid == INVALID_PAGE)
+			return false;
+
+		if (!_FullDelete(key, rid, rootId))
+			return false;
+
+		BTSortedPage root = new BTSortedPage(pinPage(rootId),
+				headerPage.get_keyType());
+		if (root.getSlotCnt() > 0) {
+			unpinPage(rootId);
+		} else if (root.getType() == NodeType.INDEX) {
+			// the root has a single child left, which becomes the new root
+			PageId childId = root.getPrevPage();
+			unpinPage(rootId);
+			freePage(rootId);
+			updateHeader(childId);
+		} else {
+			unpinPage(rootId);
+			freePage(rootId);
+			updateHeader(new PageId(INVALID_PAGE));
+		}
+		return true;
+	}
+
+	/*
+	 * Delete <key, rid> from the subtree rooted at currentPageId. Returns true
+	 * if it was found. The page is unpinned on return; when a child lost an
+	 * entry it is rebalanced here, while this page is still pinned.
+	 */
+	private boolean _FullDelete(KeyClass key, RID rid, PageId currentPageId)
+			throws LeafRedistributeException, RedistributeException,
+			KeyNotMatchException, UnpinPageException, IndexInsertRecException,
+			FreePageException, PinPageException, LeafDeleteException,
+			IteratorException, DeleteRecException, ConstructPageException,
+			IOException {
+
+		Page page = pinPage(currentPageId);
+		BTSortedPage sortPage = new BTSortedPage(page, headerPage.get_keyType());
+
+		if (sortPage.getType() == NodeType.LEAF) {
+			BTLeafPage leafPage = new BTLeafPage(page, headerPage.get_keyType());
+			boolean deleted = false;
+			for (int slot = BTPageUtil.lowerBound(leafPage, key); slot < leafPage
+					.getSlotCnt()
+					&& BTPageUtil.compareKey(leafPage, slot, key) == 0; slot++) {
+				if (BTPageUtil.ridEquals(leafPage, slot, rid)) {
+					BTPageUtil.deleteRecordAt(leafPage, slot);
+					deleted = true;
+					break;
+				}
+			}
+			unpinPage(currentPageId, deleted);
+			return deleted;
+		}
+
+		BTIndexPage indexPage = new BTIndexPage(page, headerPage.get_keyType());
+
+		// Since we allow duplicates, <key, rid> may be under any child from
+		// the left-most one that can hold `key' to the right-most one.
+		int first = BTPageUtil.lowerBound(indexPage, key) - 1;
+		int last = BTPageUtil.upperBound(indexPage, key) - 1;
+
+		for (int pos = first; pos <= last; pos++) {
+			if (_FullDelete(key, rid, BTPageUtil.getChild(indexPage, pos))) {
+				boolean changed = rebalanceChild(indexPage, pos);
+				if (changed) {
+					shapeChanged();
+					if (upperLevels != null)
+						upperLevels.invalidate(currentPageId.pid);
+				}
+				unpinPage(currentPageId, changed);
+				return true;
+			}
+		}
+		unpinPage(currentPageId);
+		return false;
+	}
+
+	/*
+	 * Child `pos' of the pinned index page `parent' (-1 is the left link) has
+	 * just lost an entry. If it is now less than half full, pair it with its
+	 * left sibling (or its right one if it is the left-most child) and either
+	 * merge the two or move entries across. Returns true if `parent' changed.
+	 */
+	private boolean rebalanceChild(BTIndexPage parent, int pos)
+			throws LeafRedistributeException, RedistributeException,
+			UnpinPageException, IndexInsertRecException, FreePageException,
+			PinPageException, IteratorException, DeleteRecException,
+			KeyNotMatchException, ConstructPageException, IOException {
+
+		PageId childId = BTPageUtil.getChild(parent, pos);
+		BTSortedPage child = new BTSortedPage(pinPage(childId),
+				headerPage.get_keyType());
+		boolean underflow = BTPageUtil.underflow(child);
+		short childType = child.getType();
+		unpinPage(childId);
+
+		if (!underflow || parent.getSlotCnt() == 0)
+			return false; // half full, or no sibling to work with
+
+		// the separator in `sepSlot' divides the left and the right page
+		int sepSlot = pos < 0 ? 0 : pos;
+		PageId leftId = BTPageUtil.getChild(parent, sepSlot - 1);
+		PageId rightId = BTPageUtil.getChild(parent, sepSlot);
+		if (latches != null && (latches.inScan(leftId) || latches.inScan(rightId)))
+			return false; // an open scan stands on one of them, leave them be
+		Page left = pinPage(leftId);
+		Page right = pinPage(rightId);
+
+		if (childType == NodeType.LEAF)
+			return balanceLeaves(parent, sepSlot, new BTLeafPage(left,
+					headerPage.get_keyType()), new BTLeafPage(right,
+					headerPage.get_keyType()));
+		else
+			return balanceIndexes(parent, sepSlot, new BTIndexPage(left,
+					headerPage.get_keyType()), new BTIndexPage(right,
+					headerPage.get_keyType()));
+	}
+
+	/*
+	 * Merge or redistribute two pinned sibling leaves; both are unpinned on
+	 * return. Returns true if the separator in the parent changed.
+	 */
+	private boolean balanceLeaves(BTIndexPage parent, int sepSlot,
+			BTLeafPage left, BTLeafPage right)
+			throws LeafRedistributeException, UnpinPageException,
+			FreePageException, PinPageException, IteratorException,
+			DeleteRecException, IndexInsertRecException, KeyNotMatchException,
+			ConstructPageException, IOException {
+
+		PageId leftId = left.getCurPage();
+		PageId rightId = right.getCurPage();
+		int leftUsed = BTPageUtil.usedSpace(left);
+		int rightUsed = BTPageUtil.usedSpace(right);
+		int half = BTPageUtil.PAGE_CAPACITY / 2;
+
+		if (leftUsed + rightUsed <= BTPageUtil.PAGE_CAPACITY) {
+			// merge: every key on the right page follows those on the left
+			for (int i = 0; i < right.getSlotCnt(); i++) {
+				if (!BTPageUtil.insertRecordAt(left, left.getSlotCnt(),
+						BTPageUtil.getRecord(right, i)))
+					throw new LeafRedistributeException(null, "merge failed");
+			}
+
+			PageId nextId = right.getNextPage();
+			left.setNextPage(nextId);
+			if (nextId.pid != INVALID_PAGE) {
+				BTLeafPage next = new BTLeafPage(pinPage(nextId),
+						headerPage.get_keyType());
+				next.setPrevPage(leftId);
+				unpinPage(nextId, true);
+			}
+
+			unpinPage(leftId, true);
+			unpinPage(rightId);
+			freePage(rightId);
+			BTPageUtil.deleteRecordAt(parent, sepSlot);
+			return true;
+		}
+
+		// Redistribute: move just enough entries to bring the short page up
+		// to half full without taking the other one below half.
+		int moved = 0;
+		KeyClass newSep;
+		boolean toLeft = leftUsed < half;
+		if (toLeft) {
+			while (leftUsed < half) {
+				int size = right.getSlotLength(moved) + HFPage.SIZE_OF_SLOT;
+				if (rightUsed - size < half)
+					break;
+				leftUsed += size;
+				rightUsed -= size;
+				moved++;
+			}
+			newSep = moved > 0 ? BTPageUtil.separator(BTPageUtil.getEntry(
+					right, moved - 1).key, BTPageUtil.getEntry(right, moved).key)
+					: null;
+		} else {
+			int count = left.getSlotCnt();
+			while (rightUsed < half) {
+				int size = left.getSlotLength(count - 1 - moved)
+						+ HFPage.SIZE_OF_SLOT;
+				if (leftUsed - size < half)
+					break;
+				leftUsed -= size;
+				rightUsed += size;
+				moved++;
+			}
+			newSep = moved > 0 ? BTPageUtil.separator(BTPageUtil.getEntry(
+					left, count - moved - 1).key, BTPageUtil.getEntry(left,
+					count - moved).key) : null;
+		}
+
+		if (newSep == null || !separatorFits(parent, sepSlot, newSep)) {
+			unpinPage(leftId);
+			unpinPage(rightId);
+			return false;
+		}
+
+		for (int i = 0; i < moved; i++) {
+			if (toLeft) {
+				BTPageUtil.insertRecordAt(left, left.getSlotCnt(),
+						BTPageUtil.getRecord(right, 0));
+				BTPageUtil.deleteRecordAt(right, 0);
+			} else {
+				int last = left.getSlotCnt() - 1;
+				BTPageUtil.insertRecordAt(right, 0,
+						BTPageUtil.getRecord(left, last));
+				BTPageUtil.deleteRecordAt(left, last);
+			}
+		}
+		replaceSeparator(parent, sepSlot, newSep, rightId);
+
+		unpinPage(leftId, true);
+		unpinPage(rightId, true);
+		return true;
+	}
+
+	/*
+	 * Merge or redistribute two pinned sibling index pages; both are unpinned
+	 * on return. Entries move through the parent: the separator is pulled
+	 * down and the neighbouring key takes its place.
+	 */
+	private boolean balanceIndexes(BTIndexPage parent, int sepSlot,
+			BTIndexPage left, BTIndexPage right)
+			throws RedistributeException, UnpinPageException,
+			FreePageException, IteratorException, DeleteRecException,
+			IndexInsertRecException, KeyNotMatchException, IOException {
+
+		PageId leftId = left.getCurPage();
+		PageId rightId = right.getCurPage();
+		KeyClass sep = BTPageUtil.getEntry(parent, sepSlot).key;
+		if (upperLevels != null) {
+			upperLevels.invalidate(leftId.pid);
+			upperLevels.invalidate(rightId.pid);
+		}
+		int half = BTPageUtil.PAGE_CAPACITY / 2;
+
+		if (BTPageUtil.usedSpace(left) + BTPageUtil.usedSpace(right)
+				+ BTPageUtil.indexEntrySize(sep) <= BTPageUtil.PAGE_CAPACITY) {
+			// merge: pull the separator down in front of the right page
+			if (!BTPageUtil.insertKeyAt(left, left.getSlotCnt(), sep,
+					right.getPrevPage()))
+				throw new RedistributeException(null, "merge failed");
+			for (int i = 0; i < right.getSlotCnt(); i++) {
+				if (!BTPageUtil.insertRecordAt(left, left.getSlotCnt(),
+						BTPageUtil.getRecord(right, i)))
+					throw new RedistributeException(null, "merge failed");
+			}
+
+			unpinPage(leftId, true);
+			unpinPage(rightId);
+			freePage(rightId);
+			BTPageUtil.deleteRecordAt(parent, sepSlot);
+			return true;
+		}
+
+		boolean changed = false;
+		if (BTPageUtil.underflow(left)) {
+			while (BTPageUtil.underflow(left)) {
+				KeyDataEntry first = BTPageUtil.getEntry(right, 0);
+				if (BTPageUtil.usedSpace(right) - right.getSlotLength(0)
+						- HFPage.SIZE_OF_SLOT < half
+						|| !separatorFits(parent, sepSlot, first.key))
+					break;
+				BTPageUtil.insertKeyAt(left, left.getSlotCnt(), sep,
+						right.getPrevPage());
+				right.setPrevPage(((IndexData) first.data).getData());
+				BTPageUtil.deleteRecordAt(right, 0);
+				replaceSeparator(parent, sepSlot, first.key, rightId);
+				sep = first.key;
+				changed = true;
+			}
+		} else {
+			while (BTPageUtil.underflow(right)) {
+				int lastSlot = left.getSlotCnt() - 1;
+				KeyDataEntry last = BTPageUtil.getEntry(left, lastSlot);
+				if (BTPageUtil.usedSpace(left) - left.getSlotLength(lastSlot)
+						- HFPage.SIZE_OF_SLOT < half
+						|| !separatorFits(parent, sepSlot, last.key))
+					break;
+				BTPageUtil.insertKeyAt(right, 0, sep, right.getPrevPage());
+				right.setPrevPage(((IndexData) last.data).getData());
+				BTPageUtil.deleteRecordAt(left, lastSlot);
+				replaceSeparator(parent, sepSlot, last.key, rightId);
+				sep = last.key;
+				changed = true;
+			}
+		}
+
+		unpinPage(leftId, changed);
+		unpinPage(rightId, changed);
+		return changed;
+	}
+
+	/*
+	 * Can the separator in `slot' of the index page be replaced by `key'?
+	 */
+	private boolean separatorFits(BTIndexPage parent, int slot, KeyClass key)
+			throws KeyNotMatchException, IOException {
+		return parent.available_space() + parent.getSlotLength(slot)
+				+ HFPage.SIZE_OF_SLOT >= BTPageUtil.indexEntrySize(key);
+	}
+
+	private void replaceSeparator(BTIndexPage parent, int slot, KeyClass key,
+			PageId child) throws DeleteRecException, IndexInsertRecException,
+			IOException {
+		BTPageUtil.deleteRecordAt(parent, slot);
+		BTPageUtil.insertKeyAt(parent, slot, key, child);
+	}
+
+	/**
+	 * Find the rids of all entries with the given key. The tree is searched
+	 * once and the leaves holding the key are read and unpinned right away,
+	 * so this is much cheaper than a scan from key to key. With a Bloom
+	 * filter, most keys the file does not hold are not searched for at all.
+	 * In concurrent mode it may be called alongside the other operations, as
+	 * new_scan may.
+	 *
+	 * @param key
+	 *            the key to look for. Input parameter.
+	 * @param out
+	 *            the list the rids are added to, in the order a scan returns
+	 *            them. Output parameter.
+	 * @return the number of rids added
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public int lookup(KeyClass key, List<RID> out) throws IOException,
+			KeyNotMatchException, IteratorException, ConstructPageException,
+			PinPageException, UnpinPageException {
+		BTBloomFilter filter = bloom;
+		if (filter != null && !filter.mightContain(key))
+			return 0;
+		if (latches != null)
+			latches.lockTreeShared();
+		boolean ok = false;
+		try {
+			int found = collect(key, out, false);
+			ok = true;
+			return found;
+		} finally {
+			if (latches != null)
+				latches.unlockTreeShared();
+			checkPins("lookup", ok);
+		}
+	}
+
+	/**
+	 * Find the rid of the first entry with the given key, the one a scan from
+	 * key to key would return first. See lookup.
+	 *
+	 * @param key
+	 *            the key to look for. Input parameter.
+	 * @return the rid, null if there is no entry with the key
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public RID lookupFirst(KeyClass key) throws IOException,
+			KeyNotMatchException, IteratorException, ConstructPageException,
+			PinPageException, UnpinPageException {
+		BTBloomFilter filter = bloom;
+		if (filter != null && !filter.mightContain(key))
+			return null;
+		List<RID> out = new ArrayList<RID>(1);
+		if (latches != null)
+			latches.lockTreeShared();
+		boolean ok = false;
+		try {
+			collect(key, out, true);
+			ok = true;
+		} finally {
+			if (latches != null)
+				latches.unlockTreeShared();
+			checkPins("lookupFirst", ok);
+		}
+		return out.isEmpty() ? null : out.get(0);
+	}
+
+	/**
+	 * Find the rids of the entries with each of the given keys, like lookup
+	 * does for one key. The keys are sorted and the tree is searched once for
+	 * all of them: every index page is pinned once and the keys below it are
+	 * handed down to their children together, and every leaf is pinned once
+	 * for all the keys it may hold. Only a run of duplicates that goes on into
+	 * the next leaf makes that leaf pinned again.
+	 *
+	 * @param keys
+	 *            the keys to look for, in any order, duplicates allowed. Input
+	 *            parameter.
+	 * @param out
+	 *            the list a list of rids is added to for every key, in the
+	 *            order of keys; each holds the rids lookup would find for the
+	 *            key. Output parameter.
+	 * @return the number of rids found for all keys together
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception KeyNotMatchException
+	 *                a key is not of the key type of the file
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public int lookupBatch(KeyClass[] keys, List<List<RID>> out)
+			throws IOException, KeyNotMatchException, IteratorException,
+			ConstructPageException, PinPageException, UnpinPageException {
+		int first = out.size();
+		int[] probes = new int[keys.length];
+		int count = 0;
+		BTBloomFilter filter = bloom;
+		boolean intKeys = headerPage.get_keyType() == AttrType.attrInteger;
+		for (int i = 0; i < keys.length; i++) {
+			if (intKeys ? !(keys[i] instanceof IntegerKey)
+					: !(keys[i] instanceof StringKey))
+				throw new KeyNotMatchException(null, "key " + i
+						+ " is not of the key type of the file");
+			out.add(new ArrayList<RID>(1));
+			if (filter == null || filter.mightContain(keys[i]))
+				probes[count++] = i;
+		}
+		sortProbes(keys, probes, count, intKeys);
+
+		KeyClass[] sorted = new KeyClass[count];
+		List<List<RID>> results = new ArrayList<List<RID>>(count);
+		for (int i = 0; i < count; i++) {
+			sorted[i] = keys[probes[i]];
+			results.add(out.get(first + probes[i]));
+		}
+
+		if (latches != null)
+			latches.lockTreeShared();
+		boolean ok = false;
+		try {
+			PageId root = headerPage.get_rootId();
+			if (sorted.length > 0 && root.pid != INVALID_PAGE) {
+				int cached = 0;
+				if (upperLevels != null && latches == null) {
+					checkShape();
+					if (upperLevels.levels() < 0)
+						upperLevels.setHeight(height());
+					cached = upperLevels.levels();
+				}
+				collectBatch(root, cached, sorted, results, 0, sorted.length);
+			}
+			ok = true;
+		} finally {
+			if (latches != null)
+				latches.unlockTreeShared();
+			checkPins("lookupBatch", ok);
+		}
+
+		int found = 0;
+		for (List<RID> rids : results)
+			found += rids.size();
+		return found;
 	}
+
+	/*
+	 * Sort the first count indexes into keys in probes by their keys. Integer
+	 * keys are sorted as longs holding the key above the index, which spares
+	 * boxing the indexes and comparing the keys through BT.keyCompare.
+	 */
+	private static void sortProbes(final KeyClass[] keys, int[] probes,
+			int count, boolean intKeys) {
+		if (intKeys) {
+			long[] packed = new long[count];
+			for (int i = 0; i < count; i++)
+				packed[i] = ((long) ((IntegerKey) keys[probes[i]]).getKey() << 32)
+						| probes[i];
+			Arrays.sort(packed);
+			for (int i = 0; i < count; i++)
+				probes[i] = (int) packed[i];
+			return;
+		}
+
+		Integer[] order = new Integer[count];
+		for (int i = 0; i < count; i++)
+			order[i] = probes[i];
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return ((StringKey) keys[a]).getKey().compareTo(
+						((StringKey) keys[b]).getKey());
+			}
+		});
+		for (int i = 0; i < count; i++)
+			probes[i] = order[i];
+	}
+
+	/*
+	 * Add the rids of the entries with the given key to out, or only that of
+	 * the first one if first is set, and return how many were added. The
+	 * leaves are latched while they are read in concurrent mode, like in
+	 * findRunStart; a run of duplicates may go on into the next leaves.
+	 */
+	private int collect(KeyClass key, List<RID> out, boolean first)
+			throws IOException, KeyNotMatchException, IteratorException,
+			ConstructPageException, PinPageException, UnpinPageException {
+		BTLeafPage leaf = findLeftLeaf(key);
+		if (leaf == null)
+			return 0;
+
+		PageId pageno = leaf.getCurPage();
+		int before = out.size();
+		latchShared(pageno);
+		try {
+			if (readRun(leaf, BTPageUtil.lowerBound(leaf, key), key, out, first))
+				continueRun(leaf.getNextPage(), key, out, first);
+			unpinPage(pageno);
+			return out.size() - before;
+		} finally {
+			unlatchShared(pageno);
+		}
+	}
+
+	/*
+	 * Add the rids of the sorted keys from lo to hi (exclusive) below the
+	 * given page to their lists in results. The first cached levels are gone
+	 * down in memory; below them every page is pinned once, and the keys are
+	 * handed to the child findLeftLeaf would go down to for them, after the
+	 * page is unpinned again. Equal keys are looked up once.
+	 */
+	private void collectBatch(PageId pageno, int cached, KeyClass[] keys,
+			List<List<RID>> results, int lo, int hi) throws IOException,
+			KeyNotMatchException, IteratorException, ConstructPageException,
+			PinPageException, UnpinPageException {
+		traceVisit(pageno);
+		int[] children = new int[hi - lo];
+		if (cached > 0) {
+			BTUpperLevels.Node node = upperLevels.get(pageno.pid);
+			if (node == null) {
+				node = upperLevels.put(new BTIndexPage(pinPage(pageno),
+						headerPage.get_keyType()));
+				unpinPage(pageno);
+			}
+			for (int i = lo; i < hi; i++)
+				children[i - lo] = node.child(keys[i], false);
+		} else {
+			BTSortedPage sortPage = new BTSortedPage(pinPage(pageno),
+					headerPage.get_keyType());
+			if (sortPage.getType() != NodeType.INDEX) {
+				collectLeaf(new BTLeafPage(sortPage, headerPage.get_keyType()),
+						keys, results, lo, hi);
+				return;
+			}
+			BTIndexPage pageIndex = new BTIndexPage(sortPage, headerPage
+					.get_keyType());
+			for (int i = lo; i < hi; i++)
+				children[i - lo] = BTPageUtil.getChild(pageIndex,
+						BTPageUtil.lowerBound(pageIndex, keys[i]) - 1).pid;
+			unpinPage(pageno);
+		}
+
+		// the keys are sorted, so those going to the same child are together
+		int start = lo;
+		for (int i = lo + 1; i <= hi; i++)
+			if (i == hi || children[i - lo] != children[start - lo]) {
+				collectBatch(new PageId(children[start - lo]), cached - 1, keys,
+						results, start, i);
+				start = i;
+			}
+	}
+
+	/*
+	 * Add the rids of the sorted keys from lo to hi (exclusive) on the given
+	 * pinned leaf, and on the next leaves where a run of duplicates goes on,
+	 * to their lists in results, and unpin the leaf.
+	 */
+	private void collectLeaf(BTLeafPage leaf, KeyClass[] keys,
+			List<List<RID>> results, int lo, int hi) throws IOException,
+			KeyNotMatchException, IteratorException, ConstructPageException,
+			PinPageException, UnpinPageException {
+		PageId pageno = leaf.getCurPage();
+		latchShared(pageno);
+		try {
+			for (int i = lo; i < hi; i++) {
+				List<RID> out = results.get(i);
+				if (i > lo && BT.keyCompare(keys[i], keys[i - 1]) == 0) {
+					out.addAll(results.get(i - 1));
+					continue;
+				}
+				if (readRun(leaf, BTPageUtil.lowerBound(leaf, keys[i]), keys[i],
+						out, false))
+					continueRun(leaf.getNextPage(), keys[i], out, false);
+			}
+			unpinPage(pageno);
+		} finally {
+			unlatchShared(pageno);
+		}
+	}
+
+	/*
+	 * Add the rids of the entries with the given key from slot on to out, or
+	 * only the first one if first is set. Returns true if the run of the key
+	 * may go on into the next leaf: it reaches the end of this one, and first
+	 * is not set or nothing was added.
+	 */
+	private boolean readRun(BTLeafPage leaf, int slot, KeyClass key,
+			List<RID> out, boolean first) throws IOException,
+			KeyNotMatchException, IteratorException {
+		int count = BTPageUtil.slotCount(leaf);
+		for (; slot < count && BTPageUtil.compareKey(leaf, slot, key) == 0;
+				slot++) {
+			RID rid = new RID();
+			BTPageUtil.getRid(leaf, slot, rid);
+			out.add(rid);
+			if (first)
+				return false;
+		}
+		return slot == count;
+	}
+
+	/*
+	 * Go on with a run of entries with the given key from the start of the
+	 * given leaf on, while it lasts, latching and pinning one leaf at a time.
+	 */
+	private void continueRun(PageId pageno, KeyClass key, List<RID> out,
+			boolean first) throws IOException, KeyNotMatchException,
+			IteratorException, ConstructPageException, PinPageException,
+			UnpinPageException {
+		while (pageno.pid != INVALID_PAGE) {
+			PageId leafno = pageno;
+			latchShared(leafno);
+			try {
+				BTLeafPage leaf = new BTLeafPage(pinPage(leafno), headerPage
+						.get_keyType());
+				boolean more = readRun(leaf, 0, key, out, first);
+				pageno = leaf.getNextPage();
+				unpinPage(leafno);
+				if (!more)
+					return;
+			} finally {
+				unlatchShared(leafno);
+			}
+		}
+	}
+
 	/**
 	 * create a scan with given keys Cases: (1) lo_key = null, hi_key = null
 	 * scan the whole index (2) lo_key = null, hi_key!= null range scan from min
@@ -920,12 +2970,105 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			ConstructPageException, PinPageException, UnpinPageException
 
 	{
-		BTFileScan scan = new BTFileScan();
-		if (headerPage.get_rootId().pid == INVALID_PAGE) {
-			scan.leafPage = null;
+		boolean ok = false;
+		try {
+			if (latches != null) {
+				ConcurrentBTFileScan scan = new ConcurrentBTFileScan(latches,
+						lo_key, readAhead ? new BTReadAhead() : null);
+				initScan(scan, hi_key);
+				for (int i = 0; i < BTLatches.OPTIMISTIC_TRIES; i++)
+					if (startOptimistic(scan, lo_key)) {
+						ok = true;
+						return scan;
+					}
+
+				latches.lockTreeShared();
+				try {
+					if (headerPage.get_rootId().pid == INVALID_PAGE)
+						scan.leafPage = null;
+					else
+						scan.start(handOver(findRunStart(lo_key, scan.curRid)));
+					ok = true;
+					return scan;
+				} finally {
+					latches.unlockTreeShared();
+				}
+			}
+			BTFileScan scan = newScan(new BTFileScan(), lo_key, hi_key);
+			ok = true;
 			return scan;
+		} finally {
+			checkPins("new_scan", ok);
+		}
+	}
+
+	/*
+	 * Start a concurrent scan without latching: go down to the leaf where lo_key
+	 * belongs, checking before every step that no writer has had the tree
+	 * exclusive since the descent began. The scan finds its first entry on the
+	 * leaf by itself, so the leaf needs no check.
+	 *
+	 * Returns false, with nothing left pinned, if a writer got in the way.
+	 */
+	private boolean startOptimistic(ConcurrentBTFileScan scan, KeyClass lo_key)
+			throws IOException, PinPageException, UnpinPageException,
+			ConstructPageException {
+		long version = latches.treeVersion();
+		if (!BTLatches.stable(version))
+			return false;
+
+		PageId pageno = new PageId(headerPage.get_rootId().pid);
+		if (pageno.pid == INVALID_PAGE) {
+			scan.leafPage = null;
+			VarHandle.acquireFence();
+			return latches.treeVersion() == version;
+		}
+
+		BTSortedPage page = null;
+		try {
+			page = new BTSortedPage(pinPage(pageno), headerPage.get_keyType());
+			while (page.getType() == NodeType.INDEX) {
+				BTIndexPage index = new BTIndexPage(page,
+						headerPage.get_keyType());
+				PageId child = new PageId((lo_key == null) ? index
+						.getPrevPage().pid : BTPageUtil.getChild(index,
+						BTPageUtil.lowerBound(index, lo_key) - 1).pid);
+				VarHandle.acquireFence();
+				if (latches.treeVersion() != version)
+					break;
+				unpinPage(pageno);
+				page = null;
+				pageno = child;
+				page = new BTSortedPage(pinPage(pageno), headerPage
+						.get_keyType());
+			}
+		} catch (IteratorException e) {
+			// read a page while it was changed, checked below
+		} catch (KeyNotMatchException e) {
+		} catch (RuntimeException e) {
+		}
+
+		if (page != null && page.getType() == NodeType.LEAF) {
+			// the scan is registered before the check, so a writer either
+			// sees it or shows up in the version
+			scan.start(handOver(new BTLeafPage(page, headerPage
+					.get_keyType())));
+			VarHandle.acquireFence();
+			if (latches.treeVersion() == version)
+				return true;
+			try {
+				scan.DestroyBTreeFileScan();
+			} catch (Exception e) {
+				throw new UnpinPageException(e, "");
+			}
+			return false;
 		}
+		if (page != null)
+			unpinPage(pageno);
+		return false;
+	}
 
+	private void initScan(BTFileScan scan, KeyClass hi_key) throws IOException {
 		scan.treeFilename = dbname;
 		scan.endkey = hi_key;
 		scan.didfirst = false;
@@ -934,12 +3077,183 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 		scan.keyType = headerPage.get_keyType();
 		scan.maxKeysize = headerPage.get_maxKeySize();
 		scan.bfile = this;
+	}
+
+	private BTFileScan newScan(BTFileScan scan, KeyClass lo_key,
+			KeyClass hi_key) throws IOException, KeyNotMatchException,
+			IteratorException, ConstructPageException, PinPageException,
+			UnpinPageException {
+		if (headerPage.get_rootId().pid == INVALID_PAGE) {
+			scan.leafPage = null;
+			return scan;
+		}
+
+		initScan(scan, hi_key);
 
 		// this sets up scan at the starting position, ready for iteration
-		scan.leafPage = findRunStart(lo_key, scan.curRid);
+		scan.leafPage = handOver(findRunStart(lo_key, scan.curRid));
 		return scan;
 	}
 
+	/**
+	 * Create a scan from lo_key to hi_key, see new_scan for the meaning of the
+	 * keys, that returns the entries as they were when it was created: it
+	 * sees none of the inserts and deletes made while it runs, and in
+	 * concurrent mode they go on while it runs without waiting for it. While
+	 * such a scan is open the file keeps the leaves the scan may still read
+	 * as they were before they changed (see SnapshotBTFileScan), which costs
+	 * writers a copy of every leaf they pin. The scan should be run to its end
+	 * or destroyed, after which the copies kept for it go.
+	 *
+	 * In concurrent mode creating the scan holds the tree latch exclusive
+	 * for as long as it takes to find the first leaf.
+	 *
+	 * @param lo_key
+	 *            the key where we begin scanning. Input parameter.
+	 * @param hi_key
+	 *            the key where we stop scanning. Input parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public BTFileScan new_snapshot_scan(KeyClass lo_key, KeyClass hi_key)
+			throws IOException, KeyNotMatchException, IteratorException,
+			ConstructPageException, PinPageException, UnpinPageException {
+		SnapshotBTFileScan scan = new SnapshotBTFileScan(latches, lo_key);
+		initScan(scan, hi_key);
+
+		// no change may be half done when the snapshot is taken
+		if (latches != null)
+			latches.lockTreeExclusive();
+		boolean ok = false;
+		try {
+			if (snapshots == null)
+				snapshots = new BTSnapshots();
+			PageId first = new PageId(INVALID_PAGE);
+			if (headerPage.get_rootId().pid != INVALID_PAGE) {
+				BTLeafPage leaf = findRunStart(lo_key, scan.curRid);
+				if (leaf != null) {
+					first = leaf.getCurPage();
+					unpinPage(first);
+				}
+			}
+			scan.start(snapshots, snapshots.open(), first);
+			ok = true;
+		} finally {
+			if (latches != null)
+				latches.unlockTreeExclusive();
+			checkPins("new_snapshot_scan", ok);
+		}
+		return scan;
+	}
+
+	/**
+	 * @return the number of old leaf versions kept for the snapshot scans
+	 *         open, see new_snapshot_scan
+	 */
+	public int getSnapshotVersionCount() {
+		return snapshots == null ? 0 : snapshots.getVersionCount();
+	}
+
+	/**
+	 * Create a scan that returns the entries from hi_key down to lo_key, the
+	 * largest key first; either key may be null for no bound, as with
+	 * new_scan. Duplicates come out in the reverse of the order new_scan
+	 * returns them. Reverse scans are not offered in concurrent mode.
+	 *
+	 * @param lo_key
+	 *            the key where we stop scanning. Input parameter.
+	 * @param hi_key
+	 *            the key where we begin scanning. Input parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception IteratorException
+	 *                iterator error, or the file is in concurrent mode
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public BTFileScan new_reverse_scan(KeyClass lo_key, KeyClass hi_key)
+			throws IOException, KeyNotMatchException, IteratorException,
+			ConstructPageException, PinPageException, UnpinPageException {
+		if (latches != null)
+			throw new IteratorException(null,
+					"reverse scans are not offered in concurrent mode");
+
+		BTReverseFileScan scan = new BTReverseFileScan();
+		if (headerPage.get_rootId().pid == INVALID_PAGE) {
+			scan.leafPage = null;
+			return scan;
+		}
+
+		// the scan ends at lo_key
+		boolean ok = false;
+		try {
+			initScan(scan, lo_key);
+			scan.leafPage = handOver(findRunEnd(hi_key, scan.curRid));
+			ok = true;
+		} finally {
+			checkPins("new_reverse_scan", ok);
+		}
+		return scan;
+	}
+
+	/**
+	 * Open a cursor on the entries from lo_key to hi_key, see new_scan for the
+	 * meaning of the keys. Unlike a scan the cursor reuses one position for
+	 * every entry, see BTFileCursor.
+	 *
+	 * @param lo_key
+	 *            the key where we begin scanning. Input parameter.
+	 * @param hi_key
+	 *            the key where we stop scanning. Input parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception IteratorException
+	 *                iterator error, or the file is in concurrent mode
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public BTFileCursor new_cursor(KeyClass lo_key, KeyClass hi_key)
+			throws IOException, KeyNotMatchException, IteratorException,
+			ConstructPageException, PinPageException, UnpinPageException {
+		if (latches != null)
+			throw new IteratorException(null,
+					"cursors are not offered in concurrent mode");
+
+		RID startrid = new RID();
+		BTLeafPage leaf;
+		boolean ok = false;
+		try {
+			leaf = headerPage.get_rootId().pid == INVALID_PAGE ? null
+					: handOver(findRunStart(lo_key, startrid));
+			ok = true;
+		} finally {
+			checkPins("new_cursor", ok);
+		}
+		return new BTFileCursor(leaf, startrid.slotNo, hi_key);
+	}
+
 	void trace_children(PageId id) throws IOException, IteratorException,
 			ConstructPageException, PinPageException, UnpinPageException {
 
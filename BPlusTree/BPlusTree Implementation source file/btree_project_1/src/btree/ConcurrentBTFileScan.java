@@ -0,0 +1,322 @@
+package btree;
+
+import java.io.*;
+import java.lang.invoke.*;
+
+import bufmgr.*;
+import global.*;
+
+/**
+ * ConcurrentBTFileScan.java The scan new_scan hands out for a BTreeFile in
+ * concurrent mode. get_next first reads without latches and checks the tree
+ * and leaf versions afterwards (see BTLatches), trying again if a writer got
+ * in the way. After a few failed tries it holds the tree latch shared and the
+ * leaf it reads latched shared, moving right with the next leaf latched
+ * before the current one is let go.
+ *
+ * Between two calls other threads may insert into or split the leaf the scan
+ * stands on, so the scan does not trust its slot number. It remembers the
+ * last entry it returned and goes on behind it by key, which never skips an
+ * entry that is in the index for the whole scan and never returns one twice,
+ * except for duplicates of a key whose last returned entry was deleted.
+ */
+public class ConcurrentBTFileScan extends BTFileScan {
+
+	private BTLatches latches;
+
+	private KeyClass lokey;
+
+	/** The last entry returned, null before the first one. */
+	private KeyDataEntry last;
+
+	/** Set by optimisticNext when a writer got in the way. */
+	private boolean conflict;
+
+	/** Reads the next leaves in ahead of the scan, null if it is off. */
+	private BTReadAhead readAhead;
+
+	ConcurrentBTFileScan(BTLatches latches, KeyClass lokey,
+			BTReadAhead readAhead) {
+		this.latches = latches;
+		this.lokey = lokey;
+		this.readAhead = readAhead;
+	}
+
+	/**
+	 * Hold the leaf found by findRunStart as the starting point of the scan.
+	 */
+	void start(BTLeafPage leaf) throws IOException {
+		leafPage = leaf;
+		if (leafPage != null) {
+			latches.scanPinned(leafPage.getCurPage(), 1);
+			entered();
+		}
+	}
+
+	/*
+	 * Let the read-ahead know the scan is on a new leaf.
+	 */
+	private void entered() throws IOException {
+		if (readAhead != null)
+			readAhead.entered(leafPage.getCurPage().pid);
+	}
+
+	/**
+	 * Iterate once (during a scan).
+	 *
+	 * @return null if done; otherwise next KeyDataEntry
+	 * @exception ScanIteratorException
+	 *                iterator error
+	 */
+	public KeyDataEntry get_next() throws ScanIteratorException {
+		if (leafPage == null)
+			return null;
+
+		try {
+			for (int i = 0; i < BTLatches.OPTIMISTIC_TRIES; i++) {
+				KeyDataEntry entry = optimisticNext();
+				if (!conflict)
+					return entry;
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ScanIteratorException(e, "get_next failed");
+		}
+
+		latches.lockTreeShared();
+		try {
+			return nextEntry();
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ScanIteratorException(e, "get_next failed");
+		} finally {
+			latches.unlockTreeShared();
+		}
+	}
+
+	/*
+	 * nextEntry without latches. A leaf is only trusted, and only left for its
+	 * right neighbour, once the versions show that no writer had it or the
+	 * tree while it was read; otherwise conflict is set and the scan stays
+	 * where it was.
+	 */
+	private KeyDataEntry optimisticNext() throws Exception {
+		conflict = true;
+		long tree = latches.treeVersion();
+		PageId pageno = new PageId(leafPage.getCurPage().pid);
+		long page = latches.pageVersion(pageno);
+		if (!BTLatches.stable(tree) || !BTLatches.stable(page))
+			return null;
+
+		KeyDataEntry entry;
+		try {
+			int slot = position();
+			while (slot == leafPage.getSlotCnt()) {
+				PageId nextpage = new PageId(leafPage.getNextPage().pid);
+				if (!unchanged(tree, pageno, page))
+					return null;
+				if (nextpage.pid == INVALID_PAGE) {
+					release();
+					conflict = false;
+					return null;
+				}
+
+				BTLeafPage next = BTPageUtil.pinLeaf(nextpage, keyType);
+				latches.scanPinned(nextpage, 1);
+				release();
+				leafPage = next;
+				pageno = nextpage;
+				entered();
+
+				// the move was checked, from here on it is the new leaf
+				page = latches.pageVersion(pageno);
+				VarHandle.acquireFence();
+				if (latches.treeVersion() != tree || !BTLatches.stable(page))
+					return null;
+				slot = position();
+			}
+
+			entry = BTPageUtil.getEntry(leafPage, slot);
+			if (!unchanged(tree, pageno, page))
+				return null;
+			curRid.pageNo = pageno;
+			curRid.slotNo = slot;
+		} catch (IteratorException e) {
+			// garbage from a leaf changed while it was read
+			if (unchanged(tree, pageno, page))
+				throw e;
+			return null;
+		} catch (KeyNotMatchException e) {
+			if (unchanged(tree, pageno, page))
+				throw e;
+			return null;
+		} catch (RuntimeException e) {
+			if (unchanged(tree, pageno, page))
+				throw e;
+			return null;
+		}
+
+		conflict = false;
+		if (endkey != null && BT.keyCompare(entry.key, endkey) > 0) {
+			// went past right end of scan
+			release();
+			if (readAhead != null)
+				readAhead.close();
+			return null;
+		}
+		last = entry;
+		didfirst = true;
+		deletedcurrent = false;
+		return entry;
+	}
+
+	private boolean unchanged(long tree, PageId pageno, long page) {
+		// the plain reads of the leaf must not move below the check, or a
+		// leaf torn by a writer could pass it
+		VarHandle.acquireFence();
+		return latches.treeVersion() == tree
+				&& latches.pageVersion(pageno) == page;
+	}
+
+	private KeyDataEntry nextEntry() throws IOException, IteratorException,
+			KeyNotMatchException, ConstructPageException,
+			PageUnpinnedException, InvalidFrameNumberException,
+			HashEntryNotFoundException, ReplacerException {
+		PageId pageno = leafPage.getCurPage();
+		latches.lockShared(pageno);
+		try {
+			int slot = position();
+			while (slot == leafPage.getSlotCnt()) {
+				PageId nextpage = leafPage.getNextPage();
+				if (nextpage.pid == INVALID_PAGE) {
+					release();
+					return null;
+				}
+
+				// latch the next leaf before letting go of this one
+				latches.lockShared(nextpage);
+				BTLeafPage next;
+				try {
+					next = BTPageUtil.pinLeaf(nextpage, keyType);
+				} catch (ConstructPageException e) {
+					latches.unlockShared(nextpage);
+					throw e;
+				}
+				latches.scanPinned(nextpage, 1);
+				release();
+				latches.unlockShared(pageno);
+
+				pageno = nextpage;
+				leafPage = next;
+				entered();
+				slot = position();
+			}
+
+			KeyDataEntry entry = BTPageUtil.getEntry(leafPage, slot);
+			if (endkey != null && BT.keyCompare(entry.key, endkey) > 0) {
+				// went past right end of scan
+				release();
+				if (readAhead != null)
+					readAhead.close();
+				return null;
+			}
+
+			curRid.pageNo = new PageId(pageno.pid);
+			curRid.slotNo = slot;
+			last = entry;
+			didfirst = true;
+			deletedcurrent = false;
+			return entry;
+		} finally {
+			latches.unlockShared(pageno);
+		}
+	}
+
+	/*
+	 * The slot of the first entry on the (latched) leaf that comes after the
+	 * last entry returned, or after lokey before the first one.
+	 */
+	private int position() throws IOException, IteratorException,
+			KeyNotMatchException {
+		if (last == null)
+			return (lokey == null) ? 0 : BTPageUtil.lowerBound(leafPage, lokey);
+
+		int count = leafPage.getSlotCnt();
+		if (curRid.pageNo.pid == leafPage.getCurPage().pid
+				&& curRid.slotNo < count
+				&& sameEntry(curRid.slotNo))
+			return curRid.slotNo + 1;
+
+		// the page changed under us, find the last entry again by key
+		int slot = BTPageUtil.lowerBound(leafPage, last.key);
+		for (int i = slot; i < count; i++) {
+			if (BTPageUtil.compareKey(leafPage, i, last.key) != 0)
+				break;
+			if (BTPageUtil.ridEquals(leafPage, i, ((LeafData) last.data)
+					.getData()))
+				return i + 1;
+		}
+		return slot;
+	}
+
+	private boolean sameEntry(int slot) throws IteratorException,
+			KeyNotMatchException {
+		return BTPageUtil.compareKey(leafPage, slot, last.key) == 0
+				&& BTPageUtil.ridEquals(leafPage, slot, ((LeafData) last.data)
+						.getData());
+	}
+
+	/*
+	 * Unpin the leaf the scan stands on and end the scan there.
+	 */
+	private void release() throws IOException, PageUnpinnedException,
+			InvalidFrameNumberException, HashEntryNotFoundException,
+			ReplacerException {
+		PageId pageno = leafPage.getCurPage();
+		BTPageUtil.unpin(pageno, false);
+		latches.scanPinned(pageno, -1);
+		leafPage = null;
+	}
+
+	/**
+	 * Delete currently-being-scanned(i.e., just scanned) data entry.
+	 *
+	 * @exception ScanDeleteException
+	 *                delete error when scan
+	 */
+	public void delete_current() throws ScanDeleteException {
+		if (leafPage == null)
+			throw new ScanDeleteException(null, "No Record to delete!");
+		if (last == null || deletedcurrent)
+			return;
+
+		try {
+			// Delete takes the tree latch exclusive, so let go of the leaf
+			release();
+			bfile.Delete(last.key, ((LeafData) last.data).getData());
+
+			latches.lockTreeShared();
+			try {
+				start(bfile.findRunStart(last.key, curRid));
+			} finally {
+				latches.unlockTreeShared();
+			}
+			deletedcurrent = true;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ScanDeleteException(e, "delete_current failed");
+		}
+	}
+
+	/**
+	 * Destructor, unpins the leaf the scan stands on and stops reading ahead.
+	 */
+	public void DestroyBTreeFileScan() throws IOException,
+			InvalidFrameNumberException, ReplacerException,
+			PageUnpinnedException, HashEntryNotFoundException {
+		if (leafPage != null)
+			release();
+		if (readAhead != null)
+			readAhead.close();
+	}
+}
@@ -0,0 +1,180 @@
+package btree;
+
+import java.io.*;
+import java.util.*;
+
+import bufmgr.*;
+import diskmgr.*;
+import global.*;
+
+/**
+ * SnapshotBTFileScan.java The scan new_snapshot_scan hands out. It returns
+ * the entries of the index as they were when it was opened, however the
+ * index changes meanwhile, and never makes a writer wait for it: it holds no
+ * pin and no latch between two calls of get_next (see BTSnapshots).
+ *
+ * The scan reads a leaf at a time. It copies out the entries of the leaf as
+ * the snapshot sees them, from the leaf in the buffer pool if the leaf did
+ * not change since the scan was opened and from its kept version otherwise,
+ * and takes the next leaf from the same image. In concurrent mode the leaf is
+ * latched shared, with the tree latch held shared, only while it is copied.
+ *
+ * The snapshot is closed when the scan reaches its end or is destroyed, which
+ * lets the versions kept for it go.
+ */
+public class SnapshotBTFileScan extends BTFileScan {
+
+	private BTLatches latches;
+
+	private KeyClass lokey;
+
+	private BTSnapshots snapshots;
+
+	/** The clock number of the snapshot, see BTSnapshots. */
+	private long snapshot;
+
+	/** The leaf to read after the entries copied, INVALID_PAGE at the end. */
+	private PageId next;
+
+	/** Whether the snapshot is still open. */
+	private boolean open;
+
+	/** The entries of the last leaf read. */
+	private final List<KeyDataEntry> entries = new ArrayList<KeyDataEntry>();
+
+	private int position;
+
+	/** The last entry returned, null before the first one. */
+	private KeyDataEntry last;
+
+	SnapshotBTFileScan(BTLatches latches, KeyClass lokey) {
+		this.latches = latches;
+		this.lokey = lokey;
+	}
+
+	/**
+	 * Start the scan on the given snapshot at the given leaf, INVALID_PAGE if
+	 * there is none.
+	 */
+	void start(BTSnapshots snapshots, long snapshot, PageId first) {
+		this.snapshots = snapshots;
+		this.snapshot = snapshot;
+		this.next = new PageId(first.pid);
+		open = true;
+	}
+
+	/**
+	 * Iterate once (during a scan).
+	 *
+	 * @return null if done; otherwise next KeyDataEntry
+	 * @exception ScanIteratorException
+	 *                iterator error
+	 */
+	public KeyDataEntry get_next() throws ScanIteratorException {
+		try {
+			while (open) {
+				while (position < entries.size()) {
+					KeyDataEntry entry = entries.get(position++);
+					if (lokey != null && BT.keyCompare(entry.key, lokey) < 0)
+						continue;
+					if (endkey != null && BT.keyCompare(entry.key, endkey) > 0) {
+						// went past right end of scan
+						close();
+						return null;
+					}
+					last = entry;
+					didfirst = true;
+					deletedcurrent = false;
+					return entry;
+				}
+				if (next.pid == INVALID_PAGE)
+					close();
+				else
+					readLeaf();
+			}
+			return null;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ScanIteratorException(e, "get_next failed");
+		}
+	}
+
+	/*
+	 * Copy out the entries of the next leaf as the snapshot sees it.
+	 */
+	private void readLeaf() throws IOException, IteratorException,
+			KeyNotMatchException, ConstructPageException,
+			PageUnpinnedException, InvalidFrameNumberException,
+			HashEntryNotFoundException, ReplacerException {
+		PageId pageno = next;
+		if (latches != null) {
+			latches.lockTreeShared();
+			latches.lockShared(pageno);
+		}
+		try {
+			byte[] image = snapshots.version(pageno, snapshot);
+			BTLeafPage leaf;
+			if (image != null) {
+				leaf = new BTLeafPage(new Page(image), keyType);
+			} else {
+				leaf = BTPageUtil.pinLeaf(pageno, keyType);
+			}
+			try {
+				entries.clear();
+				position = 0;
+				int count = BTPageUtil.slotCount(leaf);
+				for (int slot = 0; slot < count; slot++)
+					entries.add(BTPageUtil.getEntry(leaf, slot));
+				next = new PageId(leaf.getNextPage().pid);
+			} finally {
+				if (image == null)
+					BTPageUtil.unpin(pageno, false);
+			}
+		} finally {
+			if (latches != null) {
+				latches.unlockShared(pageno);
+				latches.unlockTreeShared();
+			}
+		}
+	}
+
+	/*
+	 * End the scan and close its snapshot.
+	 */
+	private void close() {
+		if (open)
+			snapshots.close(snapshot);
+		open = false;
+		entries.clear();
+		position = 0;
+	}
+
+	/**
+	 * Delete currently-being-scanned(i.e., just scanned) data entry. The
+	 * entry goes from the index; the scan goes on as it was opened.
+	 *
+	 * @exception ScanDeleteException
+	 *                delete error when scan
+	 */
+	public void delete_current() throws ScanDeleteException {
+		if (last == null)
+			throw new ScanDeleteException(null, "No Record to delete!");
+		if (deletedcurrent)
+			return;
+
+		try {
+			bfile.Delete(last.key, ((LeafData) last.data).getData());
+			deletedcurrent = true;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ScanDeleteException(e, "delete_current failed");
+		}
+	}
+
+	/**
+	 * Destructor, closes the snapshot if the scan did not reach its end.
+	 */
+	public void DestroyBTreeFileScan() {
+		close();
+	}
+}
@@ -0,0 +1,586 @@
+package bufmgr;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+import diskmgr.*;
+import global.*;
+
+/**
+ * ConcurrentBufMgr.java A buffer manager that may be called from several
+ * threads at once, without a lock around it. Pages are hashed onto stripes,
+ * each with a lock and a page table of its own, so pins of pages on
+ * different stripes do not wait for each other. The frames are split among
+ * the stripes too, and a stripe that needs a frame sweeps its own part of the
+ * pool with a clock hand of its own, looking at the other parts only if its
+ * own has nothing to spare.
+ *
+ * Pin counts are kept in an atomic array rather than in frame descriptors,
+ * so a sweep can pass over pinned frames of other stripes without
+ * locking them. A frame is taken by setting its pin count from 0 to -1 with
+ * the stripe of its page locked, which keeps that page from being pinned
+ * while it is written out and dropped. Page reads and writes are done one at
+ * a time, as DB is not thread safe.
+ *
+ * Lock order: the allocation lock, then a stripe, then other stripes (only
+ * ever tried, never waited for), then the I/O lock.
+ */
+public class ConcurrentBufMgr extends BufMgr {
+
+	/** Fewest frames a stripe gets. */
+	private static final int STRIPE_FRAMES = 8;
+
+	private static final int MAX_STRIPES = 16;
+
+	private int numBuffers;
+
+	private byte[][] bufPool;
+
+	/** The page in each frame, INVALID_PAGE if none, and whether it is dirty. */
+	private int[] framePages;
+
+	private boolean[] frameDirty;
+
+	/** Pin count of each frame, -1 while it is being given to a new page. */
+	private AtomicIntegerArray pinCounts;
+
+	/** Set when a frame is pinned, cleared when a clock hand passes it. */
+	private boolean[] referenced;
+
+	private Stripe[] stripes;
+
+	private final Object io = new Object();
+
+	private final Object alloc = new Object();
+
+	private static class Stripe {
+		final ReentrantLock lock = new ReentrantLock();
+
+		final PageTable table;
+
+		/** The frames of the stripe, lo inclusive and hi exclusive. */
+		final int lo;
+
+		final int hi;
+
+		int hand;
+
+		Stripe(int lo, int hi) {
+			this.lo = lo;
+			this.hi = hi;
+			table = new PageTable(hi - lo);
+		}
+	}
+
+	/**
+	 * Create a buffer manager.
+	 *
+	 * @param numbufs
+	 *            number of buffers in the buffer pool. Input parameter.
+	 */
+	public ConcurrentBufMgr(int numbufs) {
+		// the pool of BufMgr itself is never used
+		super(0, "Clock");
+		numBuffers = numbufs;
+		bufPool = new byte[numbufs][MAX_SPACE];
+		framePages = new int[numbufs];
+		Arrays.fill(framePages, INVALID_PAGE);
+		frameDirty = new boolean[numbufs];
+		pinCounts = new AtomicIntegerArray(numbufs);
+		referenced = new boolean[numbufs];
+
+		int count = Math.max(1, Math.min(MAX_STRIPES, numbufs / STRIPE_FRAMES));
+		stripes = new Stripe[count];
+		for (int i = 0; i < count; i++)
+			stripes[i] = new Stripe(numbufs * i / count, numbufs * (i + 1)
+					/ count);
+	}
+
+	private Stripe stripe(int pid) {
+		return stripes[(pid & 0x7fffffff) % stripes.length];
+	}
+
+	/**
+	 * Pin a page, reading it in first unless it is in the pool.
+	 *
+	 * @param pin_pgid
+	 *            page number in the minibase. Input parameter.
+	 * @param page
+	 *            the pointer poit to the page. Output parameter.
+	 * @param emptyPage
+	 *            true (empty page); false (non-empty page). Input parameter.
+	 * @exception BufferPoolExceededException
+	 *                every frame is pinned
+	 * @exception PageNotReadException
+	 *                the page could not be read
+	 * @exception BufMgrException
+	 *                error when writing out the page the frame held
+	 */
+	public void pinPage(PageId pin_pgid, Page page, boolean emptyPage)
+			throws ReplacerException, HashOperationException,
+			PageUnpinnedException, InvalidFrameNumberException,
+			PageNotReadException, BufferPoolExceededException,
+			PagePinnedException, BufMgrException, IOException {
+		int pid = pin_pgid.pid;
+		Stripe stripe = stripe(pid);
+		stripe.lock.lock();
+		try {
+			int frame = stripe.table.get(pid);
+			if (frame >= 0) {
+				// a sweep that looked the frame up under a stale page holds
+				// it at -1 for a moment; wait until it gives it back
+				int pins;
+				do {
+					pins = pinCounts.get(frame);
+				} while (pins < 0
+						|| !pinCounts.compareAndSet(frame, pins, pins + 1));
+			} else {
+				frame = victim(stripe);
+				framePages[frame] = pid;
+				frameDirty[frame] = false;
+				if (!emptyPage) {
+					try {
+						read_page(new PageId(pid), bufPool[frame]);
+					} catch (BufMgrException e) {
+						framePages[frame] = INVALID_PAGE;
+						pinCounts.set(frame, 0);
+						throw new PageNotReadException(e,
+								"BUFMGR: DB_READ_PAGE_ERROR.");
+					}
+				}
+				stripe.table.put(pid, frame);
+				pinCounts.set(frame, 1);
+			}
+			referenced[frame] = true;
+			page.setpage(bufPool[frame]);
+		} finally {
+			stripe.lock.unlock();
+		}
+	}
+
+	/*
+	 * Find a frame for a new page of the given (locked) stripe: sweep the
+	 * stripe's own frames, giving each referenced frame a second chance, then
+	 * the frames of all the others. The frame comes back with pin count -1.
+	 */
+	private int victim(Stripe own) throws BufferPoolExceededException,
+			BufMgrException {
+		int count = own.hi - own.lo;
+		for (int i = 0; i < 2 * count; i++) {
+			int frame = own.lo + own.hand;
+			own.hand = (own.hand + 1) % count;
+			if (claim(own, frame))
+				return frame;
+		}
+
+		// nothing to spare here, take a frame from the other stripes
+		for (int pass = 0; pass < 2; pass++) {
+			for (int frame = 0; frame < numBuffers; frame++) {
+				if ((frame < own.lo || frame >= own.hi) && claim(own, frame))
+					return frame;
+			}
+		}
+		throw new BufferPoolExceededException(null, "BUFMGR: BUFFER_EXCEEDED.");
+	}
+
+	/*
+	 * Take the given frame if it is unpinned and was not referenced since the
+	 * last sweep: write its page out if it is dirty and drop it from its
+	 * stripe, whose lock is only tried for, so that two sweeps cannot wait for
+	 * each other.
+	 */
+	private boolean claim(Stripe own, int frame) throws BufMgrException {
+		if (pinCounts.get(frame) != 0)
+			return false;
+		if (referenced[frame]) {
+			referenced[frame] = false;
+			return false;
+		}
+
+		int old = framePages[frame];
+		if (old == INVALID_PAGE)
+			return pinCounts.compareAndSet(frame, 0, -1);
+
+		Stripe stripe = stripe(old);
+		if (stripe != own && !stripe.lock.tryLock())
+			return false;
+		try {
+			if (!pinCounts.compareAndSet(frame, 0, -1))
+				return false;
+			if (framePages[frame] != old) {
+				// another sweep gave the frame a new page meanwhile
+				pinCounts.compareAndSet(frame, -1, 0);
+				return false;
+			}
+
+			if (frameDirty[frame]) {
+				try {
+					write_page(new PageId(old), bufPool[frame]);
+				} catch (BufMgrException e) {
+					pinCounts.compareAndSet(frame, -1, 0);
+					throw e;
+				}
+			}
+			stripe.table.remove(old);
+			framePages[frame] = INVALID_PAGE;
+			frameDirty[frame] = false;
+			return true;
+		} finally {
+			if (stripe != own)
+				stripe.lock.unlock();
+		}
+	}
+
+	/**
+	 * Unpin a page.
+	 *
+	 * @param PageId_in_a_DB
+	 *            page number in the minibase. Input parameter.
+	 * @param dirty
+	 *            the dirty bit of the frame. Input parameter.
+	 * @exception HashEntryNotFoundException
+	 *                the page is not in the pool
+	 * @exception PageUnpinnedException
+	 *                the page is not pinned
+	 */
+	public void unpinPage(PageId PageId_in_a_DB, boolean dirty)
+			throws ReplacerException, PageUnpinnedException,
+			HashEntryNotFoundException, InvalidFrameNumberException {
+		Stripe stripe = stripe(PageId_in_a_DB.pid);
+		stripe.lock.lock();
+		try {
+			int frame = stripe.table.get(PageId_in_a_DB.pid);
+			if (frame < 0)
+				throw new HashEntryNotFoundException(null,
+						"BUFMGR: HASH_NOT_FOUND.");
+			if (pinCounts.get(frame) <= 0)
+				throw new PageUnpinnedException(null,
+						"BUFMGR: PAGE_NOT_PINNED.");
+			if (dirty)
+				frameDirty[frame] = true;
+			pinCounts.decrementAndGet(frame);
+		} finally {
+			stripe.lock.unlock();
+		}
+	}
+
+	/**
+	 * Allocate new pages and pin the first one.
+	 *
+	 * @param firstpage
+	 *            the address of the first page. Output parameter.
+	 * @param howmany
+	 *            total number of allocated new pages. Input parameter.
+	 * @return the first page id of the new pages, null if the first one could
+	 *         not be pinned
+	 * @exception BufMgrException
+	 *                the pages could not be allocated
+	 */
+	public PageId newPage(Page firstpage, int howmany)
+			throws BufferPoolExceededException, HashOperationException,
+			ReplacerException, HashEntryNotFoundException,
+			InvalidFrameNumberException, PagePinnedException,
+			PageUnpinnedException, PageNotReadException, BufMgrException,
+			DiskMgrException, IOException {
+		PageId firstPageId = new PageId();
+		synchronized (alloc) {
+			try {
+				SystemDefs.JavabaseDB.allocate_page(firstPageId, howmany);
+			} catch (Exception e) {
+				throw new BufMgrException(e,
+						"BufMgr.java: allocate_page() failed");
+			}
+		}
+
+		try {
+			pinPage(firstPageId, firstpage, true);
+		} catch (Exception e) {
+			for (int i = 0; i < howmany; i++)
+				deallocate_page(new PageId(firstPageId.pid + i));
+			return null;
+		}
+		return firstPageId;
+	}
+
+	/**
+	 * Free a page, which may be pinned once (by the caller) but no more.
+	 *
+	 * @param globalPageId
+	 *            the page number in the data base. Input parameter.
+	 * @exception ReplacerException
+	 *                the page is pinned more than once, with a
+	 *                PagePinnedException as the cause, as BufMgr reports it
+	 * @exception BufMgrException
+	 *                the page could not be deallocated
+	 */
+	public void freePage(PageId globalPageId) throws InvalidBufferException,
+			ReplacerException, HashOperationException,
+			InvalidFrameNumberException, PageNotReadException,
+			BufferPoolExceededException, PagePinnedException,
+			PageUnpinnedException, HashEntryNotFoundException,
+			BufMgrException, DiskMgrException, IOException {
+		int pid = globalPageId.pid;
+		Stripe stripe = stripe(pid);
+		stripe.lock.lock();
+		try {
+			int frame = stripe.table.get(pid);
+			if (frame >= 0) {
+				int pins;
+				do {
+					pins = pinCounts.get(frame);
+					if (pins > 1)
+						throw new ReplacerException(new PagePinnedException(
+								null, "BUFMGR: PAGE_PINNED."),
+								"BUFMGR, REPLACER_ERROR");
+				} while (!pinCounts.compareAndSet(frame, pins, -1));
+
+				stripe.table.remove(pid);
+				framePages[frame] = INVALID_PAGE;
+				frameDirty[frame] = false;
+				pinCounts.set(frame, 0);
+			}
+		} finally {
+			stripe.lock.unlock();
+		}
+		deallocate_page(globalPageId);
+	}
+
+	/**
+	 * Write a page out if it is dirty.
+	 *
+	 * @param pageid
+	 *            the page number in the database. Input parameter.
+	 * @exception PagePinnedException
+	 *                the page is pinned; it is written out all the same
+	 * @exception BufMgrException
+	 *                the page could not be written
+	 */
+	public void flushPage(PageId pageid) throws HashOperationException,
+			PageUnpinnedException, PagePinnedException, PageNotFoundException,
+			BufMgrException, IOException {
+		Stripe stripe = stripe(pageid.pid);
+		stripe.lock.lock();
+		try {
+			int frame = stripe.table.get(pageid.pid);
+			if (frame >= 0 && flush(frame))
+				throw new PagePinnedException(null, "BUFMGR: PAGE_PINNED.");
+		} finally {
+			stripe.lock.unlock();
+		}
+	}
+
+	/**
+	 * Write out all dirty pages of the pool.
+	 *
+	 * @exception PagePinnedException
+	 *                a page is pinned; all pages are written out all the same
+	 * @exception BufMgrException
+	 *                a page could not be written
+	 */
+	public void flushAllPages() throws HashOperationException,
+			PageUnpinnedException, PagePinnedException, PageNotFoundException,
+			BufMgrException, IOException {
+		boolean pinned = false;
+		for (int i = 0; i < stripes.length; i++) {
+			Stripe stripe = stripes[i];
+			stripe.lock.lock();
+			try {
+				for (int frame = 0; frame < numBuffers; frame++) {
+					int pid = framePages[frame];
+					if (pid != INVALID_PAGE && stripe(pid) == stripe
+							&& stripe.table.get(pid) == frame)
+						pinned |= flush(frame);
+				}
+			} finally {
+				stripe.lock.unlock();
+			}
+		}
+		if (pinned)
+			throw new PagePinnedException(null, "BUFMGR: PAGE_PINNED.");
+	}
+
+	/*
+	 * Write out a frame of a locked stripe if it is dirty; returns whether it
+	 * is pinned.
+	 */
+	private boolean flush(int frame) throws BufMgrException {
+		if (frameDirty[frame]) {
+			write_page(new PageId(framePages[frame]), bufPool[frame]);
+			frameDirty[frame] = false;
+		}
+		return pinCounts.get(frame) != 0;
+	}
+
+	public int getNumBuffers() {
+		return numBuffers;
+	}
+
+	public int getNumUnpinnedBuffers() {
+		int unpinned = 0;
+		for (int frame = 0; frame < numBuffers; frame++)
+			if (pinCounts.get(frame) == 0)
+				unpinned++;
+		return unpinned;
+	}
+
+	/*
+	 * Put the frames of the dirty and the pinned pages into the given map by
+	 * page id, for a DirtyPageTable, locking one stripe at a time.
+	 */
+	void dirtyPages(Map<Integer, Integer> frames) {
+		for (int i = 0; i < stripes.length; i++) {
+			Stripe stripe = stripes[i];
+			stripe.lock.lock();
+			try {
+				for (int frame = 0; frame < numBuffers; frame++) {
+					int pid = framePages[frame];
+					if (pid != INVALID_PAGE && stripe(pid) == stripe
+							&& stripe.table.get(pid) == frame
+							&& (frameDirty[frame]
+									|| pinCounts.get(frame) != 0))
+						frames.put(pid, frame);
+				}
+			} finally {
+				stripe.lock.unlock();
+			}
+		}
+	}
+
+	/*
+	 * Write the given image of a page if the page is in the pool holding just
+	 * that image, see DirtyPageTable.writeIfUnchanged. The stripe stays locked
+	 * meanwhile, so the page can be neither unpinned nor taken from the pool.
+	 */
+	boolean writeIfUnchanged(PageId pageno, byte[] image)
+			throws BufMgrException {
+		Stripe stripe = stripe(pageno.pid);
+		stripe.lock.lock();
+		try {
+			int frame = stripe.table.get(pageno.pid);
+			if (frame < 0 || !Arrays.equals(bufPool[frame], image))
+				return false;
+			write_page(new PageId(pageno.pid), image);
+			if (pinCounts.get(frame) == 0)
+				frameDirty[frame] = false;
+			return true;
+		} finally {
+			stripe.lock.unlock();
+		}
+	}
+
+	private void write_page(PageId pageno, byte[] data) throws BufMgrException {
+		synchronized (io) {
+			try {
+				SystemDefs.JavabaseDB.write_page(pageno, new Page(data));
+			} catch (Exception e) {
+				throw new BufMgrException(e,
+						"BufMgr.java: write_page() failed");
+			}
+		}
+	}
+
+	private void read_page(PageId pageno, byte[] data) throws BufMgrException {
+		synchronized (io) {
+			try {
+				SystemDefs.JavabaseDB.read_page(pageno, new Page(data));
+			} catch (Exception e) {
+				throw new BufMgrException(e, "BufMgr.java: read_page() failed");
+			}
+		}
+	}
+
+	private void deallocate_page(PageId pageno) throws BufMgrException {
+		synchronized (alloc) {
+			try {
+				SystemDefs.JavabaseDB.deallocate_page(pageno);
+			} catch (Exception e) {
+				throw new BufMgrException(e,
+						"BufMgr.java: deallocate_page() failed");
+			}
+		}
+	}
+
+	/**
+	 * The page table of a stripe: page ids to frame numbers, in open addressing
+	 * with linear probing, removing by shifting the following entries back.
+	 */
+	private static class PageTable {
+
+		private int[] pids;
+
+		private int[] frames;
+
+		private int size;
+
+		PageTable(int expected) {
+			int capacity = 16;
+			while (capacity < 4 * expected)
+				capacity <<= 1;
+			pids = new int[capacity];
+			frames = new int[capacity];
+			Arrays.fill(pids, INVALID_PAGE);
+		}
+
+		private int slot(int pid) {
+			return (pid * 0x9E3779B9) >>> 1 & (pids.length - 1);
+		}
+
+		int get(int pid) {
+			int mask = pids.length - 1;
+			for (int i = slot(pid); pids[i] != INVALID_PAGE; i = (i + 1) & mask)
+				if (pids[i] == pid)
+					return frames[i];
+			return -1;
+		}
+
+		void put(int pid, int frame) {
+			if (2 * (size + 1) > pids.length)
+				grow();
+			int mask = pids.length - 1;
+			int i = slot(pid);
+			while (pids[i] != INVALID_PAGE && pids[i] != pid)
+				i = (i + 1) & mask;
+			if (pids[i] == INVALID_PAGE)
+				size++;
+			pids[i] = pid;
+			frames[i] = frame;
+		}
+
+		void remove(int pid) {
+			int mask = pids.length - 1;
+			int i = slot(pid);
+			while (pids[i] != pid) {
+				if (pids[i] == INVALID_PAGE)
+					return;
+				i = (i + 1) & mask;
+			}
+			size--;
+
+			// move back the entries that probed past the hole
+			for (int j = (i + 1) & mask; pids[j] != INVALID_PAGE; j = (j + 1)
+					& mask) {
+				int home = slot(pids[j]);
+				if (((j - home) & mask) >= ((j - i) & mask)) {
+					pids[i] = pids[j];
+					frames[i] = frames[j];
+					i = j;
+				}
+			}
+			pids[i] = INVALID_PAGE;
+		}
+
+		private void grow() {
+			int[] oldPids = pids;
+			int[] oldFrames = frames;
+			pids = new int[2 * oldPids.length];
+			frames = new int[2 * oldPids.length];
+			Arrays.fill(pids, INVALID_PAGE);
+			size = 0;
+			for (int i = 0; i < oldPids.length; i++)
+				if (oldPids[i] != INVALID_PAGE)
+					put(oldPids[i], oldFrames[i]);
+		}
+	}
+}
@@ -0,0 +1,111 @@
+package bufmgr;
+
+import java.util.*;
+
+import diskmgr.*;
+import global.*;
+
+/**
+ * DirtyPageTable.java The pages of a buffer pool that may differ from their
+ * copies on disk, as they were when the table was made: the dirty pages, and
+ * the pinned ones, which may be changed by whoever pinned them and marked
+ * dirty only when they are unpinned. A page not in the table was on disk as
+ * it was in the pool, or was not in the pool at all.
+ *
+ * The table is read without stopping the users of the pool: a BufMgr is
+ * locked only while its frame table is read, as the index locks it around
+ * every call it makes (see btree.BTPageUtil), and a ConcurrentBufMgr only
+ * stripe by stripe.
+ */
+public class DirtyPageTable implements GlobalConst {
+
+	private final BufMgr pool;
+
+	/** The frames of the pages in the table, by page id. */
+	private final Map<Integer, Integer> frames = new HashMap<Integer, Integer>();
+
+	/**
+	 * Read the table of the given buffer pool.
+	 *
+	 * @param pool
+	 *            the buffer manager. Input parameter.
+	 */
+	public DirtyPageTable(BufMgr pool) {
+		this.pool = pool;
+		if (pool instanceof ConcurrentBufMgr) {
+			((ConcurrentBufMgr) pool).dirtyPages(frames);
+			return;
+		}
+		synchronized (pool) {
+			int count = pool.getNumBuffers();
+			for (int frame = 0; frame < count; frame++) {
+				int pid = Frames.pageOf(pool, frame);
+				if (pid != INVALID_PAGE
+						&& (Frames.isDirty(pool, frame) || Frames
+								.pinCount(pool, frame) != 0))
+					frames.put(pid, frame);
+			}
+		}
+	}
+
+	/**
+	 * @return whether the page was dirty or pinned when the table was made
+	 */
+	public boolean contains(int pid) {
+		return frames.containsKey(pid);
+	}
+
+	/**
+	 * @return the number of pages in the table
+	 */
+	public int size() {
+		return frames.size();
+	}
+
+	/**
+	 * Write the given image of a page in the table to disk, but only if the
+	 * page is still in the pool and holds just that image, so that nothing
+	 * newer on disk is written over. A page that is not pinned is no longer
+	 * dirty afterwards; a pinned one stays as it is, since whoever pinned it
+	 * may be changing it.
+	 *
+	 * @param pageno
+	 *            the page. Input parameter.
+	 * @param image
+	 *            what the page should hold, MINIBASE_PAGESIZE bytes. Input
+	 *            parameter.
+	 * @return whether the image was written
+	 * @exception BufMgrException
+	 *                the page could not be written
+	 */
+	public boolean writeIfUnchanged(PageId pageno, byte[] image)
+			throws BufMgrException {
+		Integer frame = frames.get(pageno.pid);
+		if (frame == null)
+			return false;
+		if (pool instanceof ConcurrentBufMgr)
+			return ((ConcurrentBufMgr) pool).writeIfUnchanged(pageno, image);
+
+		synchronized (pool) {
+			if (Frames.pageOf(pool, frame) != pageno.pid)
+				return false;
+			try {
+				// the page is in the pool, so pinning it reads nothing
+				Page page = new Page();
+				pool.pinPage(pageno, page, false);
+				try {
+					if (!Arrays.equals(page.getpage(), image))
+						return false;
+					SystemDefs.JavabaseDB.write_page(pageno, new Page(image));
+				} finally {
+					pool.unpinPage(pageno, false);
+				}
+			} catch (Exception e) {
+				throw new BufMgrException(e, "DirtyPageTable: write failed");
+			}
+			if (Frames.pinCount(pool, frame) == 0)
+				Frames.clean(pool, frame);
+			return true;
+		}
+	}
+}
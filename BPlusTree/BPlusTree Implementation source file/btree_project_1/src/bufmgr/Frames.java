@@ -0,0 +1,48 @@
+package bufmgr;
+
+/**
+ * Frames.java Accessors for the frame table of a BufMgr. The frame
+ * descriptor is an auxiliary class of BufMgr.java in btreelib.jar, which
+ * should not be named outside that file, so the rest of the package reads and
+ * changes frames through these. They only go through BufMgr.frameTable.
+ */
+final class Frames {
+
+	private Frames() {
+	}
+
+	/**
+	 * @return the id of the page in the given frame, INVALID_PAGE if none
+	 */
+	static int pageOf(BufMgr mgr, int frame) {
+		return mgr.frameTable()[frame].pageNo.pid;
+	}
+
+	/**
+	 * @return the pin count of the given frame
+	 */
+	static int pinCount(BufMgr mgr, int frame) {
+		return mgr.frameTable()[frame].pin_count();
+	}
+
+	/**
+	 * @return whether the page in the given frame is dirty
+	 */
+	static boolean isDirty(BufMgr mgr, int frame) {
+		return mgr.frameTable()[frame].dirty;
+	}
+
+	/**
+	 * Mark the page in the given frame as no longer dirty.
+	 */
+	static void clean(BufMgr mgr, int frame) {
+		mgr.frameTable()[frame].dirty = false;
+	}
+
+	/**
+	 * Count a pin of the given frame.
+	 */
+	static void pin(BufMgr mgr, int frame) {
+		mgr.frameTable()[frame].pin();
+	}
+}
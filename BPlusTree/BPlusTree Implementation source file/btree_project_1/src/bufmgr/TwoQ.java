@@ -0,0 +1,209 @@
+package bufmgr;
+
+import java.lang.reflect.*;
+import java.util.*;
+
+/**
+ * TwoQ.java The 2Q replacement policy. A page that is read in goes to A1in, a
+ * short FIFO queue, and only gets into Am, the main LRU queue, if it is asked
+ * for again after it was evicted from A1in: A1out remembers the ids (not the
+ * data) of the pages evicted from A1in last. Frames are taken from A1in while
+ * it holds more than a quarter of the pool, and from Am otherwise.
+ *
+ * A scan that reads many pages once only cycles them through A1in, so the
+ * pages that are used over and over, like the upper index pages and the hot
+ * leaves, stay in Am. Clock and LRU hand the whole pool to the scan.
+ *
+ * The replacer is told about a frame only by number; the page a frame was
+ * given is looked up in the frame table when the frame is first unpinned.
+ */
+public class TwoQ extends Replacer {
+
+	/* the list a frame is on */
+	private static final int NONE = 0;
+
+	private static final int FREE = 1;
+
+	private static final int A1IN = 2;
+
+	private static final int AM = 3;
+
+	private int[] queue;
+
+	private int[] prev;
+
+	private int[] next;
+
+	private int[] first = new int[4];
+
+	private int[] last = new int[4];
+
+	private int[] size = new int[4];
+
+	/** Frames given a page by pick_victim and not unpinned since. */
+	private boolean[] fresh;
+
+	/** Most frames A1in keeps when Am has frames to spare. */
+	private int kin;
+
+	/** Most page ids A1out remembers. */
+	private int kout;
+
+	private LinkedHashSet<Integer> a1out = new LinkedHashSet<Integer>();
+
+	/**
+	 * Make the given buffer manager use 2Q. BufMgr picks its replacer by name
+	 * when it is built and knows no other names, so the replacer is swapped in
+	 * afterwards; this must be done before the first page is pinned.
+	 *
+	 * @param mgr
+	 *            the buffer manager. Input parameter.
+	 * @exception ReplacerException
+	 *                the replacer could not be swapped in
+	 */
+	public static void install(BufMgr mgr) throws ReplacerException {
+		TwoQ replacer = new TwoQ(mgr);
+		try {
+			Field field = BufMgr.class.getDeclaredField("replacer");
+			field.setAccessible(true);
+			field.set(mgr, replacer);
+		} catch (Exception e) {
+			throw new ReplacerException(e, "BUFMGR: cannot install 2Q");
+		}
+		replacer.setBufferManager(mgr);
+	}
+
+	TwoQ(BufMgr mgr) {
+		super(mgr);
+	}
+
+	protected void setBufferManager(BufMgr mgr) {
+		super.setBufferManager(mgr);
+		int numBuffers = mgr.getNumBuffers();
+		queue = new int[numBuffers];
+		prev = new int[numBuffers];
+		next = new int[numBuffers];
+		fresh = new boolean[numBuffers];
+		Arrays.fill(first, -1);
+		Arrays.fill(last, -1);
+		Arrays.fill(size, 0);
+		a1out.clear();
+		for (int i = 0; i < numBuffers; i++)
+			append(FREE, i);
+		kin = Math.max(1, numBuffers / 4);
+		kout = Math.max(1, numBuffers / 2);
+	}
+
+	public void pin(int frameNo) throws InvalidFrameNumberException {
+		super.pin(frameNo);
+		if (queue[frameNo] == AM) {
+			remove(frameNo);
+			append(AM, frameNo);
+		}
+	}
+
+	public boolean unpin(int frameNo) throws InvalidFrameNumberException,
+			PageUnpinnedException {
+		boolean unpinned = super.unpin(frameNo);
+		if (fresh[frameNo]) {
+			fresh[frameNo] = false;
+			int pid = Frames.pageOf(mgr, frameNo);
+			if (pid == INVALID_PAGE)
+				append(FREE, frameNo);
+			else if (a1out.remove(pid))
+				append(AM, frameNo);
+			else
+				append(A1IN, frameNo);
+		}
+		return unpinned;
+	}
+
+	public void free(int frameNo) throws PagePinnedException {
+		super.free(frameNo);
+		fresh[frameNo] = false;
+		remove(frameNo);
+		append(FREE, frameNo);
+	}
+
+	public int pick_victim() throws BufferPoolExceededException,
+			PagePinnedException {
+		int frameNo = oldestUnpinned(FREE);
+		if (frameNo < 0 && size[A1IN] > kin)
+			frameNo = evictA1in();
+		if (frameNo < 0)
+			frameNo = oldestUnpinned(AM);
+		if (frameNo < 0)
+			frameNo = evictA1in();
+		if (frameNo < 0)
+			throw new BufferPoolExceededException(null,
+					"BUFMGR: BUFFER_EXCEEDED.");
+
+		remove(frameNo);
+		fresh[frameNo] = true;
+		Frames.pin(mgr, frameNo);
+		state_bit[frameNo].state = Pinned;
+		return frameNo;
+	}
+
+	/*
+	 * The oldest unpinned frame of A1in, with its page remembered in A1out.
+	 */
+	private int evictA1in() {
+		int frameNo = oldestUnpinned(A1IN);
+		if (frameNo >= 0) {
+			a1out.add(Frames.pageOf(mgr, frameNo));
+			if (a1out.size() > kout) {
+				Iterator<Integer> oldest = a1out.iterator();
+				oldest.next();
+				oldest.remove();
+			}
+		}
+		return frameNo;
+	}
+
+	private int oldestUnpinned(int list) {
+		for (int i = first[list]; i >= 0; i = next[i])
+			if (Frames.pinCount(mgr, i) == 0)
+				return i;
+		return -1;
+	}
+
+	private void append(int list, int frameNo) {
+		queue[frameNo] = list;
+		prev[frameNo] = last[list];
+		next[frameNo] = -1;
+		if (last[list] >= 0)
+			next[last[list]] = frameNo;
+		else
+			first[list] = frameNo;
+		last[list] = frameNo;
+		size[list]++;
+	}
+
+	private void remove(int frameNo) {
+		int list = queue[frameNo];
+		if (list == NONE)
+			return;
+		if (prev[frameNo] >= 0)
+			next[prev[frameNo]] = next[frameNo];
+		else
+			first[list] = next[frameNo];
+		if (next[frameNo] >= 0)
+			prev[next[frameNo]] = prev[frameNo];
+		else
+			last[list] = prev[frameNo];
+		size[list]--;
+		queue[frameNo] = NONE;
+	}
+
+	public String name() {
+		return "2Q";
+	}
+
+	public void info() {
+		super.info();
+		System.out.println("A1in: " + size[A1IN] + " frames, Am: " + size[AM]
+				+ " frames, A1out: " + a1out.size() + " pages");
+		System.out.println("\n\n");
+	}
+}
@@ -0,0 +1,53 @@
+package diskmgr;
+
+import java.io.*;
+
+import global.*;
+
+/**
+ * FilePageStore.java Keeps the pages in a file and reads and writes them with
+ * seek, read and write, as DB does by itself.
+ */
+public class FilePageStore implements PageStore, GlobalConst {
+
+	private String name;
+
+	private RandomAccessFile fp;
+
+	public void create(String name, int num_pgs) throws IOException {
+		this.name = name;
+		new File(name).delete();
+		fp = new RandomAccessFile(name, "rw");
+		fp.setLength((long) num_pgs * MINIBASE_PAGESIZE);
+	}
+
+	public void open(String name) throws IOException {
+		if (!new File(name).exists())
+			throw new FileNotFoundException(name);
+		this.name = name;
+		fp = new RandomAccessFile(name, "rw");
+	}
+
+	public void read(int pageno, byte[] data) throws IOException {
+		fp.seek((long) pageno * MINIBASE_PAGESIZE);
+		fp.readFully(data);
+	}
+
+	public void write(int pageno, byte[] data) throws IOException {
+		fp.seek((long) pageno * MINIBASE_PAGESIZE);
+		fp.write(data);
+	}
+
+	public void sync() throws IOException {
+		fp.getFD().sync();
+	}
+
+	public void close() throws IOException {
+		fp.close();
+	}
+
+	public void destroy() throws IOException {
+		fp.close();
+		new File(name).delete();
+	}
+}
@@ -0,0 +1,80 @@
+package diskmgr;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+import global.*;
+
+/**
+ * MappedPageStore.java Keeps the pages in a file that is mapped into memory.
+ * A page is read or written with one copy between the mapping and the
+ * buffer frame, without a system call; the operating system pages the file
+ * in and writes it back. The file is mapped in chunks, since a single mapping
+ * cannot be larger than 2 GB.
+ */
+public class MappedPageStore implements PageStore, GlobalConst {
+
+	/** Pages per mapped chunk, 64 MB. */
+	private static final int CHUNK_PAGES = 1 << 16;
+
+	private String name;
+
+	private RandomAccessFile fp;
+
+	private MappedByteBuffer[] chunks;
+
+	public void create(String name, int num_pgs) throws IOException {
+		new File(name).delete();
+		fp = new RandomAccessFile(name, "rw");
+		fp.setLength((long) num_pgs * MINIBASE_PAGESIZE);
+		map(name);
+	}
+
+	public void open(String name) throws IOException {
+		if (!new File(name).exists())
+			throw new FileNotFoundException(name);
+		fp = new RandomAccessFile(name, "rw");
+		map(name);
+	}
+
+	private void map(String name) throws IOException {
+		this.name = name;
+		long length = fp.length();
+		long chunk = (long) CHUNK_PAGES * MINIBASE_PAGESIZE;
+		chunks = new MappedByteBuffer[(int) ((length + chunk - 1) / chunk)];
+		for (int i = 0; i < chunks.length; i++)
+			chunks[i] = fp.getChannel().map(FileChannel.MapMode.READ_WRITE,
+					i * chunk, Math.min(chunk, length - i * chunk));
+	}
+
+	public synchronized void read(int pageno, byte[] data) throws IOException {
+		ByteBuffer chunk = chunks[pageno / CHUNK_PAGES];
+		chunk.position((pageno % CHUNK_PAGES) * MINIBASE_PAGESIZE);
+		chunk.get(data);
+	}
+
+	public synchronized void write(int pageno, byte[] data) throws IOException {
+		ByteBuffer chunk = chunks[pageno / CHUNK_PAGES];
+		chunk.position((pageno % CHUNK_PAGES) * MINIBASE_PAGESIZE);
+		chunk.put(data);
+	}
+
+	public synchronized void sync() throws IOException {
+		for (int i = 0; i < chunks.length; i++)
+			chunks[i].force();
+	}
+
+	public void close() throws IOException {
+		for (int i = 0; i < chunks.length; i++)
+			chunks[i].force();
+		chunks = null;
+		fp.close();
+	}
+
+	public void destroy() throws IOException {
+		chunks = null;
+		fp.close();
+		new File(name).delete();
+	}
+}
@@ -0,0 +1,66 @@
+package diskmgr;
+
+import java.io.*;
+import java.util.*;
+
+import global.*;
+
+/**
+ * MemoryPageStore.java Keeps the pages in memory, for tests and benchmarks
+ * that should not touch the disk. A page takes memory only once it has been
+ * written. The stores are kept by name until they are destroyed, so a
+ * database that was closed can be opened again as long as the program runs.
+ */
+public class MemoryPageStore implements PageStore, GlobalConst {
+
+	private static final Map<String, byte[][]> stores = new HashMap<String, byte[][]>();
+
+	private String name;
+
+	private byte[][] pages;
+
+	public void create(String name, int num_pgs) throws IOException {
+		this.name = name;
+		pages = new byte[num_pgs][];
+		synchronized (stores) {
+			stores.put(name, pages);
+		}
+	}
+
+	public void open(String name) throws IOException {
+		synchronized (stores) {
+			pages = stores.get(name);
+		}
+		if (pages == null)
+			throw new FileNotFoundException(name);
+		this.name = name;
+	}
+
+	public synchronized void read(int pageno, byte[] data) throws IOException {
+		if (pages[pageno] == null)
+			Arrays.fill(data, (byte) 0);
+		else
+			System.arraycopy(pages[pageno], 0, data, 0, MINIBASE_PAGESIZE);
+	}
+
+	public synchronized void write(int pageno, byte[] data) throws IOException {
+		if (pages[pageno] == null)
+			pages[pageno] = new byte[MINIBASE_PAGESIZE];
+		System.arraycopy(data, 0, pages[pageno], 0, MINIBASE_PAGESIZE);
+	}
+
+	public void sync() throws IOException {
+		// nothing is ever on disk
+	}
+
+	public void close() throws IOException {
+		pages = null;
+	}
+
+	public void destroy() throws IOException {
+		synchronized (stores) {
+			stores.remove(name);
+		}
+		pages = null;
+	}
+}
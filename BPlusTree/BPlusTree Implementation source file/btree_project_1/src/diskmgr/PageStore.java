@@ -0,0 +1,84 @@
+package diskmgr;
+
+import java.io.*;
+
+/**
+ * PageStore.java Where a StorageDB keeps its pages. The database keeps its
+ * space map and file directory in pages of its own, so a page store only has
+ * to hold a fixed number of pages of MINIBASE_PAGESIZE bytes each and read
+ * and write them whole.
+ */
+public interface PageStore {
+
+	/**
+	 * Create a new store, replacing any old one of the same name. All pages
+	 * read as zeros until they are written.
+	 *
+	 * @param name
+	 *            the name of the store. Input parameter.
+	 * @param num_pgs
+	 *            the number of pages in the store. Input parameter.
+	 * @exception IOException
+	 *                I/O errors
+	 */
+	void create(String name, int num_pgs) throws IOException;
+
+	/**
+	 * Open an existing store.
+	 *
+	 * @param name
+	 *            the name of the store. Input parameter.
+	 * @exception IOException
+	 *                I/O errors, or there is no store of that name
+	 */
+	void open(String name) throws IOException;
+
+	/**
+	 * Read a page into the given array, which is MINIBASE_PAGESIZE bytes long.
+	 *
+	 * @param pageno
+	 *            the number of the page. Input parameter.
+	 * @param data
+	 *            the array to read into. Output parameter.
+	 * @exception IOException
+	 *                I/O errors
+	 */
+	void read(int pageno, byte[] data) throws IOException;
+
+	/**
+	 * Write a page from the given array, which is MINIBASE_PAGESIZE bytes long.
+	 *
+	 * @param pageno
+	 *            the number of the page. Input parameter.
+	 * @param data
+	 *            the array to write. Input parameter.
+	 * @exception IOException
+	 *                I/O errors
+	 */
+	void write(int pageno, byte[] data) throws IOException;
+
+	/**
+	 * Force the pages written so far to disk, so that they survive a crash of
+	 * the machine and not only of the program.
+	 *
+	 * @exception IOException
+	 *                I/O errors
+	 */
+	void sync() throws IOException;
+
+	/**
+	 * Close the store; it can be opened again by name.
+	 *
+	 * @exception IOException
+	 *                I/O errors
+	 */
+	void close() throws IOException;
+
+	/**
+	 * Close the store and delete it.
+	 *
+	 * @exception IOException
+	 *                I/O errors
+	 */
+	void destroy() throws IOException;
+}
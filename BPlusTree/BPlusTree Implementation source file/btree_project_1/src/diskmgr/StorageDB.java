@@ -0,0 +1,189 @@
+package diskmgr;
+
+import java.io.*;
+
+import global.*;
+
+/**
+ * StorageDB.java A DB that keeps its pages in a PageStore instead of a file of
+ * its own. Allocation, the space map and the file directory are left to DB,
+ * which reaches its pages only through read_page and write_page, so the store
+ * is the only place the pages live.
+ *
+ * DB can only be opened on a file, so opening a StorageDB lets DB open a
+ * scratch file, which is closed and deleted again right away.
+ */
+public class StorageDB extends DB {
+
+	private PageStore store;
+
+	private String name;
+
+	private long reads;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param store
+	 *            where the pages are kept. Input parameter.
+	 */
+	public StorageDB(PageStore store) {
+		this.store = store;
+	}
+
+	/**
+	 * Open the database with the given name.
+	 *
+	 * @param fname
+	 *            DB_name
+	 * @exception IOException
+	 *                I/O errors
+	 * @exception FileIOException
+	 *                file I/O error
+	 * @exception InvalidPageNumberException
+	 *                invalid page number
+	 * @exception DiskMgrException
+	 *                error caused by other layers
+	 */
+	public void openDB(String fname) throws IOException,
+			InvalidPageNumberException, FileIOException, DiskMgrException {
+		store.open(fname);
+		name = fname;
+		File scratch = File.createTempFile("minibase", ".db");
+		try {
+			super.openDB(scratch.getPath());
+			super.closeDB();
+		} finally {
+			scratch.delete();
+		}
+	}
+
+	/**
+	 * Create a database with the given name and number of pages, replacing
+	 * any old one of that name.
+	 *
+	 * @param fname
+	 *            DB name
+	 * @param num_pgs
+	 *            number of pages in DB
+	 * @exception IOException
+	 *                I/O errors
+	 * @exception InvalidPageNumberException
+	 *                invalid page number
+	 * @exception FileIOException
+	 *                file I/O error
+	 * @exception DiskMgrException
+	 *                error caused by other layers
+	 */
+	public void openDB(String fname, int num_pgs) throws IOException,
+			InvalidPageNumberException, FileIOException, DiskMgrException {
+		// DB never has less than 2 pages
+		store.create(fname, Math.max(num_pgs, 2));
+		name = fname;
+		File scratch = File.createTempFile("minibase", ".db");
+		try {
+			super.openDB(scratch.getPath(), num_pgs);
+			super.closeDB();
+		} finally {
+			scratch.delete();
+		}
+	}
+
+	/**
+	 * Close the database; it can be opened again by name.
+	 *
+	 * @exception IOException
+	 *                I/O errors
+	 */
+	public void closeDB() throws IOException {
+		store.close();
+	}
+
+	/**
+	 * Destroy the database.
+	 *
+	 * @exception IOException
+	 *                I/O errors
+	 */
+	public void DBDestroy() throws IOException {
+		store.destroy();
+	}
+
+	/**
+	 * Read the contents of the specified page into a Page object.
+	 *
+	 * @param pageno
+	 *            pageId which will be read
+	 * @param apage
+	 *            page object which holds the contents of page
+	 * @exception InvalidPageNumberException
+	 *                invalid page number
+	 * @exception FileIOException
+	 *                file I/O error
+	 * @exception IOException
+	 *                I/O errors
+	 */
+	public void read_page(PageId pageno, Page apage)
+			throws InvalidPageNumberException, FileIOException, IOException {
+		if (pageno.pid < 0 || pageno.pid >= db_num_pages())
+			throw new InvalidPageNumberException(null, "BAD_PAGE_NUMBER");
+
+		try {
+			store.read(pageno.pid, apage.getpage());
+			reads++;
+		} catch (IOException e) {
+			throw new FileIOException(e, "DB file I/O error");
+		}
+	}
+
+	/**
+	 * Write the contents in a page object to the specified page.
+	 *
+	 * @param pageno
+	 *            pageId will be wrote to disk
+	 * @param apage
+	 *            the page object will be wrote to disk
+	 * @exception InvalidPageNumberException
+	 *                invalid page number
+	 * @exception FileIOException
+	 *                file I/O error
+	 * @exception IOException
+	 *                I/O errors
+	 */
+	public void write_page(PageId pageno, Page apage)
+			throws InvalidPageNumberException, FileIOException, IOException {
+		if (pageno.pid < 0 || pageno.pid >= db_num_pages())
+			throw new InvalidPageNumberException(null, "INVALID_PAGE_NUMBER");
+
+		try {
+			store.write(pageno.pid, apage.getpage());
+		} catch (IOException e) {
+			throw new FileIOException(e, "DB file I/O error");
+		}
+	}
+
+	/**
+	 * Force the pages written so far to disk.
+	 *
+	 * @exception IOException
+	 *                I/O errors
+	 */
+	public void sync() throws IOException {
+		store.sync();
+	}
+
+	/**
+	 * @return the number of pages read from the store since the database was
+	 *         opened
+	 */
+	public long getReadCount() {
+		return reads;
+	}
+
+	/**
+	 * @return the name of the database
+	 */
+	public String db_name() {
+		return name;
+	}
+}
@@ -0,0 +1,770 @@
+package diskmgr;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.zip.*;
+
+import bufmgr.*;
+import global.*;
+
+/**
+ * WriteAheadLog.java A redo log of page images, kept in a file that is only
+ * ever appended to. An access method logs the pages an operation changed as
+ * one record, which is redone whole or not at all, and then commits it:
+ * commit returns once the record is on disk.
+ *
+ * Committers that arrive together share one write and one force of the log
+ * file (group commit). The first committer to find no write going on leads
+ * the next group: it waits until groupSize committers have records to write,
+ * but no longer than the group delay, and then writes and forces the records
+ * of all of them. Meanwhile more records pile up for the group after it. A
+ * larger group or a longer delay means fewer forces and more commits per
+ * second for many committers, but a longer wait for each of them; with a
+ * group size of 1 nobody waits for others, and groups only form from the
+ * committers that arrive while the log is being forced.
+ *
+ * The log does not keep the pages from being written before their records
+ * are on disk; the access method keeps the pages it changed pinned until
+ * then (see BTreeFile.setLog).
+ *
+ * A record is written as its length, a CRC-32 of its body and the body. A
+ * record cut off by a crash fails the check, so opening the log drops it and
+ * everything behind it.
+ *
+ * Checkpoints bound the part of the log a restart has to read. For every
+ * page it logged, the log keeps the position of the first record since the
+ * page was last known to be on disk as logged (its recLSN) and of the last
+ * one. A checkpoint reads the dirty page table of the buffer pool while the
+ * writers go on, drops the pages that are neither dirty nor pinned, and logs
+ * the recLSNs of the rest; the pages that stayed dirty since the checkpoint
+ * before are first written out from their last logged image if they still
+ * hold it. Once the checkpoint is on disk, the file named like the log with
+ * ".master" added points to it. Opening the log reads only from the last
+ * checkpoint on to find the pages that may not be on disk, and redo starts
+ * at the oldest of their recLSNs and writes only the last image of each
+ * page, so a restart reads about the log of two checkpoint intervals however
+ * long the log is.
+ */
+public class WriteAheadLog implements GlobalConst {
+
+	/** A record of page images, as many page ids each followed by a page. */
+	public static final int PAGES = 1;
+
+	/**
+	 * A checkpoint record, as many page ids each followed by the recLSN of
+	 * the page.
+	 */
+	public static final int CHECKPOINT = 2;
+
+	/** The length and the checksum in front of a record. */
+	private static final int RECORD_HEADER = 8;
+
+	private final String name;
+
+	private final RandomAccessFile file;
+
+	private final FileChannel channel;
+
+	// records appended but not handed to a write yet; the other buffer is the
+	// one the last write used
+	private byte[] buffer = new byte[64 * 1024];
+
+	private byte[] spare = new byte[64 * 1024];
+
+	private int buffered;
+
+	// the log positions after the records appended, after the records handed
+	// to a write, and after the records on disk
+	private long appended;
+
+	private long taken;
+
+	private long durable;
+
+	// whether a committer is writing the log, and the committers whose records
+	// have not been handed to a write
+	private boolean writing;
+
+	private int joined;
+
+	private IOException failure;
+
+	private int groupSize = 1;
+
+	private long groupDelay;
+
+	private long commits;
+
+	private long forces;
+
+	// the recLSN of every page that may not be on disk as logged, the log
+	// position after its last record and where the image of the page in that
+	// record is in the log file, -1 if not known
+	private final Map<Integer, long[]> pageLSNs = new HashMap<Integer, long[]>();
+
+	// the log position the last checkpoint was taken at, and after its record
+	private long checkpointStart;
+
+	private long checkpointEnd;
+
+	private long checkpoints;
+
+	private final Object checkpointLock = new Object();
+
+	// the thread taking checkpoints, the log position at which it is woken up
+	// next and what stopped it if it failed
+	private Thread checkpointer;
+
+	private long checkpointInterval;
+
+	private long checkpointDue = Long.MAX_VALUE;
+
+	private Exception checkpointFailure;
+
+	/**
+	 * Open the log with the given name, creating it if there is none. The log
+	 * is read from the last checkpoint on, to find the pages redo has to look
+	 * at; a record cut off at the end is dropped.
+	 *
+	 * @param name
+	 *            the name of the log file. Input parameter.
+	 * @exception IOException
+	 *                I/O errors
+	 */
+	public WriteAheadLog(String name) throws IOException {
+		this.name = name;
+		file = new RandomAccessFile(name, "rw");
+		channel = file.getChannel();
+		checkpointStart = readMaster();
+		long end = scan(checkpointStart, null, new int[1]);
+		channel.truncate(end);
+		appended = taken = durable = checkpointEnd = end;
+	}
+
+	/**
+	 * Set how committers are grouped, see the class comment.
+	 *
+	 * @param groupSize
+	 *            the number of committers a group waits for, at least 1.
+	 *            Input parameter.
+	 * @param delayMicros
+	 *            the longest a group waits for them, in microseconds. Input
+	 *            parameter.
+	 */
+	public synchronized void setGroupCommit(int groupSize, long delayMicros) {
+		this.groupSize = Math.max(1, groupSize);
+		this.groupDelay = Math.max(0, delayMicros) * 1000;
+	}
+
+	/**
+	 * Append a record of page images. The images are copied, so the pages may
+	 * change again as soon as this returns.
+	 *
+	 * @param count
+	 *            the number of pages. Input parameter.
+	 * @param pids
+	 *            the ids of the pages. Input parameter.
+	 * @param images
+	 *            the pages, MINIBASE_PAGESIZE bytes each. Input parameter.
+	 * @return the log position after the record, to commit it with
+	 */
+	public synchronized long logPages(int count, int[] pids, byte[][] images) {
+		int length = 8 + count * (4 + MINIBASE_PAGESIZE);
+		long lsn = appended;
+		int start = reserve(RECORD_HEADER + length);
+		int pos = start + RECORD_HEADER;
+		writeInt(buffer, pos, PAGES);
+		writeInt(buffer, pos + 4, count);
+		pos += 8;
+		for (int i = 0; i < count; i++) {
+			writeInt(buffer, pos, pids[i]);
+			System.arraycopy(images[i], 0, buffer, pos + 4, MINIBASE_PAGESIZE);
+			pos += 4 + MINIBASE_PAGESIZE;
+		}
+		append(start, length);
+		for (int i = 0; i < count; i++)
+			logged(pids[i], lsn, appended, imagePosition(lsn, i));
+		if (appended >= checkpointDue) {
+			checkpointDue = Long.MAX_VALUE;
+			notifyAll();
+		}
+		return appended;
+	}
+
+	/*
+	 * Finish the record whose body of the given length was put into the
+	 * buffer at start + RECORD_HEADER.
+	 */
+	private void append(int start, int length) {
+		CRC32 crc = new CRC32();
+		crc.update(buffer, start + RECORD_HEADER, length);
+		writeInt(buffer, start, length);
+		writeInt(buffer, start + 4, (int) crc.getValue());
+		appended += RECORD_HEADER + length;
+	}
+
+	/*
+	 * Note that the record from lsn to end logged the page with the image at
+	 * the given position of the log file.
+	 */
+	private void logged(int pid, long lsn, long end, long image) {
+		long[] lsns = pageLSNs.get(pid);
+		if (lsns == null) {
+			pageLSNs.put(pid, new long[] { lsn, end, image });
+		} else {
+			lsns[1] = end;
+			lsns[2] = image;
+		}
+	}
+
+	/*
+	 * The position in the log file of the i-th page image of the page record
+	 * at lsn.
+	 */
+	private static long imagePosition(long lsn, int i) {
+		return lsn + RECORD_HEADER + 8 + (long) i * (4 + MINIBASE_PAGESIZE) + 4;
+	}
+
+	/*
+	 * Make room for a record at the end of the buffer and return where it
+	 * goes.
+	 */
+	private int reserve(int length) {
+		if (buffered + length > buffer.length) {
+			byte[] larger = new byte[Math.max(2 * buffer.length, buffered
+					+ length)];
+			System.arraycopy(buffer, 0, larger, 0, buffered);
+			buffer = larger;
+		}
+		int start = buffered;
+		buffered += length;
+		return start;
+	}
+
+	/**
+	 * Wait until the log is on disk up to the given position, writing it as
+	 * part of a group, see the class comment.
+	 *
+	 * @param lsn
+	 *            the log position after the record to commit. Input
+	 *            parameter.
+	 * @exception IOException
+	 *                the log could not be written, or the thread was
+	 *                interrupted
+	 */
+	public void commit(long lsn) throws IOException {
+		synchronized (this) {
+			commits++;
+			if (lsn > taken) {
+				joined++;
+				// the leader may be waiting for its group to fill
+				notifyAll();
+			}
+		}
+
+		while (true) {
+			byte[] data;
+			int length;
+			long end;
+			synchronized (this) {
+				try {
+					while (writing && durable < lsn && failure == null)
+						wait();
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException("commit interrupted");
+				}
+				if (failure != null)
+					throw failure;
+				if (durable >= lsn)
+					return;
+
+				// lead the next group, which fills up while it waits
+				writing = true;
+				long deadline = System.nanoTime() + groupDelay;
+				long left;
+				try {
+					while (joined < groupSize
+							&& (left = deadline - System.nanoTime()) > 0)
+						wait(left / 1000000, (int) (left % 1000000));
+				} catch (InterruptedException e) {
+					writing = false;
+					notifyAll();
+					throw new InterruptedIOException("commit interrupted");
+				}
+				data = buffer;
+				length = buffered;
+				end = appended;
+				buffer = spare;
+				spare = data;
+				buffered = 0;
+				taken = end;
+				joined = 0;
+			}
+
+			IOException error = null;
+			try {
+				ByteBuffer bytes = ByteBuffer.wrap(data, 0, length);
+				long pos = end - length;
+				while (bytes.hasRemaining())
+					pos += channel.write(bytes, pos);
+				channel.force(false);
+			} catch (IOException e) {
+				error = e;
+			}
+			synchronized (this) {
+				if (error == null) {
+					durable = end;
+					forces++;
+				} else {
+					// the records are lost, so none after them may commit
+					failure = error;
+				}
+				writing = false;
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Write and force everything appended so far.
+	 *
+	 * @exception IOException
+	 *                the log could not be written
+	 */
+	public void flush() throws IOException {
+		long end;
+		synchronized (this) {
+			end = appended;
+		}
+		commit(end);
+	}
+
+	/**
+	 * Redo the log after a crash, before the pages are used: write the last
+	 * image logged of every page that may not be on disk as logged into the
+	 * buffer pool, as a dirty page. Only the records from the oldest recLSN
+	 * of those pages on are read, and an image is written only if it is not
+	 * older than the recLSN of its page, so every page is written once at
+	 * most. Doing it again, or after a clean shutdown, does no harm, since
+	 * every image is the whole page as it was when it was logged.
+	 *
+	 * @return the number of records read
+	 * @exception IOException
+	 *                I/O errors
+	 * @exception DiskMgrException
+	 *                a page could not be pinned or unpinned
+	 */
+	public int redo() throws IOException, DiskMgrException {
+		flush();
+		Map<Integer, byte[]> images = new TreeMap<Integer, byte[]>();
+		int[] records = new int[1];
+		synchronized (this) {
+			scan(getRedoLSN(), images, records);
+		}
+
+		for (Map.Entry<Integer, byte[]> image : images.entrySet()) {
+			PageId pageno = new PageId(image.getKey());
+			Page page = new Page();
+			try {
+				SystemDefs.JavabaseBM.pinPage(pageno, page, false);
+				System.arraycopy(image.getValue(), 0, page.getpage(), 0,
+						MINIBASE_PAGESIZE);
+				SystemDefs.JavabaseBM.unpinPage(pageno, true);
+			} catch (Exception e) {
+				throw new DiskMgrException(e, "redo of page " + pageno.pid
+						+ " failed");
+			}
+		}
+		return records[0];
+	}
+
+	/*
+	 * Read the records from the given position of the log file on and return
+	 * the position after the last complete one. Without images, the pages the
+	 * records and checkpoints name are noted as pages that may not be on disk;
+	 * with images, the last image of each of those pages that is not older
+	 * than its recLSN is put into images. Records counts the records read.
+	 */
+	private long scan(long from, Map<Integer, byte[]> images, int[] records)
+			throws IOException {
+		FileInputStream stream = new FileInputStream(name);
+		stream.getChannel().position(from);
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				stream, 64 * 1024));
+		long pos = from;
+		long size = channel.size();
+		try {
+			while (pos + RECORD_HEADER <= size) {
+				int length = in.readInt();
+				int checksum = in.readInt();
+				if (length < 8 || pos + RECORD_HEADER + length > size)
+					break;
+				byte[] body = new byte[length];
+				in.readFully(body);
+				CRC32 crc = new CRC32();
+				crc.update(body);
+				if ((int) crc.getValue() != checksum)
+					break;
+				long end = pos + RECORD_HEADER + length;
+				if (images == null)
+					analyze(body, pos, end);
+				else
+					collect(body, pos, images);
+				records[0]++;
+				pos = end;
+			}
+		} finally {
+			in.close();
+		}
+		return pos;
+	}
+
+	private void analyze(byte[] body, long lsn, long end) {
+		int type = readInt(body, 0);
+		int count = readInt(body, 4);
+		if (type == PAGES) {
+			for (int i = 0; i < count; i++)
+				logged(readInt(body, 8 + i * (4 + MINIBASE_PAGESIZE)), lsn,
+						end, imagePosition(lsn, i));
+		} else if (type == CHECKPOINT) {
+			for (int i = 0; i < count; i++) {
+				int pid = readInt(body, 8 + 12 * i);
+				long recLSN = readLong(body, 12 + 12 * i);
+				long[] lsns = pageLSNs.get(pid);
+				if (lsns == null)
+					pageLSNs.put(pid, new long[] { recLSN, lsn, -1 });
+				else
+					lsns[0] = Math.min(lsns[0], recLSN);
+			}
+		}
+	}
+
+	private void collect(byte[] body, long lsn, Map<Integer, byte[]> images) {
+		if (readInt(body, 0) != PAGES)
+			return;
+		int count = readInt(body, 4);
+		for (int i = 0; i < count; i++) {
+			int pos = 8 + i * (4 + MINIBASE_PAGESIZE);
+			int pid = readInt(body, pos);
+			long[] lsns = pageLSNs.get(pid);
+			if (lsns == null || lsn < lsns[0])
+				continue;
+			byte[] image = images.get(pid);
+			if (image == null) {
+				image = new byte[MINIBASE_PAGESIZE];
+				images.put(pid, image);
+			}
+			System.arraycopy(body, pos + 4, image, 0, MINIBASE_PAGESIZE);
+			lsns[2] = imagePosition(lsn, i);
+		}
+	}
+
+	/**
+	 * Take a checkpoint, without stopping the threads that log or use the
+	 * buffer pool, see the class comment.
+	 *
+	 * @exception IOException
+	 *                the log, the master file or the database could not be
+	 *                written
+	 * @exception DiskMgrException
+	 *                a page could not be written
+	 */
+	public void checkpoint() throws IOException, DiskMgrException {
+		synchronized (checkpointLock) {
+			BufMgr pool = SystemDefs.JavabaseBM;
+			flush();
+
+			// write out the pages dirty since before the last checkpoint that
+			// still hold what was logged last
+			DirtyPageTable dirty = new DirtyPageTable(pool);
+			List<long[]> old = new ArrayList<long[]>();
+			synchronized (this) {
+				for (Map.Entry<Integer, long[]> entry : pageLSNs.entrySet()) {
+					long[] lsns = entry.getValue();
+					if (lsns[0] < checkpointStart && lsns[2] >= 0
+							&& lsns[1] <= durable
+							&& dirty.contains(entry.getKey()))
+						old.add(new long[] { entry.getKey(), lsns[1], lsns[2] });
+				}
+			}
+			byte[] image = new byte[MINIBASE_PAGESIZE];
+			for (long[] page : old) {
+				ByteBuffer bytes = ByteBuffer.wrap(image);
+				while (bytes.hasRemaining())
+					if (channel.read(bytes, page[2] + bytes.position()) < 0)
+						throw new EOFException(name);
+				try {
+					if (!dirty.writeIfUnchanged(new PageId((int) page[0]),
+							image))
+						continue;
+				} catch (BufMgrException e) {
+					throw new DiskMgrException(e, "checkpoint failed");
+				}
+				synchronized (this) {
+					// the page is on disk as the record written logged it, and
+					// any later record has to be redone
+					long[] lsns = pageLSNs.get((int) page[0]);
+					if (lsns != null && lsns[1] == page[1])
+						pageLSNs.remove((int) page[0]);
+					else if (lsns != null)
+						lsns[0] = Math.max(lsns[0], page[1]);
+				}
+			}
+
+			long start;
+			synchronized (this) {
+				start = appended;
+			}
+			dirty = new DirtyPageTable(pool);
+			long lsn, end;
+			synchronized (this) {
+				Iterator<Map.Entry<Integer, long[]>> entries = pageLSNs
+						.entrySet().iterator();
+				while (entries.hasNext()) {
+					Map.Entry<Integer, long[]> entry = entries.next();
+					if (entry.getValue()[1] <= start
+							&& !dirty.contains(entry.getKey()))
+						entries.remove();
+				}
+				int length = 8 + 12 * pageLSNs.size();
+				lsn = appended;
+				int pos = reserve(RECORD_HEADER + length) + RECORD_HEADER;
+				writeInt(buffer, pos, CHECKPOINT);
+				writeInt(buffer, pos + 4, pageLSNs.size());
+				pos += 8;
+				for (Map.Entry<Integer, long[]> entry : pageLSNs.entrySet()) {
+					writeInt(buffer, pos, entry.getKey());
+					writeLong(buffer, pos + 4, entry.getValue()[0]);
+					pos += 12;
+				}
+				append(pos - length - RECORD_HEADER, length);
+				end = appended;
+			}
+			commit(end);
+
+			// the pages the checkpoint takes to be on disk must be there first
+			if (SystemDefs.JavabaseDB instanceof StorageDB)
+				((StorageDB) SystemDefs.JavabaseDB).sync();
+			writeMaster(start, lsn);
+			synchronized (this) {
+				checkpointStart = start;
+				checkpointEnd = end;
+				checkpoints++;
+			}
+		}
+	}
+
+	/**
+	 * Take a checkpoint from a thread of the log's own whenever the given
+	 * number of bytes was logged since the last one, or stop doing so.
+	 *
+	 * @param bytes
+	 *            the bytes of log between checkpoints, 0 to stop taking them.
+	 *            Input parameter.
+	 */
+	public void setCheckpointInterval(long bytes) {
+		Thread old;
+		synchronized (this) {
+			old = checkpointer;
+			checkpointer = null;
+			checkpointDue = Long.MAX_VALUE;
+			checkpointInterval = Math.max(0, bytes);
+			notifyAll();
+		}
+		boolean interrupted = false;
+		while (old != null && old.isAlive()) {
+			try {
+				old.join();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+		if (bytes <= 0)
+			return;
+
+		Thread thread = new Thread("checkpointer " + name) {
+			public void run() {
+				try {
+					while (true) {
+						synchronized (WriteAheadLog.this) {
+							long due = checkpointEnd + checkpointInterval;
+							checkpointDue = due;
+							while (checkpointer == this && appended < due)
+								WriteAheadLog.this.wait();
+							checkpointDue = Long.MAX_VALUE;
+							if (checkpointer != this)
+								return;
+						}
+						checkpoint();
+					}
+				} catch (Exception e) {
+					synchronized (WriteAheadLog.this) {
+						checkpointFailure = e;
+					}
+				}
+			}
+		};
+		thread.setDaemon(true);
+		synchronized (this) {
+			checkpointer = thread;
+		}
+		thread.start();
+	}
+
+	/*
+	 * @return the log position of the last checkpoint in the master file, 0
+	 * if there is none or it does not point to a checkpoint of this log
+	 */
+	private long readMaster() throws IOException {
+		File master = new File(name + ".master");
+		if (master.length() != 20)
+			return 0;
+		DataInputStream in = new DataInputStream(new FileInputStream(master));
+		long start, lsn;
+		int checksum;
+		try {
+			start = in.readLong();
+			lsn = in.readLong();
+			checksum = in.readInt();
+		} finally {
+			in.close();
+		}
+		if (start > lsn || lsn + RECORD_HEADER + 8 > channel.size())
+			return 0;
+		ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER + 4);
+		while (header.hasRemaining())
+			if (channel.read(header, lsn + header.position()) < 0)
+				return 0;
+		if (header.getInt(4) != checksum || header.getInt(8) != CHECKPOINT)
+			return 0;
+		return start;
+	}
+
+	/*
+	 * Point the master file to the checkpoint record at lsn, taken at start.
+	 * The file is written aside and renamed, so a crash leaves the old or the
+	 * new one.
+	 */
+	private void writeMaster(long start, long lsn) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+		while (header.hasRemaining())
+			if (channel.read(header, lsn + header.position()) < 0)
+				throw new EOFException(name);
+
+		File master = new File(name + ".master");
+		File written = new File(name + ".master.new");
+		RandomAccessFile out = new RandomAccessFile(written, "rw");
+		try {
+			out.setLength(0);
+			out.writeLong(start);
+			out.writeLong(lsn);
+			out.writeInt(header.getInt(4));
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+		if (!written.renameTo(master)) {
+			master.delete();
+			if (!written.renameTo(master))
+				throw new IOException("cannot rename " + written);
+		}
+	}
+
+	/**
+	 * Write and force everything appended so far and close the log file.
+	 *
+	 * @exception IOException
+	 *                I/O errors
+	 */
+	public void close() throws IOException {
+		setCheckpointInterval(0);
+		flush();
+		file.close();
+		synchronized (this) {
+			if (checkpointFailure != null)
+				throw new IOException("checkpoint failed", checkpointFailure);
+		}
+	}
+
+	/**
+	 * @return the log position after the last record on disk
+	 */
+	public synchronized long getDurableLSN() {
+		return durable;
+	}
+
+	/**
+	 * @return the number of commits since the log was opened
+	 */
+	public synchronized long getCommitCount() {
+		return commits;
+	}
+
+	/**
+	 * @return the number of times the log file was forced to disk since the
+	 *         log was opened
+	 */
+	public synchronized long getForceCount() {
+		return forces;
+	}
+
+	/**
+	 * @return the number of checkpoints taken since the log was opened
+	 */
+	public synchronized long getCheckpointCount() {
+		return checkpoints;
+	}
+
+	/**
+	 * @return the log position redo would start from: the oldest recLSN of
+	 *         the pages that may not be on disk as logged, the end of the log
+	 *         if there are none
+	 */
+	public synchronized long getRedoLSN() {
+		long lsn = appended;
+		for (long[] lsns : pageLSNs.values())
+			lsn = Math.min(lsn, lsns[0]);
+		return lsn;
+	}
+
+	/**
+	 * @return the number of pages that may not be on disk as logged
+	 */
+	public synchronized int getDirtyPageCount() {
+		return pageLSNs.size();
+	}
+
+	/**
+	 * @return the page of the space map of a DB that holds the bit of the
+	 *         given page, which changes when the page is allocated or freed
+	 */
+	public static int spaceMapPage(int pid) {
+		return 1 + pid / (MINIBASE_PAGESIZE * 8);
+	}
+
+	private static int readInt(byte[] data, int pos) {
+		return (data[pos] << 24) | ((data[pos + 1] & 0xff) << 16)
+				| ((data[pos + 2] & 0xff) << 8) | (data[pos + 3] & 0xff);
+	}
+
+	private static void writeInt(byte[] data, int pos, int value) {
+		data[pos] = (byte) (value >>> 24);
+		data[pos + 1] = (byte) (value >>> 16);
+		data[pos + 2] = (byte) (value >>> 8);
+		data[pos + 3] = (byte) value;
+	}
+
+	private static long readLong(byte[] data, int pos) {
+		return ((long) readInt(data, pos) << 32)
+				| (readInt(data, pos + 4) & 0xffffffffL);
+	}
+
+	private static void writeLong(byte[] data, int pos, long value) {
+		writeInt(data, pos, (int) (value >>> 32));
+		writeInt(data, pos + 4, (int) value);
+	}
+}
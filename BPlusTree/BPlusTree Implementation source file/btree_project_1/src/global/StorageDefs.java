@@ -0,0 +1,108 @@
+package global;
+
+import bufmgr.*;
+import diskmgr.*;
+
+/**
+ * StorageDefs.java SystemDefs with a choice of where the database keeps its
+ * pages. The storage is named like the replacement policy:
+ *
+ * "File" reads and writes the pages in the database file, like SystemDefs;
+ * "Mapped" maps the database file into memory; "Memory" keeps the pages in
+ * memory only, and leaves nothing on disk.
+ *
+ * Besides the policies BufMgr knows, the replacement policy may be "2Q", the
+ * scan resistant TwoQ, or "Concurrent", for the ConcurrentBufMgr, which needs
+ * no lock around it and replaces pages by clock.
+ *
+ * Everything above the disk manager goes through SystemDefs.JavabaseDB, so
+ * the storage can be changed without touching the access methods.
+ */
+public class StorageDefs extends SystemDefs {
+
+	private String storage;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param dbname
+	 *            the name of the database. Input parameter.
+	 * @param num_pgs
+	 *            the number of pages of the database, 0 to open an existing
+	 *            one. Input parameter.
+	 * @param bufpoolsize
+	 *            the number of buffers. Input parameter.
+	 * @param replacement_policy
+	 *            the buffer replacement policy, "Clock" if null. Input
+	 *            parameter.
+	 * @param storage
+	 *            "File", "Mapped" or "Memory". Input parameter.
+	 */
+	public StorageDefs(String dbname, int num_pgs, int bufpoolsize,
+			String replacement_policy, String storage) {
+		this.storage = storage;
+		int logsize = (num_pgs == 0) ? 500 : 3 * num_pgs;
+		if (replacement_policy == null)
+			replacement_policy = "Clock";
+		init(dbname, dbname, num_pgs, logsize, bufpoolsize, replacement_policy);
+	}
+
+	public void init(String dbname, String logname, int num_pgs,
+			int maxlogsize, int bufpoolsize, String replacement_policy) {
+		JavabaseBM = null;
+		JavabaseDB = null;
+		JavabaseDBName = null;
+		JavabaseLogName = null;
+
+		try {
+			if ("2Q".equals(replacement_policy)) {
+				JavabaseBM = new BufMgr(bufpoolsize, "Clock");
+				TwoQ.install(JavabaseBM);
+			} else if ("Concurrent".equals(replacement_policy)) {
+				JavabaseBM = new ConcurrentBufMgr(bufpoolsize);
+			} else {
+				JavabaseBM = new BufMgr(bufpoolsize, replacement_policy);
+			}
+			JavabaseDB = new StorageDB(pageStore(storage));
+		} catch (Exception e) {
+			System.err.println("" + e);
+			e.printStackTrace();
+			Runtime.getRuntime().exit(1);
+		}
+
+		JavabaseDBName = new String(dbname);
+		JavabaseLogName = new String(logname);
+		MINIBASE_DBNAME = new String(JavabaseDBName);
+
+		// create or open the DB
+		if (MINIBASE_RESTART_FLAG || num_pgs == 0) {
+			try {
+				JavabaseDB.openDB(dbname);
+			} catch (Exception e) {
+				System.err.println("" + e);
+				e.printStackTrace();
+				Runtime.getRuntime().exit(1);
+			}
+		} else {
+			try {
+				JavabaseDB.openDB(dbname, num_pgs);
+				JavabaseBM.flushAllPages();
+			} catch (Exception e) {
+				System.err.println("" + e);
+				e.printStackTrace();
+				Runtime.getRuntime().exit(1);
+			}
+		}
+	}
+
+	private static PageStore pageStore(String storage)
+			throws DiskMgrException {
+		if ("File".equals(storage))
+			return new FilePageStore();
+		if ("Mapped".equals(storage))
+			return new MappedPageStore();
+		if ("Memory".equals(storage))
+			return new MemoryPageStore();
+		throw new DiskMgrException(null, "unknown storage " + storage);
+	}
+}
@@ -105,6 +105,8 @@ class BTDriver implements GlobalConst {
 		System.out.println("[4]   Delete a Record (Naive Delete)");
 		System.out.println("[5]   Delete some records (Naive Delete)");
 
+		System.out.println("\n[7]   Run one of test1 to test25");
+
 		System.out.println("\n[6]  Quit!");
 		System.out.print("Hi, make your choice :");
 	}
@@ -238,6 +240,24 @@ class BTDriver implements GlobalConst {
 
 				case 6:
 					break;
+				case 7:
+					System.out.println("Please input the test number: ");
+					num = GetStuff.getChoice();
+					System.out.println("Please input the number of keys: ");
+					n = GetStuff.getChoice();
+					if (num < 0 || n < 0)
+						break;
+					// the tests open files of their own, and some of them the
+					// database anew, so the file is opened again afterwards
+					file.close();
+					try {
+						runTest(num, n);
+					} finally {
+						if (file != null)
+							file.close();
+						file = new BTreeFile("AAA" + postfix, keyType, 4, 0);
+					}
+					break;
 				}
 
 			} catch (Exception e) {
@@ -255,6 +275,89 @@ class BTDriver implements GlobalConst {
 		}
 	}
 
+	// runs test1 to test25 on n keys; test4 and test5 delete half of them
+	void runTest(int test, int n) throws Exception {
+		switch (test) {
+		case 1:
+			test1(n);
+			break;
+		case 2:
+			test2(n);
+			break;
+		case 3:
+			test3(n);
+			break;
+		case 4:
+			test4(n, n / 2);
+			break;
+		case 5:
+			test5(n, n / 2);
+			break;
+		case 6:
+			test6(n);
+			break;
+		case 7:
+			test7(n);
+			break;
+		case 8:
+			test8(n);
+			break;
+		case 9:
+			test9(n);
+			break;
+		case 10:
+			test10(n);
+			break;
+		case 11:
+			test11(n);
+			break;
+		case 12:
+			test12(n);
+			break;
+		case 13:
+			test13(n);
+			break;
+		case 14:
+			test14(n);
+			break;
+		case 15:
+			test15(n);
+			break;
+		case 16:
+			test16(n);
+			break;
+		case 17:
+			test17(n);
+			break;
+		case 18:
+			test18(n);
+			break;
+		case 19:
+			test19(n);
+			break;
+		case 20:
+			test20(n);
+			break;
+		case 21:
+			test21(n);
+			break;
+		case 22:
+			test22(n);
+			break;
+		case 23:
+			test23(n);
+			break;
+		case 24:
+			test24(n);
+			break;
+		case 25:
+			test25(n);
+			break;
+		default:
+			System.out.println("There is no test" + test);
+		}
+	}
+
 	void test1(int n) throws Exception {
 		try {
 			System.out.println(" ***************** The file name is: " + "AAA"
@@ -349,6 +452,12 @@ class BTDriver implements GlobalConst {
 
 			}
 
+			int splits = file.getLeafSplits() + file.getIndexSplits();
+			System.out.println(n + " random inserts: " + file.getLeafSplits()
+					+ " leaf splits, " + file.getIndexSplits()
+					+ " index splits, " + file.getSplitNanos()
+					/ Math.max(1, splits) / 1000 + " us per split");
+
 		} catch (Exception e) {
 			throw e;
 		}
@@ -521,6 +630,1517 @@ class BTDriver implements GlobalConst {
 		}
 	}
 
+	// builds the same sequential index as test1 twice, once with one insert
+	// per key and once with bulkLoad, and reports how long each one took
+	void test6(int n) throws Exception {
+		try {
+			System.out.println(" ***************** The file names are: "
+					+ "LOOP" + postfix + " and BULK" + postfix + "  **********");
+			file = new BTreeFile("LOOP" + postfix, keyType, 4, deleteFashion);
+
+			List<KeyDataEntry> entries = new ArrayList<KeyDataEntry>();
+			for (int i = 0; i < n; i++) {
+				entries.add(new KeyDataEntry(new IntegerKey(i), new RID(
+						new PageId(i), i)));
+			}
+
+			long start = System.currentTimeMillis();
+			long pins = file.getPinCount();
+			for (KeyDataEntry entry : entries) {
+				file.insert(entry.key, ((LeafData) entry.data).getData());
+			}
+			long insertTime = System.currentTimeMillis() - start;
+			pins = file.getPinCount() - pins;
+
+			BTreeFile bulkFile = new BTreeFile("BULK" + postfix, keyType, 4,
+					deleteFashion);
+			start = System.currentTimeMillis();
+			bulkFile.bulkLoad(entries.iterator());
+			long bulkTime = System.currentTimeMillis() - start;
+
+			System.out.println(n + " keys: insert loop " + insertTime
+					+ " ms, bulkLoad " + bulkTime + " ms");
+			System.out.println("insert loop: " + (float) pins / Math.max(1, n)
+					+ " pins per insert, " + file.getLeafSplits()
+					+ " leaf splits, " + file.getIndexSplits()
+					+ " index splits");
+
+			BTFileScan scan = bulkFile.new_scan(null, null);
+			int count = 0;
+			while (scan.get_next() != null)
+				count++;
+			scan.DestroyBTreeFileScan();
+			if (count != n) {
+				System.out.println("*     bulkLoad lost records: " + count
+						+ " of " + n + "      *");
+			}
+			bulkFile.destroyFile();
+			file.destroyFile();
+			file = null;
+
+		} catch (Exception e) {
+			throw e;
+		}
+	}
+
+	// inserts n integer keys in random order into a FULL_DELETE index and
+	// deletes them again in phases: the odd keys, all but every tenth key,
+	// all but five keys and the last five. After every phase a full scan has
+	// to return exactly the keys left, and the tree may be no higher than
+	// half-full pages need, so leaves and index pages must have been merged
+	// or refilled from their siblings and the root collapsed on the way.
+	void test7(int n) throws Exception {
+		try {
+			System.out.println(" ***************** The file name is: "
+					+ "FULL" + postfix + "  **********");
+			file = new BTreeFile("FULL" + postfix, AttrType.attrInteger, 4,
+					DeleteFashion.FULL_DELETE);
+
+			List<Integer> keys = new ArrayList<Integer>();
+			for (int i = 0; i < n; i++)
+				keys.add(i);
+			Collections.shuffle(keys, new Random(n));
+			TreeSet<Integer> model = new TreeSet<Integer>();
+			for (int key : keys) {
+				file.insert(new IntegerKey(key), new RID(new PageId(key), key));
+				model.add(key);
+			}
+			int height = checkFullDelete("insert", model, Integer.MAX_VALUE);
+
+			String[] phases = { "odd keys", "all but every tenth key",
+					"all but five keys", "last keys" };
+			for (int phase = 0; phase < phases.length; phase++) {
+				List<Integer> doomed = new ArrayList<Integer>();
+				for (int key : model) {
+					if (phase == 0 ? key % 2 == 1 : phase == 1 ? key % 10 != 0
+							: phase == 3 || doomed.size() < model.size() - 5)
+						doomed.add(key);
+				}
+				Collections.shuffle(doomed, new Random(phase));
+				for (int key : doomed) {
+					if (!file.Delete(new IntegerKey(key), new RID(new PageId(
+							key), key)))
+						throw new Exception("delete of " + key + " failed");
+					model.remove(key);
+				}
+				height = checkFullDelete("delete " + phases[phase], model,
+						height);
+			}
+			file.destroyFile();
+			file = null;
+
+		} catch (Exception e) {
+			throw e;
+		}
+	}
+
+	// compares a full scan of file with the keys of model and the height of
+	// the tree with the most levels half-full pages need for them, and with
+	// the height it had before; returns the height
+	private int checkFullDelete(String phase, TreeSet<Integer> model,
+			int before) throws Exception {
+		BTFileScan scan = file.new_scan(null, null);
+		Iterator<Integer> expected = model.iterator();
+		String error = null;
+		KeyDataEntry entry;
+		while ((entry = scan.get_next()) != null) {
+			int key = ((IntegerKey) entry.key).getKey().intValue();
+			if (error == null && (!expected.hasNext() || expected.next() != key))
+				error = "scan returned " + key + " out of place";
+		}
+		scan.DestroyBTreeFileScan();
+		if (error == null && expected.hasNext())
+			error = "scan missed " + expected.next();
+
+		// every page but the right-most one of its level is at least half
+		// full, less one entry: a leaf entry takes 12 bytes and an index entry
+		// 8, and each one a slot
+		int half = (MAX_SPACE - HFPage.DPFIXED) / 2;
+		int leafKeys = (half - 16) / 16;
+		int children = (half - 12) / 12 + 1;
+		int most = 0;
+		if (!model.isEmpty()) {
+			int pages = 1 + (model.size() - 1) / leafKeys;
+			for (most = 1; pages > 1; most++)
+				pages = 1 + (pages - 1) / children;
+		}
+		int height = file.getHeight();
+		if (error == null && (height > most || height > before))
+			error = "height " + height + " with at most " + most + " and "
+					+ before + " before";
+
+		System.out.println(phase + ": " + model.size() + " keys, height "
+				+ height);
+		if (error != null) {
+			System.out
+					.println("*********************************************************");
+			System.out.println("*     FULL_DELETE has bug!!! " + error);
+			System.out
+					.println("*********************************************************");
+		}
+		return height;
+	}
+
+	// times exact-match lookups on a tree of n string keys and one of n
+	// integer keys, and reports the cost per lookup and per tree level and
+	// the bytes allocated per lookup
+	void test8(int n) throws Exception {
+		try {
+			System.out.println(" ***************** The file names are: "
+					+ "LOOKS" + postfix + " and LOOKI" + postfix
+					+ "  **********");
+
+			List<KeyDataEntry> strings = new ArrayList<KeyDataEntry>();
+			List<KeyDataEntry> ints = new ArrayList<KeyDataEntry>();
+			for (int i = 0; i < n; i++) {
+				RID rid = new RID(new PageId(i), i);
+				strings.add(new KeyDataEntry(new StringKey(String.format(
+						"lookup-key-%010d", i)), rid));
+				ints.add(new KeyDataEntry(new IntegerKey(i), rid));
+			}
+
+			file = new BTreeFile("LOOKS" + postfix, AttrType.attrString, 24,
+					deleteFashion);
+			file.bulkLoad(strings.iterator());
+			timeLookups("string", file, strings);
+
+			BTreeFile intFile = new BTreeFile("LOOKI" + postfix,
+					AttrType.attrInteger, 4, deleteFashion);
+			intFile.bulkLoad(ints.iterator());
+			timeLookups("integer", intFile, ints);
+			intFile.destroyFile();
+			file.destroyFile();
+			file = null;
+
+		} catch (Exception e) {
+			throw e;
+		}
+	}
+
+	// several threads insert and then delete keys while other threads keep
+	// scanning the whole index in concurrent mode, checking that every scan
+	// comes back in key order without repeats and that no entry goes missing
+	void test9(int n) throws Exception {
+		try {
+			System.out.println(" ***************** The file name is: " + "CONC"
+					+ postfix + "  **********");
+			file = new BTreeFile("CONC" + postfix, keyType, 4, deleteFashion);
+			file.setConcurrent(true);
+
+			final int writers = 4;
+			final int count = n - n % writers;
+			final List<Exception> errors = Collections
+					.synchronizedList(new ArrayList<Exception>());
+			final boolean[] done = new boolean[1];
+
+			Thread[] threads = new Thread[writers + 2];
+			for (int t = 0; t < writers; t++) {
+				final int first = t;
+				threads[t] = new Thread() {
+					public void run() {
+						try {
+							// thread t owns the keys t, t + writers, ...
+							List<Integer> keys = new ArrayList<Integer>();
+							for (int k = first; k < count; k += writers)
+								keys.add(k);
+							Collections.shuffle(keys, new Random(first));
+							for (int k : keys)
+								file.insert(new IntegerKey(k), new RID(
+										new PageId(k), k));
+							// and deletes the odd ones of them again
+							Collections.shuffle(keys, new Random(first + 1));
+							for (int k : keys) {
+								if (k % 2 == 1
+										&& !file.Delete(new IntegerKey(k),
+												new RID(new PageId(k), k)))
+									throw new Exception("delete of " + k
+											+ " failed");
+							}
+						} catch (Exception e) {
+							errors.add(e);
+						}
+					}
+				};
+			}
+			for (int t = writers; t < threads.length; t++) {
+				threads[t] = new Thread() {
+					public void run() {
+						try {
+							while (!done[0] && errors.isEmpty())
+								checkScan(file, null);
+						} catch (Exception e) {
+							errors.add(e);
+						}
+					}
+				};
+			}
+
+			for (int t = 0; t < threads.length; t++)
+				threads[t].start();
+			for (int t = 0; t < writers; t++)
+				threads[t].join();
+			done[0] = true;
+			for (int t = writers; t < threads.length; t++)
+				threads[t].join();
+
+			int left = checkScan(file, errors);
+			if (!errors.isEmpty() || left != count / 2) {
+				System.out
+						.println("*********************************************************");
+				System.out.println("*     Concurrent access has bug!!! " + left
+						+ " of " + count / 2 + " entries left");
+				for (Exception e : errors)
+					System.out.println("*     " + e);
+				System.out
+						.println("*********************************************************");
+			} else {
+				System.out.println(count + " keys inserted and " + count / 2
+						+ " deleted by " + writers + " threads while "
+						+ (threads.length - writers) + " threads scanned");
+			}
+			file.setConcurrent(false);
+			file.destroyFile();
+			file = null;
+
+		} catch (Exception e) {
+			throw e;
+		}
+	}
+
+	// scans the whole index and checks the order of the entries; with a list
+	// to add to, also checks that exactly the even keys are left
+	private int checkScan(BTreeFile index, List<Exception> errors)
+			throws Exception {
+		BTFileScan scan = index.new_scan(null, null);
+		int count = 0;
+		int last = -1;
+		KeyDataEntry entry;
+		while ((entry = scan.get_next()) != null) {
+			int key = ((IntegerKey) entry.key).getKey().intValue();
+			if (key <= last)
+				throw new Exception("scan returned " + key + " after " + last);
+			if (errors != null && key != last + 2 - (last + 2) % 2)
+				errors.add(new Exception("scan returned " + key + " after "
+						+ last));
+			last = key;
+			count++;
+		}
+		scan.DestroyBTreeFileScan();
+		return count;
+	}
+
+	// inserts n random keys and then looks all of them up with 1, 2, 4 and 8
+	// threads in concurrent mode, and reports the operations per second
+	void test10(int n) throws Exception {
+		try {
+			System.out.println(" ***************** The file names are: "
+					+ "TPUT1" + postfix + " to TPUT8" + postfix
+					+ "  **********");
+
+			final List<Integer> keys = new ArrayList<Integer>();
+			for (int i = 0; i < n; i++)
+				keys.add(i);
+			Collections.shuffle(keys, new Random(n));
+
+			for (int threads = 1; threads <= 8; threads *= 2) {
+				final BTreeFile index = new BTreeFile("TPUT" + threads
+						+ postfix, AttrType.attrInteger, 4, deleteFashion);
+				index.setConcurrent(true);
+
+				long insertTime = runThreads(threads, new KeyWork() {
+					void run(int key) throws Exception {
+						index.insert(new IntegerKey(key), new RID(
+								new PageId(key), key));
+					}
+				}, keys);
+				long lookupTime = runThreads(threads, new KeyWork() {
+					void run(int key) throws Exception {
+						BTFileScan scan = index.new_scan(new IntegerKey(key),
+								new IntegerKey(key));
+						if (scan.get_next() == null)
+							throw new Exception("lookup of " + key + " failed");
+						scan.DestroyBTreeFileScan();
+					}
+				}, keys);
+
+				System.out.println(threads + " threads: "
+						+ (long) n * 1000000000L / Math.max(1, insertTime)
+						+ " inserts/s, "
+						+ (long) n * 1000000000L / Math.max(1, lookupTime)
+						+ " lookups/s");
+				index.setConcurrent(false);
+				index.destroyFile();
+			}
+
+		} catch (Exception e) {
+			throw e;
+		}
+	}
+
+	// looks up n keys with 1, 2, 4 and 8 threads in concurrent mode while one
+	// more thread keeps inserting and deleting other keys, splitting and
+	// merging pages under the readers, and reports the lookups per second
+	void test11(int n) throws Exception {
+		try {
+			System.out.println(" ***************** The file names are: "
+					+ "READ1" + postfix + " to READ8" + postfix
+					+ "  **********");
+
+			final List<Integer> keys = new ArrayList<Integer>();
+			for (int i = 0; i < n; i++)
+				keys.add(2 * i);
+			Collections.shuffle(keys, new Random(n));
+
+			for (int threads = 1; threads <= 8; threads *= 2) {
+				final BTreeFile index = new BTreeFile("READ" + threads
+						+ postfix, AttrType.attrInteger, 4,
+						DeleteFashion.FULL_DELETE);
+				for (int key : keys)
+					index.insert(new IntegerKey(key), new RID(new PageId(key),
+							key));
+				index.setConcurrent(true);
+
+				final boolean[] done = new boolean[1];
+				final Exception[] failed = new Exception[1];
+				Thread writer = new Thread() {
+					public void run() {
+						try {
+							Random random = new Random(1);
+							while (!done[0]) {
+								List<Integer> odd = new ArrayList<Integer>();
+								for (int i = 0; i < 500; i++)
+									odd.add(2 * random.nextInt(keys.size()) + 1);
+								for (int key : odd)
+									index.insert(new IntegerKey(key), new RID(
+											new PageId(key), key));
+								for (int key : odd)
+									index.Delete(new IntegerKey(key), new RID(
+											new PageId(key), key));
+							}
+						} catch (Exception e) {
+							failed[0] = e;
+						}
+					}
+				};
+				writer.start();
+				long lookupTime;
+				try {
+					lookupTime = runThreads(threads, new KeyWork() {
+						void run(int key) throws Exception {
+							BTFileScan scan = index.new_scan(new IntegerKey(
+									key), new IntegerKey(key));
+							if (scan.get_next() == null)
+								throw new Exception("lookup of " + key
+										+ " failed");
+							scan.DestroyBTreeFileScan();
+						}
+					}, keys);
+				} finally {
+					done[0] = true;
+					writer.join();
+				}
+				if (failed[0] != null)
+					throw failed[0];
+
+				System.out.println(threads + " threads: "
+						+ (long) n * 1000000000L / Math.max(1, lookupTime)
+						+ " lookups/s next to a writer");
+				index.setConcurrent(false);
+				index.destroyFile();
+			}
+
+		} catch (Exception e) {
+			throw e;
+		}
+	}
+
+	// scans a bulk-loaded index of n integer keys once with get_next and once
+	// with a cursor, and reports the time and the bytes allocated per record
+	void test12(int n) throws Exception {
+		try {
+			System.out.println(" ***************** The file name is: "
+					+ "CURSOR" + postfix + "  **********");
+
+			List<KeyDataEntry> entries = new ArrayList<KeyDataEntry>();
+			for (int i = 0; i < n; i++)
+				entries.add(new KeyDataEntry(new IntegerKey(i), new RID(
+						new PageId(i), i)));
+			file = new BTreeFile("CURSOR" + postfix, AttrType.attrInteger, 4,
+					deleteFashion);
+			file.bulkLoad(entries.iterator());
+			entries = null;
+
+			long allocated = allocatedBytes();
+			long start = System.nanoTime();
+			BTFileScan scan = file.new_scan(null, null);
+			long sum = 0;
+			int count = 0;
+			KeyDataEntry entry;
+			while ((entry = scan.get_next()) != null) {
+				sum += ((IntegerKey) entry.key).getKey().intValue();
+				count++;
+			}
+			scan.DestroyBTreeFileScan();
+			printScan("get_next", count, System.nanoTime() - start,
+					allocatedBytes() - allocated);
+
+			RID rid = new RID(new PageId(), 0);
+			allocated = allocatedBytes();
+			start = System.nanoTime();
+			BTFileCursor cursor = file.new_cursor(null, null);
+			long cursorSum = 0;
+			int cursorCount = 0;
+			while (cursor.advance()) {
+				cursorSum += cursor.currentIntKey() + cursor.currentRid(rid).slotNo;
+				cursorCount++;
+			}
+			cursor.close();
+			printScan("cursor", cursorCount, System.nanoTime() - start,
+					allocatedBytes() - allocated);
+
+			if (count != n || cursorCount != n || 2 * sum != cursorSum) {
+				System.out.println("*     scans disagree: " + count + " and "
+						+ cursorCount + " of " + n + " records      *");
+			}
+			file.destroyFile();
+			file = null;
+
+		} catch (Exception e) {
+			throw e;
+		}
+	}
+
+	// fetches the 10 largest keys of a tree of n integer keys with a reverse
+	// scan, and the way it had to be done before: scanning the whole range
+	// forward and keeping the last 10
+	void test13(int n) throws Exception {
+		try {
+			System.out.println(" ***************** The file name is: "
+					+ "REVERSE" + postfix + "  **********");
+
+			List<Integer> keys = new ArrayList<Integer>();
+			for (int i = 0; i < n; i++)
+				keys.add(i);
+			Collections.shuffle(keys, new Random(n));
+			file = new BTreeFile("REVERSE" + postfix, AttrType.attrInteger, 4,
+					deleteFashion);
+			for (int key : keys)
+				file.insert(new IntegerKey(key), new RID(new PageId(key), key));
+
+			final int top = 10;
+			long start = System.nanoTime();
+			BTFileScan scan = file.new_reverse_scan(null, null);
+			List<Integer> reverse = new ArrayList<Integer>();
+			KeyDataEntry entry;
+			while (reverse.size() < top && (entry = scan.get_next()) != null)
+				reverse.add(((IntegerKey) entry.key).getKey());
+			scan.DestroyBTreeFileScan();
+			long reverseTime = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			scan = file.new_scan(null, null);
+			LinkedList<Integer> forward = new LinkedList<Integer>();
+			while ((entry = scan.get_next()) != null) {
+				forward.addFirst(((IntegerKey) entry.key).getKey());
+				if (forward.size() > top)
+					forward.removeLast();
+			}
+			scan.DestroyBTreeFileScan();
+			long forwardTime = System.nanoTime() - start;
+
+			System.out.println("top " + top + " of " + n + " keys: "
+					+ reverseTime / 1000 + " us with a reverse scan, "
+					+ forwardTime / 1000 + " us with a forward scan");
+			if (!reverse.equals(forward)) {
+				System.out.println("*     reverse scan returned " + reverse
+						+ " instead of " + forward + "      *");
+			}
+			file.destroyFile();
+			file = null;
+
+		} catch (Exception e) {
+			throw e;
+		}
+	}
+
+	// scans an index of n integer keys whose leaves are not in the buffer pool,
+	// once without and once with read-ahead, and reports the time per record.
+	// Between the scans a second index of n keys is scanned to push the first
+	// one's leaves out of the pool.
+	void test14(int n) throws Exception {
+		try {
+			System.out.println(" ***************** The file names are: "
+					+ "COLD" + postfix + " and EVICT" + postfix + "  **********");
+
+			List<KeyDataEntry> entries = new ArrayList<KeyDataEntry>();
+			for (int i = 0; i < n; i++)
+				entries.add(new KeyDataEntry(new IntegerKey(i), new RID(
+						new PageId(i), i)));
+			file = new BTreeFile("COLD" + postfix, AttrType.attrInteger, 4,
+					deleteFashion);
+			file.bulkLoad(entries.iterator());
+			BTreeFile other = new BTreeFile("EVICT" + postfix,
+					AttrType.attrInteger, 4, deleteFashion);
+			other.bulkLoad(entries.iterator());
+			entries = null;
+			file.setConcurrent(true);
+
+			for (int pass = 0; pass < 2; pass++) {
+				boolean readAhead = pass == 1;
+				BTFileScan scan = other.new_scan(null, null);
+				while (scan.get_next() != null)
+					;
+				scan.DestroyBTreeFileScan();
+
+				file.setReadAhead(readAhead);
+				long start = System.nanoTime();
+				scan = file.new_scan(null, null);
+				int count = 0;
+				while (scan.get_next() != null)
+					count++;
+				scan.DestroyBTreeFileScan();
+				long time = System.nanoTime() - start;
+
+				System.out.println("cold scan " + (readAhead ? "with" : "without")
+						+ " read-ahead: " + count + " records, " + time / 1000
+						+ " us, " + time / Math.max(1, count) + " ns per record");
+				if (count != n) {
+					System.out.println("*     scan returned " + count + " of "
+							+ n + " records      *");
+				}
+			}
+			file.setReadAhead(false);
+			file.setConcurrent(false);
+			other.destroyFile();
+			file.destroyFile();
+			file = null;
+
+		} catch (Exception e) {
+			throw e;
+		}
+	}
+
+	// inserts n integer keys in random order into a new database on each kind
+	// of storage, then scans them and looks each of them up, and reports the
+	// times. The database the driver was running on is opened again at the end.
+	void test15(int n) throws Exception {
+		try {
+			if (file != null)
+				file.close();
+			file = null;
+			SystemDefs.JavabaseBM.flushAllPages();
+			String dbname = SystemDefs.JavabaseDBName;
+			int bufs = SystemDefs.JavabaseBM.getNumBuffers();
+
+			List<Integer> keys = new ArrayList<Integer>();
+			for (int i = 0; i < n; i++)
+				keys.add(i);
+			Collections.shuffle(keys, new Random(n));
+
+			String[] storages = { "File", "Mapped", "Memory" };
+			for (String storage : storages) {
+				new StorageDefs(dbname + "." + storage, n / 10 + 1000, bufs,
+						"Clock", storage);
+				BTreeFile index = new BTreeFile("AAA" + postfix,
+						AttrType.attrInteger, 4, deleteFashion);
+
+				long start = System.nanoTime();
+				for (int key : keys)
+					index.insert(new IntegerKey(key), new RID(new PageId(key),
+							key));
+				long insertTime = System.nanoTime() - start;
+
+				start = System.nanoTime();
+				BTFileScan scan = index.new_scan(null, null);
+				int count = 0;
+				while (scan.get_next() != null)
+					count++;
+				scan.DestroyBTreeFileScan();
+				long scanTime = System.nanoTime() - start;
+
+				start = System.nanoTime();
+				for (int key : keys) {
+					scan = index.new_scan(new IntegerKey(key), new IntegerKey(key));
+					if (scan.get_next() == null)
+						count = -1;
+					scan.DestroyBTreeFileScan();
+				}
+				long lookupTime = System.nanoTime() - start;
+
+				System.out.println(storage + ": " + insertTime / n
+						+ " ns per insert, " + scanTime / n
+						+ " ns per scanned record, " + lookupTime / n
+						+ " ns per lookup");
+				if (count != n) {
+					System.out.println("*     " + storage
+							+ " storage lost records      *");
+				}
+				index.close();
+				SystemDefs.JavabaseBM.flushAllPages();
+				SystemDefs.JavabaseDB.DBDestroy();
+			}
+
+			new SystemDefs(dbname, 0, bufs, "Clock");
+
+		} catch (Exception e) {
+			throw e;
+		}
+	}
+
+	// runs the same mix of point lookups and range scans over n integer keys
+	// with Clock and with 2Q as the replacement policy: lookups go to a hot
+	// fiftieth of the keys nine times out of ten, and every 1000 lookups a scan
+	// reads a fifth of the index. Reports the share of the pages the lookups
+	// pinned that were found in the pool. The database the driver was running
+	// on is opened again at the end.
+	void test16(int n) throws Exception {
+		try {
+			if (file != null)
+				file.close();
+			file = null;
+			SystemDefs.JavabaseBM.flushAllPages();
+			String dbname = SystemDefs.JavabaseDBName;
+			int bufs = SystemDefs.JavabaseBM.getNumBuffers();
+
+			List<Integer> keys = new ArrayList<Integer>();
+			for (int i = 0; i < n; i++)
+				keys.add(i);
+			Collections.shuffle(keys, new Random(n));
+
+			String[] policies = { "Clock", "2Q" };
+			for (String policy : policies) {
+				new StorageDefs(dbname + "." + policy, n / 10 + 1000, bufs,
+						policy, "Memory");
+				StorageDB db = (StorageDB) SystemDefs.JavabaseDB;
+				BTreeFile index = new BTreeFile("AAA" + postfix,
+						AttrType.attrInteger, 4, deleteFashion);
+				for (int key : keys)
+					index.insert(new IntegerKey(key), new RID(new PageId(key),
+							key));
+
+				Random random = new Random(1);
+				long pins = 0;
+				long reads = 0;
+				for (int round = 0; round < 20; round++) {
+					for (int i = 0; i < 1000; i++) {
+						int key = random.nextInt(10) == 0 ? random.nextInt(n)
+								: random.nextInt(Math.max(1, n / 50));
+						long pinsBefore = index.getPinCount();
+						long readsBefore = db.getReadCount();
+						BTFileScan scan = index.new_scan(new IntegerKey(key),
+								new IntegerKey(key));
+						scan.get_next();
+						scan.DestroyBTreeFileScan();
+						pins += index.getPinCount() - pinsBefore;
+						reads += db.getReadCount() - readsBefore;
+					}
+
+					int lo = random.nextInt(n - n / 5 + 1);
+					BTFileScan scan = index.new_scan(new IntegerKey(lo),
+							new IntegerKey(lo + n / 5));
+					while (scan.get_next() != null)
+						;
+					scan.DestroyBTreeFileScan();
+				}
+
+				System.out.println(policy + ": " + pins + " pages pinned by "
+						+ "lookups, " + reads + " read from disk, hit ratio "
+						+ (100 * (pins - reads) / Math.max(1, pins)) + "%");
+				index.close();
+				SystemDefs.JavabaseBM.flushAllPages();
+				SystemDefs.JavabaseDB.DBDestroy();
+			}
+
+			new SystemDefs(dbname, 0, bufs, "Clock");
+
+		} catch (Exception e) {
+			throw e;
+		}
+	}
+
+	// pins and unpins n random pages, on 1 to 8 threads, through BufMgr with
+	// a lock around it and through ConcurrentBufMgr. The pages are twice as many
+	// as the buffers, so about half the pins read the page in. The database the
+	// driver was running on is opened again at the end.
+	void test17(int n) throws Exception {
+		try {
+			if (file != null)
+				file.close();
+			file = null;
+			SystemDefs.JavabaseBM.flushAllPages();
+			String dbname = SystemDefs.JavabaseDBName;
+			int bufs = SystemDefs.JavabaseBM.getNumBuffers();
+
+			final int pages = 2 * bufs;
+			Random random = new Random(n);
+			List<Integer> keys = new ArrayList<Integer>();
+			for (int i = 0; i < n; i++)
+				keys.add(random.nextInt(pages));
+
+			String[] policies = { "Clock", "Concurrent" };
+			for (String policy : policies) {
+				new StorageDefs(dbname + "." + policy, pages + 1000, bufs,
+						policy, "Memory");
+				final PageId first = new PageId();
+				SystemDefs.JavabaseDB.allocate_page(first, pages);
+
+				final BufMgr bm = SystemDefs.JavabaseBM;
+				final boolean locked = !(bm instanceof ConcurrentBufMgr);
+				for (int threads = 1; threads <= 8; threads *= 2) {
+					long time = runThreads(threads, new KeyWork() {
+						void run(int key) throws Exception {
+							PageId pageno = new PageId(first.pid + key);
+							if (!locked) {
+								bm.pinPage(pageno, new Page(), false);
+								bm.unpinPage(pageno, false);
+								return;
+							}
+							synchronized (bm) {
+								bm.pinPage(pageno, new Page(), false);
+							}
+							synchronized (bm) {
+								bm.unpinPage(pageno, false);
+							}
+						}
+					}, keys);
+					System.out.println(policy + ", " + threads + " threads: "
+							+ (long) n * 1000000000L / Math.max(1, time)
+							+ " pins/s");
+				}
+				if (bm.getNumUnpinnedBuffers() != bufs) {
+					System.out.println("*     " + policy
+							+ " left pages pinned      *");
+				}
+				SystemDefs.JavabaseDB.DBDestroy();
+			}
+
+			new SystemDefs(dbname, 0, bufs, "Clock");
+
+		} catch (Exception e) {
+			throw e;
+		}
+	}
+
+	// runs inserts, naive and full deletes, scans of every kind, a bulk load,
+	// concurrent inserts and lookups and destroyFile on n integer keys with pin
+	// tracking on, so that an operation leaving a page pinned fails and tells
+	// where it was pinned. Prints the pinned frames while a scan is open, and
+	// checks that the buffer pool has as many unpinned frames in the end as at
+	// the start.
+	void test18(int n) throws Exception {
+		try {
+			int unpinned = SystemDefs.JavabaseBM.getNumUnpinnedBuffers();
+			final List<Integer> keys = new ArrayList<Integer>();
+			for (int i = 0; i < n; i++)
+				keys.add(i);
+			Collections.shuffle(keys, new Random(n));
+
+			int[] fashions = { DeleteFashion.NAIVE_DELETE,
+					DeleteFashion.FULL_DELETE };
+			for (int fashion : fashions) {
+				BTreeFile index = new BTreeFile("PINS" + fashion + postfix,
+						AttrType.attrInteger, 4, fashion);
+				index.setPinTracking(true);
+				for (int key : keys)
+					index.insert(new IntegerKey(key), new RID(new PageId(key),
+							key));
+				for (int key : keys.subList(0, n / 2))
+					index.Delete(new IntegerKey(key), new RID(new PageId(key),
+							key));
+				index.getHeight();
+
+				BTFileScan scan = index.new_scan(new IntegerKey(n / 4), null);
+				scan.get_next();
+				if (fashion == DeleteFashion.NAIVE_DELETE)
+					System.out.println(BTreeFile.pinReport());
+				while (scan.get_next() != null)
+					;
+				scan.DestroyBTreeFileScan();
+				scan = index.new_reverse_scan(null, new IntegerKey(n / 4));
+				while (scan.get_next() != null)
+					;
+				scan.DestroyBTreeFileScan();
+				BTFileCursor cursor = index.new_cursor(null, null);
+				while (cursor.advance())
+					;
+				cursor.close();
+				index.destroyFile();
+			}
+
+			List<KeyDataEntry> entries = new ArrayList<KeyDataEntry>();
+			for (int key = 0; key < n; key++)
+				entries.add(new KeyDataEntry(new IntegerKey(key), new RID(
+						new PageId(key), key)));
+			BTreeFile index = new BTreeFile("PINSBULK" + postfix,
+					AttrType.attrInteger, 4, deleteFashion);
+			index.setPinTracking(true);
+			index.bulkLoad(entries.iterator(), 0.7f);
+			index.destroyFile();
+
+			final BTreeFile shared = new BTreeFile("PINSCONC" + postfix,
+					AttrType.attrInteger, 4, deleteFashion);
+			shared.setConcurrent(true);
+			shared.setPinTracking(true);
+			runThreads(4, new KeyWork() {
+				void run(int key) throws Exception {
+					shared.insert(new IntegerKey(key), new RID(new PageId(key),
+							key));
+					BTFileScan scan = shared.new_scan(new IntegerKey(key),
+							new IntegerKey(key));
+					scan.get_next();
+					scan.DestroyBTreeFileScan();
+				}
+			}, keys);
+			shared.setConcurrent(false);
+			shared.destroyFile();
+
+			System.out.println("no operation left pages pinned");
+			if (SystemDefs.JavabaseBM.getNumUnpinnedBuffers() != unpinned) {
+				System.out.println("*     "
+						+ (unpinned - SystemDefs.JavabaseBM
+								.getNumUnpinnedBuffers())
+						+ " frames were left pinned      *");
+			}
+
+		} catch (Exception e) {
+			throw e;
+		}
+	}
+
+	// looks up each of n integer keys in random order, once with every level
+	// of the tree pinned on the way down and once with the upper levels
+	// cached, and reports the pages pinned and the time per lookup
+	void test19(int n) throws Exception {
+		try {
+			System.out.println(" ***************** The file name is: "
+					+ "CACHE" + postfix + "  **********");
+
+			List<Integer> keys = new ArrayList<Integer>();
+			for (int i = 0; i < n; i++)
+				keys.add(i);
+			Collections.shuffle(keys, new Random(n));
+			file = new BTreeFile("CACHE" + postfix, AttrType.attrInteger, 4,
+					deleteFashion);
+			for (int key : keys)
+				file.insert(new IntegerKey(key), new RID(new PageId(key), key));
+
+			boolean[] caches = { false, true };
+			for (boolean cache : caches) {
+				file.setUpperLevelCache(cache);
+				long pins = file.getPinCount();
+				int found = 0;
+				long start = System.nanoTime();
+				for (int key : keys) {
+					BTFileScan scan = file.new_scan(new IntegerKey(key),
+							new IntegerKey(key));
+					if (scan.get_next() != null)
+						found++;
+					scan.DestroyBTreeFileScan();
+				}
+				long time = System.nanoTime() - start;
+				pins = file.getPinCount() - pins;
+
+				System.out.println((cache ? "upper levels cached: "
+						: "every level pinned: ")
+						+ String.format("%.2f", (double) pins / n)
+						+ " pages pinned and " + time / n + " ns per lookup, "
+						+ file.getHeight() + " levels");
+				if (found != n) {
+					System.out.println("*     lookups missed records: "
+							+ found + " of " + n + "      *");
+				}
+			}
+
+			// a second handle on the file splits pages below the cached
+			// levels and on the right edge, which this one has to notice
+			BTreeFile other = new BTreeFile("CACHE" + postfix);
+			for (int key = n; key < 2 * n; key++)
+				other.insert(new IntegerKey(key), new RID(new PageId(key), key));
+			other.close();
+			file.insert(new IntegerKey(2 * n), new RID(new PageId(2 * n),
+					2 * n));
+			int found = 0;
+			for (int key = 0; key <= 2 * n; key++) {
+				BTFileScan scan = file.new_scan(new IntegerKey(key),
+						new IntegerKey(key));
+				if (scan.get_next() != null)
+					found++;
+				scan.DestroyBTreeFileScan();
+			}
+			if (found != 2 * n + 1) {
+				System.out.println("*     lookups after another handle "
+						+ "changed the file found " + found + " of "
+						+ (2 * n + 1) + "      *");
+			}
+			file.destroyFile();
+			file = null;
+
+		} catch (Exception e) {
+			throw e;
+		}
+	}
+
+	// looks up each of n integer keys in random order with a scan from the
+	// key to the key, with lookupFirst and with lookup, and reports the time,
+	// the pages pinned and the bytes allocated per lookup
+	void test20(int n) throws Exception {
+		try {
+			System.out.println(" ***************** The file name is: "
+					+ "LOOKUP" + postfix + "  **********");
+
+			List<Integer> keys = new ArrayList<Integer>();
+			for (int i = 0; i < n; i++)
+				keys.add(i);
+			Collections.shuffle(keys, new Random(n));
+			file = new BTreeFile("LOOKUP" + postfix, AttrType.attrInteger, 4,
+					deleteFashion);
+			for (int key : keys)
+				file.insert(new IntegerKey(key), new RID(new PageId(key), key));
+
+			String[] ways = { "new_scan", "lookupFirst", "lookup" };
+			List<RID> rids = new ArrayList<RID>();
+			for (String way : ways) {
+				int found = 0;
+				long pins = file.getPinCount();
+				long allocated = allocatedBytes();
+				long start = System.nanoTime();
+				for (int key : keys) {
+					IntegerKey probe = new IntegerKey(key);
+					if (way.equals("new_scan")) {
+						BTFileScan scan = file.new_scan(probe, probe);
+						if (scan.get_next() != null)
+							found++;
+						scan.DestroyBTreeFileScan();
+					} else if (way.equals("lookupFirst")) {
+						if (file.lookupFirst(probe) != null)
+							found++;
+					} else {
+						rids.clear();
+						found += file.lookup(probe, rids);
+					}
+				}
+				long time = System.nanoTime() - start;
+				allocated = allocatedBytes() - allocated;
+				pins = file.getPinCount() - pins;
+
+				System.out.println(way + ": " + time / n + " ns, "
+						+ String.format("%.2f", (double) pins / n)
+						+ " pages pinned and " + allocated / n
+						+ " bytes allocated per lookup");
+				if (found != n) {
+					System.out.println("*     " + way + " missed records: "
+							+ found + " of " + n + "      *");
+				}
+			}
+			file.destroyFile();
+			file = null;
+
+		} catch (Exception e) {
+			throw e;
+		}
+	}
+
+	// looks up n keys the file does not hold, with and without a Bloom filter,
+	// and reports the time per lookup and how many of the lookups still went
+	// down the tree, which with the filter are its false positives; the filter
+	// is then stored by close and must come back when the file is opened again
+	void test21(int n) throws Exception {
+		try {
+			System.out.println(" ***************** The file name is: "
+					+ "BLOOM" + postfix + "  **********");
+
+			List<Integer> keys = new ArrayList<Integer>();
+			for (int i = 0; i < n; i++)
+				keys.add(2 * i);
+			Collections.shuffle(keys, new Random(n));
+			file = new BTreeFile("BLOOM" + postfix, AttrType.attrInteger, 4,
+					deleteFashion);
+			for (int key : keys)
+				file.insert(new IntegerKey(key), new RID(new PageId(key), key));
+
+			for (int pass = 0; pass < 2; pass++) {
+				file.setBloomFilter(pass == 1);
+				int found = 0, searched = 0;
+				long start = System.nanoTime();
+				for (int key : keys) {
+					long pins = file.getPinCount();
+					if (file.lookupFirst(new IntegerKey(key + 1)) != null)
+						found++;
+					if (file.getPinCount() != pins)
+						searched++;
+				}
+				long time = System.nanoTime() - start;
+
+				System.out.println((pass == 1 ? "with" : "without")
+						+ " Bloom filter: " + time / n + " ns per miss, "
+						+ searched + " of " + n + " misses searched ("
+						+ String.format("%.2f", 100.0 * searched / n) + "%)");
+				if (found != 0) {
+					System.out.println("*     found " + found
+							+ " keys that were never inserted      *");
+				}
+			}
+
+			file.close();
+			file = new BTreeFile("BLOOM" + postfix);
+			int found = 0;
+			for (int key : keys)
+				if (file.lookupFirst(new IntegerKey(key)) != null)
+					found++;
+			if (!file.hasBloomFilter() || found != n) {
+				System.out.println("*     Bloom filter not reopened, found "
+						+ found + " of " + n + "      *");
+			}
+			file.destroyFile();
+			file = null;
+
+		} catch (Exception e) {
+			throw e;
+		}
+	}
+
+	// looks up n random keys, half of them in the file and some of them
+	// inserted twice, with lookup one at a time and with lookupBatch in
+	// batches of growing size, and reports the time and the pages pinned per
+	// key and whether the batches found what lookup found
+	void test22(int n) throws Exception {
+		try {
+			System.out.println(" ***************** The file name is: "
+					+ "BATCH" + postfix + "  **********");
+
+			List<Integer> keys = new ArrayList<Integer>();
+			for (int i = 0; i < n; i++)
+				keys.add(i % 10 == 0 ? 2 * (i / 100) : 2 * i);
+			Collections.shuffle(keys, new Random(n));
+			file = new BTreeFile("BATCH" + postfix, AttrType.attrInteger, 4,
+					deleteFashion);
+			for (int key : keys)
+				file.insert(new IntegerKey(key), new RID(new PageId(key), key));
+
+			Random random = new Random(n + 1);
+			KeyClass[] probes = new KeyClass[n];
+			for (int i = 0; i < n; i++)
+				probes[i] = new IntegerKey(random.nextInt(2 * n));
+
+			List<List<RID>> expected = new ArrayList<List<RID>>();
+			long pins = file.getPinCount();
+			long start = System.nanoTime();
+			for (KeyClass probe : probes) {
+				List<RID> rids = new ArrayList<RID>(1);
+				file.lookup(probe, rids);
+				expected.add(rids);
+			}
+			long time = System.nanoTime() - start;
+			pins = file.getPinCount() - pins;
+			System.out.println("lookup: " + time / n + " ns and "
+					+ String.format("%.2f", (double) pins / n)
+					+ " pages pinned per key");
+
+			int[] sizes = { 10, 100, 1000, 10000 };
+			for (int size : sizes) {
+				List<List<RID>> found = new ArrayList<List<RID>>(n);
+				pins = file.getPinCount();
+				start = System.nanoTime();
+				for (int i = 0; i < n; i += size)
+					file.lookupBatch(Arrays.copyOfRange(probes, i, Math.min(n,
+							i + size)), found);
+				time = System.nanoTime() - start;
+				pins = file.getPinCount() - pins;
+
+				System.out.println("lookupBatch of " + size + ": " + time / n
+						+ " ns and " + String.format("%.2f", (double) pins / n)
+						+ " pages pinned per key");
+				if (!sameRids(found, expected)) {
+					System.out.println("*     lookupBatch of " + size
+							+ " found other rids than lookup      *");
+				}
+			}
+			file.destroyFile();
+			file = null;
+
+		} catch (Exception e) {
+			throw e;
+		}
+	}
+
+	// inserts n keys from 8 threads in concurrent mode with a write-ahead log,
+	// for growing group commit sizes, and reports the commits per second and
+	// the commits that shared a force of the log, against no log at all
+	void test23(int n) throws Exception {
+		try {
+			if (file != null)
+				file.close();
+			file = null;
+
+			final List<Integer> keys = new ArrayList<Integer>();
+			for (int i = 0; i < n; i++)
+				keys.add(i);
+			Collections.shuffle(keys, new Random(n));
+
+			int threads = 8;
+			int[] groups = { 0, 1, 2, 4, 8 };
+			for (int group : groups) {
+				String name = "WAL" + group + postfix;
+				BTreeFile index = new BTreeFile(name, AttrType.attrInteger, 4,
+						deleteFashion);
+				// the log starts from the file as it is on disk
+				index.close();
+				SystemDefs.JavabaseBM.flushAllPages();
+				final BTreeFile logged = new BTreeFile(name);
+				WriteAheadLog log = null;
+				if (group > 0) {
+					new File(logpath + group).delete();
+					log = new WriteAheadLog(logpath + group);
+					log.setGroupCommit(group, 2000);
+					logged.setLog(log);
+				}
+				logged.setConcurrent(true);
+
+				long time = runThreads(threads, new KeyWork() {
+					void run(int key) throws Exception {
+						logged.insert(new IntegerKey(key), new RID(new PageId(
+								key), key));
+					}
+				}, keys);
+
+				if (log == null) {
+					System.out.println("no log: " + (long) n * 1000000000L
+							/ Math.max(1, time) + " inserts/s");
+				} else {
+					System.out.println("group of " + group + ": "
+							+ (long) n * 1000000000L / Math.max(1, time)
+							+ " commits/s, " + log.getForceCount()
+							+ " forces, "
+							+ String.format("%.1f", (double) n
+									/ Math.max(1, log.getForceCount()))
+							+ " commits per force, "
+							+ time / Math.max(1, n / threads) / 1000
+							+ " us per commit");
+				}
+				logged.setConcurrent(false);
+				logged.setLog(null);
+				logged.destroyFile();
+				if (log != null) {
+					log.close();
+					new File(logpath + group).delete();
+				}
+			}
+
+		} catch (Exception e) {
+			throw e;
+		}
+	}
+
+	// inserts n keys from 4 threads in concurrent mode into a file with a
+	// write-ahead log, taking no checkpoints and then checkpoints every 1 MB
+	// and every 256 KB of log meanwhile, and then crashes: the buffer pool is
+	// dropped without being written. Reports the inserts per second, the log
+	// the restart read and how long opening the log and redoing it took, and
+	// looks up every key after the restart. The database the driver was
+	// running on is opened again at the end.
+	void test24(int n) throws Exception {
+		try {
+			if (file != null)
+				file.close();
+			file = null;
+			SystemDefs.JavabaseBM.flushAllPages();
+			String dbname = SystemDefs.JavabaseDBName;
+			int bufs = SystemDefs.JavabaseBM.getNumBuffers();
+
+			final List<Integer> keys = new ArrayList<Integer>();
+			for (int i = 0; i < n; i++)
+				keys.add(i);
+			Collections.shuffle(keys, new Random(n));
+
+			int threads = 4;
+			String crashdb = dbname + ".crash";
+			String crashlog = logpath + ".crash";
+			long[] intervals = { 0, 1 << 20, 1 << 18 };
+			for (long interval : intervals) {
+				new StorageDefs(crashdb, n / 10 + 1000, bufs, "Clock", "File");
+				BTreeFile index = new BTreeFile("CRASH", AttrType.attrInteger,
+						4, deleteFashion);
+				index.close();
+				SystemDefs.JavabaseBM.flushAllPages();
+				final BTreeFile logged = new BTreeFile("CRASH");
+				new File(crashlog).delete();
+				new File(crashlog + ".master").delete();
+				WriteAheadLog log = new WriteAheadLog(crashlog);
+				log.setGroupCommit(threads, 1000);
+				log.setCheckpointInterval(interval);
+				logged.setLog(log);
+				logged.setConcurrent(true);
+
+				long time = runThreads(threads, new KeyWork() {
+					void run(int key) throws Exception {
+						logged.insert(new IntegerKey(key), new RID(new PageId(
+								key), key));
+					}
+				}, keys);
+
+				// crash: neither the file nor the buffer pool is written out
+				log.setCheckpointInterval(0);
+				long checkpoints = log.getCheckpointCount();
+				long size = new File(crashlog).length();
+				new StorageDefs(crashdb, 0, bufs, "Clock", "File");
+
+				long start = System.nanoTime();
+				WriteAheadLog recovered = new WriteAheadLog(crashlog);
+				long redoFrom = recovered.getRedoLSN();
+				int records = recovered.redo();
+				long restart = System.nanoTime() - start;
+
+				BTreeFile reopened = new BTreeFile("CRASH");
+				int found = 0;
+				for (int key : keys)
+					if (reopened.lookupFirst(new IntegerKey(key)) != null)
+						found++;
+
+				System.out.println((interval == 0 ? "no checkpoints"
+						: "checkpoint every " + interval / 1024 + " KB")
+						+ ": " + (long) n * 1000000000L / Math.max(1, time)
+						+ " inserts/s, " + checkpoints + " checkpoints; restart "
+						+ "read " + (size - redoFrom) / 1024 + " of "
+						+ size / 1024 + " KB of log, redid " + records
+						+ " records in " + restart / 1000000 + " ms");
+				if (found != n) {
+					System.out.println("*     recovery lost records: " + found
+							+ " of " + n + "      *");
+				}
+
+				reopened.close();
+				recovered.close();
+				SystemDefs.JavabaseBM.flushAllPages();
+				SystemDefs.JavabaseDB.DBDestroy();
+				new File(crashlog).delete();
+				new File(crashlog + ".master").delete();
+			}
+
+			new SystemDefs(dbname, 0, bufs, "Clock");
+
+		} catch (Exception e) {
+			throw e;
+		}
+	}
+
+	// loads the even keys below n into a file in concurrent mode and then
+	// inserts the odd ones and deletes every fourth key from 4 threads, once
+	// with nothing else running and once while another thread keeps running
+	// snapshot scans over the whole index. Reports the writes per second of
+	// both runs. The first snapshot scan is opened before the writers start
+	// and has to return just the even keys; every later one has to come back
+	// in order and hold every key that is never deleted.
+	void test25(final int n) throws Exception {
+		try {
+			final List<Integer> writes = new ArrayList<Integer>();
+			for (int i = 0; i < n; i++)
+				if (i % 2 == 1 || i % 4 == 0)
+					writes.add(i);
+			Collections.shuffle(writes, new Random(n));
+
+			int threads = 4;
+			for (int run = 0; run < 2; run++) {
+				final boolean scanning = run == 1;
+				// full deletes merge and free leaves under the scans
+				final BTreeFile index = new BTreeFile("SNAP" + run + postfix,
+						AttrType.attrInteger, 4, DeleteFashion.FULL_DELETE);
+				for (int i = 0; i < n; i += 2)
+					index.insert(new IntegerKey(i), new RID(new PageId(i), i));
+				index.setConcurrent(true);
+
+				final List<Exception> errors = Collections
+						.synchronizedList(new ArrayList<Exception>());
+				final boolean[] done = new boolean[1];
+				final int[] scans = new int[1];
+				final int[] versions = new int[1];
+				final BTFileScan first = index.new_snapshot_scan(null, null);
+				Thread reader = new Thread() {
+					public void run() {
+						try {
+							BTFileScan scan = first;
+							while (scan != null) {
+								int count = 0;
+								int last = -1;
+								int stable = 0;
+								KeyDataEntry entry;
+								while ((entry = scan.get_next()) != null) {
+									int key = ((IntegerKey) entry.key).getKey()
+											.intValue();
+									if (key <= last)
+										throw new Exception("snapshot scan "
+												+ "returned " + key + " after "
+												+ last);
+									if (scan == first && key % 2 != 0)
+										throw new Exception("first snapshot "
+												+ "scan returned " + key);
+									if (key % 4 == 2)
+										stable++;
+									if (++count % 100 == 0)
+										versions[0] = Math.max(versions[0],
+												index.getSnapshotVersionCount());
+									last = key;
+								}
+								scan.DestroyBTreeFileScan();
+								if (scan == first && count != (n + 1) / 2)
+									throw new Exception("first snapshot scan "
+											+ "returned " + count + " of "
+											+ (n + 1) / 2 + " keys");
+								if (stable != (n + 1) / 4)
+									throw new Exception("snapshot scan missed "
+											+ ((n + 1) / 4 - stable) + " keys");
+								scans[0]++;
+								scan = done[0] || !scanning ? null : index
+										.new_snapshot_scan(null, null);
+							}
+						} catch (Exception e) {
+							errors.add(e);
+						}
+					}
+				};
+				if (scanning)
+					reader.start();
+				else
+					first.DestroyBTreeFileScan();
+
+				long time = runThreads(threads, new KeyWork() {
+					void run(int key) throws Exception {
+						RID rid = new RID(new PageId(key), key);
+						if (key % 2 == 1)
+							index.insert(new IntegerKey(key), rid);
+						else if (!index.Delete(new IntegerKey(key), rid))
+							throw new Exception("delete of " + key + " failed");
+					}
+				}, writes);
+				done[0] = true;
+				if (scanning)
+					reader.join();
+
+				int left = 0;
+				BTFileScan scan = index.new_scan(null, null);
+				while (scan.get_next() != null)
+					left++;
+				scan.DestroyBTreeFileScan();
+
+				System.out.println((scanning ? "with snapshot scans: "
+						: "no scans: ")
+						+ (long) writes.size() * 1000000000L
+						/ Math.max(1, time) + " writes/s"
+						+ (scanning ? ", " + scans[0] + " full scans, at most "
+								+ versions[0] + " leaf versions kept, "
+								+ index.getSnapshotVersionCount() + " left"
+								: ""));
+				if (!errors.isEmpty() || left != n - (n + 3) / 4) {
+					System.out.println("*     Snapshot scans have bug!!! "
+							+ left + " of " + (n - (n + 3) / 4)
+							+ " entries left");
+					for (Exception e : errors)
+						System.out.println("*     " + e);
+				}
+				index.setConcurrent(false);
+				index.destroyFile();
+			}
+
+		} catch (Exception e) {
+			throw e;
+		}
+	}
+
+	private static boolean sameRids(List<List<RID>> a, List<List<RID>> b) {
+		if (a.size() != b.size())
+			return false;
+		for (int i = 0; i < a.size(); i++) {
+			if (a.get(i).size() != b.get(i).size())
+				return false;
+			for (int j = 0; j < a.get(i).size(); j++)
+				if (!a.get(i).get(j).equals(b.get(i).get(j)))
+					return false;
+		}
+		return true;
+	}
+
+	private void printScan(String name, int count, long time, long allocated) {
+		System.out.println(name + ": " + count + " records, "
+				+ time / Math.max(1, count) + " ns and "
+				+ allocated / Math.max(1, count) + " bytes allocated per record");
+	}
+
+	abstract static class KeyWork {
+		abstract void run(int key) throws Exception;
+	}
+
+	// splits the keys over the given number of threads and returns how many
+	// nanoseconds it took them to run the work on all of them
+	private long runThreads(int count, final KeyWork work,
+			final List<Integer> keys) throws Exception {
+		final List<Exception> errors = Collections
+				.synchronizedList(new ArrayList<Exception>());
+		Thread[] threads = new Thread[count];
+		for (int t = 0; t < count; t++) {
+			final List<Integer> part = keys.subList(keys.size() * t / count,
+					keys.size() * (t + 1) / count);
+			threads[t] = new Thread() {
+				public void run() {
+					try {
+						for (int key : part)
+							work.run(key);
+					} catch (Exception e) {
+						errors.add(e);
+					}
+				}
+			};
+		}
+
+		long start = System.nanoTime();
+		for (int t = 0; t < count; t++)
+			threads[t].start();
+		for (int t = 0; t < count; t++)
+			threads[t].join();
+		long time = System.nanoTime() - start;
+
+		if (!errors.isEmpty())
+			throw errors.get(0);
+		return time;
+	}
+
+	private void timeLookups(String name, BTreeFile index,
+			List<KeyDataEntry> entries) throws Exception {
+		List<KeyDataEntry> probes = new ArrayList<KeyDataEntry>(entries);
+		Collections.shuffle(probes, new Random(entries.size()));
+
+		int found = 0;
+		long allocated = allocatedBytes();
+		long start = System.nanoTime();
+		for (KeyDataEntry probe : probes) {
+			BTFileScan scan = index.new_scan(probe.key, probe.key);
+			if (scan.get_next() != null)
+				found++;
+			scan.DestroyBTreeFileScan();
+		}
+		long perLookup = (System.nanoTime() - start) / Math.max(1, probes.size());
+		allocated = (allocatedBytes() - allocated) / Math.max(1, probes.size());
+		int height = index.getHeight();
+
+		System.out.println(probes.size() + " " + name + " keys, " + height
+				+ " levels: " + perLookup + " ns per lookup, " + perLookup
+				/ Math.max(1, height) + " ns per level, " + allocated
+				+ " bytes allocated per lookup");
+		if (found != probes.size()) {
+			System.out.println("*     lookups missed records: " + found
+					+ " of " + probes.size() + "      *");
+		}
+	}
+
+	// bytes the current thread has allocated so far, 0 if the JVM does not
+	// tell
+	private static long allocatedBytes() {
+		java.lang.management.ThreadMXBean threads = java.lang.management.ManagementFactory
+				.getThreadMXBean();
+		if (!(threads instanceof com.sun.management.ThreadMXBean))
+			return 0;
+		return ((com.sun.management.ThreadMXBean) threads)
+				.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
 }
 
 /**